@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+
+package org.mitre.bio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link Sequence} whose residues are kept as one byte per residue in a
+ * {@link ByteBuffer} (which can be a view of a memory-mapped file) instead of
+ * a <code>String</code>.
+ * <P>
+ * The residues can be read directly as a {@link CharSequence} (bytes are
+ * treated as ISO-8859-1 characters). {@link #seqString()} builds a new
+ * <code>String</code> each time it is called.
+ *
+ * @author Marc Colosimo
+ */
+public class ByteSequence extends Sequence implements CharSequence {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /** The residues, from zero to the limit */
+    private final ByteBuffer residues;
+
+    /**
+     * Construct a new <tt>ByteSequence</tt> object.
+     *
+     * @param name the name of the sequence
+     * @param description the description of the sequence
+     * @param residues the residues from the buffer's position to its limit
+     * (the buffer is not copied).
+     */
+    public ByteSequence(String name, String description, ByteBuffer residues) {
+        super(name, description, null);
+        this.residues = residues.slice();
+    }
+
+    /**
+     * Returns a read-only view of the residues.
+     */
+    public ByteBuffer getBuffer() {
+        return this.residues.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the sequence data as a new <code>String</code>.
+     */
+    @Override
+    public String seqString() {
+        byte[] bytes = new byte[this.residues.limit()];
+        this.residues.duplicate().get(bytes);
+        return new String(bytes, LATIN1);
+    }
+
+    @Override
+    public CharSequence getResidues() {
+        return this;
+    }
+
+    public int length() {
+        return this.residues.limit();
+    }
+
+    public char charAt(int index) {
+        return (char) (this.residues.get(index) & 0xFF);
+    }
+
+    /**
+     * Returns a view of the residues from start to end (nothing is copied).
+     */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.residues.limit() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end "
+                    + end + ", length " + this.residues.limit());
+        }
+        ByteBuffer view = this.residues.duplicate();
+        view.limit(end).position(start);
+        return new ByteSequence(this.getName(), this.getDescription(), view);
+    }
+
+    @Override
+    public String toString() {
+        return this.seqString();
+    }
+}
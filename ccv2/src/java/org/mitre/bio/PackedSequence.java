@@ -0,0 +1,310 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+
+package org.mitre.bio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link Sequence} whose residues are packed two bits per base.
+ * <P>
+ * <code>A</code>, <code>C</code>, <code>G</code> and <code>T</code> are packed
+ * (A=0, C=1, G=2, T=3) 32 to a <code>long</code> with the first base in the
+ * highest bits. Everything else (<code>N</code>, IUPAC codes, lower case,
+ * gaps) is kept in a list of runs of the same character, so long stretches of
+ * <code>N</code>s cost one entry. A genome is about a quarter of a byte per base
+ * instead of the two bytes of a <code>String</code>.
+ * <P>
+ * The residues can be read as a {@link CharSequence} and n-mers can be taken
+ * straight from the packed words with {@link #getKmer(int, int)}.
+ * {@link #seqString()} builds a new <code>String</code> each time it is called.
+ *
+ * @author Marc Colosimo
+ */
+public class PackedSequence extends Sequence implements CharSequence {
+
+    /** The longest n-mer {@link #getKmer(int, int)} can return */
+    public static final int MAX_KMER_LENGTH = 31;
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private final long[] words;
+    private final int length;
+
+    /** Runs of residues that are not packed: [start, end) of the same char */
+    private final int[] runStarts;
+    private final int[] runEnds;
+    private final char[] runChars;
+
+    /**
+     * Builds a <tt>PackedSequence</tt> a piece at a time, so the residues are
+     * never held as a <code>String</code>.
+     */
+    public static class Builder {
+
+        private long[] words = new long[16];
+        private int length = 0;
+        private int[] runStarts = new int[4];
+        private int[] runEnds = new int[4];
+        private char[] runChars = new char[4];
+        private int runs = 0;
+
+        public int length() {
+            return this.length;
+        }
+
+        public Builder append(char c) {
+            if ((this.length >>> 5) == this.words.length) {
+                this.words = Arrays.copyOf(this.words, this.words.length * 2);
+            }
+            int code = code(c);
+            if (code < 0) {
+                if (this.runs > 0 && this.runEnds[this.runs - 1] == this.length
+                        && this.runChars[this.runs - 1] == c) {
+                    this.runEnds[this.runs - 1]++;
+                } else {
+                    if (this.runs == this.runStarts.length) {
+                        int size = this.runs * 2;
+                        this.runStarts = Arrays.copyOf(this.runStarts, size);
+                        this.runEnds = Arrays.copyOf(this.runEnds, size);
+                        this.runChars = Arrays.copyOf(this.runChars, size);
+                    }
+                    this.runStarts[this.runs] = this.length;
+                    this.runEnds[this.runs] = this.length + 1;
+                    this.runChars[this.runs] = c;
+                    this.runs++;
+                }
+            } else {
+                this.words[this.length >>> 5] |= ((long) code) << (62 - ((this.length & 31) << 1));
+            }
+            this.length++;
+            return this;
+        }
+
+        public Builder append(CharSequence seq) {
+            return this.append(seq, 0, seq.length());
+        }
+
+        public Builder append(CharSequence seq, int start, int end) {
+            for (int i = start; i < end; i++) {
+                this.append(seq.charAt(i));
+            }
+            return this;
+        }
+
+        /**
+         * Appends the bytes (as ISO-8859-1 characters) from start to end of
+         * the buffer.
+         */
+        public Builder append(ByteBuffer buf, int start, int end) {
+            for (int i = start; i < end; i++) {
+                this.append((char) (buf.get(i) & 0xFF));
+            }
+            return this;
+        }
+
+        /**
+         * Returns the sequence; the builder should not be used after this.
+         */
+        public PackedSequence build(String name, String description) {
+            return new PackedSequence(name, description, this);
+        }
+    }
+
+    /**
+     * Construct a new <tt>PackedSequence</tt> object.
+     *
+     * @param name the name of the sequence
+     * @param description the description of the sequence
+     * @param residues the residues to pack
+     */
+    public PackedSequence(String name, String description, CharSequence residues) {
+        this(name, description, new Builder().append(residues));
+    }
+
+    private PackedSequence(String name, String description, Builder builder) {
+        super(name, description, null);
+        this.words = Arrays.copyOf(builder.words, (builder.length + 31) >>> 5);
+        this.length = builder.length;
+        this.runStarts = Arrays.copyOf(builder.runStarts, builder.runs);
+        this.runEnds = Arrays.copyOf(builder.runEnds, builder.runs);
+        this.runChars = Arrays.copyOf(builder.runChars, builder.runs);
+    }
+
+    /**
+     * Returns the 2-bit code for the residue or -1 if it is not packed.
+     */
+    public static int code(char c) {
+        switch (c) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Get the sequence data as a new <code>String</code>.
+     */
+    @Override
+    public String seqString() {
+        char[] chars = new char[this.length];
+        for (int i = 0; i < this.length; i++) {
+            chars[i] = BASES[this.packedCode(i)];
+        }
+        for (int r = 0; r < this.runStarts.length; r++) {
+            Arrays.fill(chars, this.runStarts[r], this.runEnds[r], this.runChars[r]);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public CharSequence getResidues() {
+        return this;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= this.length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + this.length);
+        }
+        int r = this.runAt(index);
+        if (r >= 0) {
+            return this.runChars[r];
+        }
+        return BASES[this.packedCode(index)];
+    }
+
+    /**
+     * Returns the residues from start to end as a <code>String</code> (meant
+     * for short pieces such as n-mers).
+     */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end "
+                    + end + ", length " + this.length);
+        }
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = this.charAt(i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the n-mer starting at <code>offset</code> packed two bits per
+     * base (the first base in the highest bits), taken straight from the packed
+     * words. Bases in the exception runs read as <code>A</code>, see
+     * {@link #isPacked(int, int)}.
+     *
+     * @param offset the first residue
+     * @param k the length, at most {@link #MAX_KMER_LENGTH}
+     */
+    public long getKmer(int offset, int k) {
+        if (k < 1 || k > MAX_KMER_LENGTH || offset < 0 || offset + k > this.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", k " + k
+                    + ", length " + this.length);
+        }
+        int w = offset >>> 5;
+        int shift = (offset & 31) << 1;
+        long bits = this.words[w] << shift;
+        if (shift + (k << 1) > 64) {
+            bits |= this.words[w + 1] >>> (64 - shift);
+        }
+        return bits >>> (64 - (k << 1));
+    }
+
+    /**
+     * Returns <code>true</code> if all of the residues from start to end are
+     * packed (<code>A</code>, <code>C</code>, <code>G</code> or <code>T</code>).
+     */
+    public boolean isPacked(int start, int end) {
+        int r = this.runBefore(end - 1);
+        return r < 0 || this.runEnds[r] <= start;
+    }
+
+    /**
+     * Returns word <code>index</code> of the packed bases (32 bases with the
+     * first in the highest bits).
+     */
+    public long getWord(int index) {
+        return this.words[index];
+    }
+
+    /**
+     * Returns the number of runs of residues that are not packed.
+     */
+    public int getRunCount() {
+        return this.runStarts.length;
+    }
+
+    public int getRunStart(int run) {
+        return this.runStarts[run];
+    }
+
+    /**
+     * Returns the end (exclusive) of the run.
+     */
+    public int getRunEnd(int run) {
+        return this.runEnds[run];
+    }
+
+    @Override
+    public String toString() {
+        return this.seqString();
+    }
+
+    private int packedCode(int index) {
+        return (int) (this.words[index >>> 5] >>> (62 - ((index & 31) << 1))) & 3;
+    }
+
+    /**
+     * Returns the run holding the index or -1.
+     */
+    private int runAt(int index) {
+        int r = this.runBefore(index);
+        return (r >= 0 && index < this.runEnds[r]) ? r : -1;
+    }
+
+    /**
+     * Returns the last run starting at or before the index or -1.
+     */
+    private int runBefore(int index) {
+        int lo = 0;
+        int hi = this.runStarts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.runStarts[mid] <= index) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+}
@@ -57,6 +57,14 @@ public class Sequence {
         return sequence;
     }
 
+    /**
+     * Get the sequence data without making a new <code>String</code> (for
+     * sequences that do not keep their residues as one).
+     */
+    public CharSequence getResidues() {
+        return seqString();
+    }
+
     /**
      * Set the sequence name
      */
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+
+package org.mitre.bio.io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An {@link InputStream} that decompresses block-gzip (BGZF) data, inflating
+ * the blocks in parallel.
+ * <P>
+ * BGZF files are a series of small gzip members (at most 64KB uncompressed
+ * each) that carry their compressed size in a 'BC' extra field, so the blocks
+ * can be cut out of the stream without inflating them. The blocks are handed
+ * to a pool of inflater threads and their results are kept in a ring (in
+ * stream order) that is topped up as the reader consumes them.
+ *
+ * @author Marc Colosimo
+ */
+public class BgzfInputStream extends InputStream {
+
+    /** Size of the fixed part of the gzip header, including XLEN */
+    private static final int HEADER_SIZE = 12;
+
+    private final InputStream in;
+    private final ExecutorService executor;
+
+    /** Blocks being inflated, in stream order */
+    private final LinkedList<Future<byte[]>> ring;
+    private final int ringSize;
+
+    private byte[] block = new byte[0];
+    private int blockPos = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * Construct a new <tt>BgzfInputStream</tt> object using a thread for each
+     * processor.
+     */
+    public BgzfInputStream(InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a new <tt>BgzfInputStream</tt> object.
+     *
+     * @param in the compressed stream.
+     * @param threads number of inflater threads.
+     */
+    public BgzfInputStream(InputStream in, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least one");
+        }
+        this.in = in;
+        this.ringSize = 4 * threads;
+        this.ring = new LinkedList<Future<byte[]>>();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BgzfInputStream-inflater");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns <code>true</code> if the bytes start with the gzip magic number.
+     */
+    public static boolean isGzip(byte[] header, int length) {
+        return length >= 2 && (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139;
+    }
+
+    /**
+     * Returns <code>true</code> if the bytes start a BGZF block (a gzip header
+     * with a 'BC' extra subfield).
+     */
+    public static boolean isBgzf(byte[] header, int length) {
+        if (length < 18 || !isGzip(header, length) || (header[3] & 4) == 0) {
+            return false;
+        }
+        int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+        int p = HEADER_SIZE;
+        while (p + 4 <= Math.min(length, HEADER_SIZE + xlen)) {
+            int slen = (header[p + 2] & 0xFF) | ((header[p + 3] & 0xFF) << 8);
+            if (header[p] == 'B' && header[p + 1] == 'C' && slen == 2) {
+                return true;
+            }
+            p += 4 + slen;
+        }
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the file is gzip (or BGZF) compressed.
+     */
+    public static boolean isGzip(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] header = new byte[2];
+            return isGzip(header, readFully(fis, header, 0, header.length));
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Returns a stream of the uncompressed data: BGZF is inflated in parallel,
+     * other gzip data with a {@link GZIPInputStream} and anything else is
+     * passed through.
+     *
+     * @param in the (possibly) compressed stream.
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in, 1 << 16);
+        byte[] header = new byte[64];
+        bis.mark(header.length);
+        int n = readFully(bis, header, 0, header.length);
+        bis.reset();
+        if (isBgzf(header, n)) {
+            return new BgzfInputStream(bis);
+        } else if (isGzip(header, n)) {
+            return new GZIPInputStream(bis, 1 << 16);
+        }
+        return bis;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.fill()) {
+            return -1;
+        }
+        return this.block[this.blockPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.fill()) {
+            return -1;
+        }
+        int n = Math.min(len, this.block.length - this.blockPos);
+        System.arraycopy(this.block, this.blockPos, b, off, n);
+        this.blockPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.block.length - this.blockPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.executor.shutdownNow();
+            this.ring.clear();
+            this.in.close();
+        }
+    }
+
+    /**
+     * Makes sure there is data in the current block.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (this.blockPos >= this.block.length) {
+            this.topUp();
+            if (this.ring.isEmpty()) {
+                return false;
+            }
+            Future<byte[]> f = this.ring.removeFirst();
+            try {
+                this.block = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while inflating");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                IOException ioe = new IOException("Unable to inflate BGZF block");
+                ioe.initCause(cause);
+                throw ioe;
+            }
+            this.blockPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Reads compressed blocks and queues them for inflating until the ring is full.
+     */
+    private void topUp() throws IOException {
+        while (!this.eof && this.ring.size() < this.ringSize) {
+            final byte[] raw = this.readBlock();
+            if (raw == null) {
+                this.eof = true;
+                break;
+            }
+            this.ring.addLast(this.executor.submit(new Callable<byte[]>() {
+
+                public byte[] call() throws IOException {
+                    return inflate(raw);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Reads the next whole block (header to trailer) from the stream.
+     *
+     * @return the block or <code>null</code> at the end of the stream.
+     */
+    private byte[] readBlock() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int n = readFully(this.in, header, 0, HEADER_SIZE);
+        if (n == 0) {
+            return null;
+        }
+        if (n < HEADER_SIZE || !isGzip(header, n) || (header[3] & 4) == 0) {
+            throw new IOException("Not a BGZF block");
+        }
+        int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+        byte[] extra = new byte[xlen];
+        if (readFully(this.in, extra, 0, xlen) < xlen) {
+            throw new EOFException("Truncated BGZF block header");
+        }
+        int bsize = -1;
+        for (int p = 0; p + 4 <= xlen; ) {
+            int slen = (extra[p + 2] & 0xFF) | ((extra[p + 3] & 0xFF) << 8);
+            if (extra[p] == 'B' && extra[p + 1] == 'C' && slen == 2 && p + 6 <= xlen) {
+                bsize = ((extra[p + 4] & 0xFF) | ((extra[p + 5] & 0xFF) << 8)) + 1;
+            }
+            p += 4 + slen;
+        }
+        if (bsize < HEADER_SIZE + xlen + 8) {
+            throw new IOException("Not a BGZF block (missing BC field)");
+        }
+        byte[] raw = new byte[bsize];
+        System.arraycopy(header, 0, raw, 0, HEADER_SIZE);
+        System.arraycopy(extra, 0, raw, HEADER_SIZE, xlen);
+        int rest = bsize - HEADER_SIZE - xlen;
+        if (readFully(this.in, raw, HEADER_SIZE + xlen, rest) < rest) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        return raw;
+    }
+
+    /**
+     * Inflates a whole block and checks its CRC.
+     */
+    private static byte[] inflate(byte[] raw) throws IOException {
+        int xlen = (raw[10] & 0xFF) | ((raw[11] & 0xFF) << 8);
+        int cstart = HEADER_SIZE + xlen;
+        int clen = raw.length - cstart - 8;
+        int crc = readInt(raw, raw.length - 8);
+        int isize = readInt(raw, raw.length - 4);
+
+        byte[] data = new byte[isize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw, cstart, clen);
+            int n = 0;
+            while (n < isize) {
+                int r = inflater.inflate(data, n, isize - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != isize) {
+                throw new IOException("BGZF block inflated to " + n + " bytes, expected " + isize);
+            }
+        } catch (DataFormatException e) {
+            IOException ioe = new IOException("Corrupt BGZF block");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("BGZF block CRC mismatch");
+        }
+        return data;
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8)
+                | ((b[p + 2] & 0xFF) << 16) | ((b[p + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * Reads up to len bytes, stopping early only at the end of the stream.
+     *
+     * @return the number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int r = in.read(b, off + n, len - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+}
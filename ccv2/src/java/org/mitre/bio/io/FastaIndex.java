@@ -0,0 +1,591 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+
+package org.mitre.bio.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.bio.Sequence;
+
+/**
+ * An index of the records in an (uncompressed) FASTA file, in the same
+ * tab-delimited format as <code>samtools faidx</code> (a <tt>.fai</tt> file):
+ * <pre>
+ *   name  length  offset  linebases  linewidth
+ * </pre>
+ * where <tt>length</tt> is the number of residues, <tt>offset</tt> is the
+ * file offset of the first residue, <tt>linebases</tt> is the number of
+ * residues on each line and <tt>linewidth</tt> is the number of bytes in each
+ * line (including the line ending). All of the lines of a record, but the last,
+ * must be the same length.
+ * <P>
+ * From the line geometry we know where each record ends, so the index can be
+ * used to read named sequences without scanning the file and to break the
+ * file into byte ranges that start and end on record boundaries, which can be
+ * parsed independently (see {@link MappedFastaIterator#MappedFastaIterator(File, long, long)}).
+ *
+ * @author Marc Colosimo
+ */
+public class FastaIndex {
+
+    private static final Log LOG = LogFactory.getLog("FastaIndex");
+
+    /** Names are decoded the same way as the FASTA parsers */
+    private static final Charset HEADER_CHARSET = Charset.defaultCharset();
+
+    /** The suffix added to the FASTA file name for its index */
+    public static final String SUFFIX = ".fai";
+
+    /**
+     * One record of the index.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final long length;
+        private final long offset;
+        private final int lineBases;
+        private final int lineWidth;
+        /** Where the record starts and ends in the file */
+        private long start;
+        private long end;
+
+        public Entry(String name, long length, long offset, int lineBases, int lineWidth) {
+            if (length < 0 || offset < 0 || lineBases < 0 || lineWidth < lineBases
+                    || (length > 0 && lineBases == 0)) {
+                throw new IllegalArgumentException("Invalid index entry for '" + name + "'");
+            }
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /** Returns the number of residues */
+        public long getLength() {
+            return this.length;
+        }
+
+        /** Returns the file offset of the first residue */
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public int getLineBases() {
+            return this.lineBases;
+        }
+
+        public int getLineWidth() {
+            return this.lineWidth;
+        }
+
+        /**
+         * Returns the file offset where the record starts (the previous record's
+         * end, so it may include blank lines before the header).
+         */
+        public long getStart() {
+            return this.start;
+        }
+
+        /**
+         * Returns the file offset just past the last line of the record.
+         */
+        public long getEnd() {
+            return this.end;
+        }
+
+        /**
+         * Returns the offset just past the residues, from the line geometry.
+         */
+        private long residuesEnd() {
+            if (this.length == 0) {
+                return this.offset;
+            }
+            long lines = this.length / this.lineBases;
+            long rest = this.length % this.lineBases;
+            long e = this.offset + lines * this.lineWidth;
+            if (rest > 0) {
+                e += rest + (this.lineWidth - this.lineBases);
+            }
+            return e;
+        }
+
+        @Override
+        public String toString() {
+            return this.name + "\t" + this.length + "\t" + this.offset + "\t"
+                    + this.lineBases + "\t" + this.lineWidth;
+        }
+    }
+
+    /** The indexed file (null if it was not read from the local file system) */
+    private final File fasta;
+    private final long fastaLength;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+
+    /**
+     * Construct a new <tt>FastaIndex</tt> object.
+     *
+     * @param fasta the indexed file, or <code>null</code> if it is not a local
+     * file (the sequences can then not be fetched).
+     * @param fastaLength the length of the indexed file.
+     * @param entries the records in file order.
+     */
+    public FastaIndex(File fasta, long fastaLength, List<Entry> entries) throws IOException {
+        this.fasta = fasta;
+        this.fastaLength = fastaLength;
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        this.byName = new HashMap<String, Entry>();
+        long last = 0;
+        for (Entry e : this.entries) {
+            if (e.offset < last) {
+                throw new IOException("Index entries for '" + e.name + "' are out of order");
+            }
+            e.start = last;
+            e.end = Math.min(e.residuesEnd(), fastaLength);
+            last = e.end;
+            if (this.byName.containsKey(e.name)) {
+                LOG.warn("Duplicate sequence name '" + e.name + "', only the first one can be fetched by name");
+            } else {
+                this.byName.put(e.name, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the index file for the given FASTA file (<tt>file.fai</tt>).
+     */
+    public static File getIndexFile(File fasta) {
+        return new File(fasta.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads the index next to the FASTA file if there is one that is not older
+     * than it, otherwise indexes the file (without saving the index).
+     */
+    public static FastaIndex load(File fasta) throws IOException {
+        File fai = getIndexFile(fasta);
+        if (fai.isFile() && fai.lastModified() >= fasta.lastModified()) {
+            return read(fai, fasta);
+        }
+        return build(fasta);
+    }
+
+    /**
+     * Reads a <tt>.fai</tt> file.
+     *
+     * @param fai the index file.
+     * @param fasta the FASTA file it indexes.
+     */
+    public static FastaIndex read(File fai, File fasta) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(fai));
+        try {
+            return read(br, fasta, fasta.length());
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param in the index (in <tt>.fai</tt> format).
+     * @param fasta the FASTA file it indexes or <code>null</code>.
+     * @param fastaLength the length of the FASTA file.
+     */
+    public static FastaIndex read(Reader in, File fasta, long fastaLength) throws IOException {
+        BufferedReader br = (in instanceof BufferedReader)
+                ? (BufferedReader) in : new BufferedReader(in);
+        List<Entry> entries = new ArrayList<Entry>();
+        String line;
+        int lineNo = 0;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            String[] cols = line.split("\t");
+            if (cols.length < 5) {
+                throw new IOException("Line " + lineNo + " of the index has "
+                        + cols.length + " columns, expected 5");
+            }
+            try {
+                entries.add(new Entry(cols[0], Long.parseLong(cols[1]), Long.parseLong(cols[2]),
+                        Integer.parseInt(cols[3]), Integer.parseInt(cols[4])));
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Line " + lineNo + " of the index: " + nfe.getMessage());
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("Line " + lineNo + " of the index: " + iae.getMessage());
+            }
+        }
+        return new FastaIndex(fasta, fastaLength, entries);
+    }
+
+    /**
+     * Indexes a FASTA file.
+     *
+     * @throws IOException if the file is compressed or a record's lines are
+     * not all the same length.
+     */
+    public static FastaIndex build(File fasta) throws IOException {
+        if (BgzfInputStream.isGzip(fasta)) {
+            throw new IOException("Unable to index compressed file '" + fasta.getPath() + "'");
+        }
+        InputStream in = new FileInputStream(fasta);
+        try {
+            return new FastaIndex(fasta, fasta.length(), scan(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Scans the FASTA data for its records and their line geometry.
+     */
+    private static List<Entry> scan(InputStream in) throws IOException {
+        Scanner scanner = new Scanner();
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                scanner.add(buf[i]);
+            }
+        }
+        return scanner.finish();
+    }
+
+    /**
+     * Splits the bytes into lines the same way as the parsers do ("\n", "\r"
+     * or "\r\n" end a line) and keeps track of the records.
+     */
+    private static class Scanner {
+
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        /** The record being scanned */
+        private String name = null;
+        private long offset;
+        private long length;
+        private int lineBases;
+        private int lineWidth;
+        private boolean shortLine;
+        private boolean blankLine;
+
+        /** The line being scanned */
+        private long pos = 0;
+        private int width = 0;
+        private int bases = 0;
+        private boolean inLine = false;
+        private boolean cr = false;
+        private byte[] header = new byte[256];
+        private int headerLength = 0;
+        private boolean inHeader = false;
+
+        void add(byte c) throws IOException {
+            if (this.cr) {
+                this.cr = false;
+                if (c == '\n') {
+                    this.width++;
+                    this.endLine();
+                    return;
+                }
+                this.endLine();
+            }
+            if (!this.inLine) {
+                this.inLine = true;
+                this.inHeader = (c == '>');
+            }
+            this.width++;
+            if (c == '\n') {
+                this.endLine();
+            } else if (c == '\r') {
+                /** wait to see if a '\n' follows */
+                this.cr = true;
+            } else if (this.inHeader) {
+                if (this.headerLength == this.header.length) {
+                    byte[] grown = new byte[this.header.length * 2];
+                    System.arraycopy(this.header, 0, grown, 0, this.header.length);
+                    this.header = grown;
+                }
+                this.header[this.headerLength++] = c;
+            } else if ((c & 0xFF) > ' ') {
+                /** white space is not counted as residues (like samtools) */
+                this.bases++;
+            }
+        }
+
+        List<Entry> finish() throws IOException {
+            if (this.inLine) {
+                this.endLine();
+            }
+            if (this.name != null) {
+                this.entries.add(new Entry(this.name, this.length, this.offset,
+                        this.lineBases, this.lineWidth));
+            }
+            return this.entries;
+        }
+
+        private void endLine() throws IOException {
+            if (this.inHeader) {
+                if (this.name != null) {
+                    this.entries.add(new Entry(this.name, this.length, this.offset,
+                            this.lineBases, this.lineWidth));
+                }
+                this.name = decodeName(this.header, this.headerLength);
+                this.offset = this.pos + this.width;
+                this.length = 0;
+                this.lineBases = 0;
+                this.lineWidth = 0;
+                this.shortLine = false;
+                this.blankLine = false;
+            } else if (this.name != null) {
+                if (this.bases == 0) {
+                    this.blankLine = true;
+                } else {
+                    /** only the last line may be shorter (and no blank lines before it) */
+                    if (this.blankLine || this.shortLine || (this.lineBases > 0
+                            && (this.bases > this.lineBases
+                            || (this.bases == this.lineBases && this.width != this.lineWidth)))) {
+                        throw new IOException("Different line length in sequence '" + this.name + "'");
+                    }
+                    if (this.lineBases == 0) {
+                        this.lineBases = this.bases;
+                        this.lineWidth = this.width;
+                    } else if (this.bases < this.lineBases) {
+                        this.shortLine = true;
+                    }
+                    this.length += this.bases;
+                }
+            }
+            this.pos += this.width;
+            this.width = 0;
+            this.bases = 0;
+            this.headerLength = 0;
+            this.inLine = false;
+            this.inHeader = false;
+        }
+    }
+
+    /**
+     * Returns the name from the header bytes (skipping the '&gt;'), which is
+     * everything up to the first space.
+     */
+    private static String decodeName(byte[] header, int length) {
+        int end = 1;
+        while (end < length && header[end] != ' ') {
+            end++;
+        }
+        return new String(header, 1, end - 1, HEADER_CHARSET);
+    }
+
+    /**
+     * Writes the index in <tt>.fai</tt> format.
+     */
+    public void write(Writer out) throws IOException {
+        for (Entry e : this.entries) {
+            out.write(e.toString());
+            out.write("\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the index to a file.
+     */
+    public void write(File fai) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fai));
+        try {
+            this.write(bw);
+        } finally {
+            bw.close();
+        }
+    }
+
+    public File getFastaFile() {
+        return this.fasta;
+    }
+
+    public long getFastaLength() {
+        return this.fastaLength;
+    }
+
+    /**
+     * Returns the records in file order.
+     */
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Returns the record with the given name or <code>null</code>.
+     */
+    public Entry getEntry(String name) {
+        return this.byName.get(name);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Reads the named sequence, mapping only its part of the file.
+     *
+     * @return the sequence or <code>null</code> if there is no such sequence.
+     */
+    public Sequence fetch(String name) {
+        Entry e = this.byName.get(name);
+        if (e == null) {
+            return null;
+        }
+        if (this.fasta == null) {
+            throw new IllegalStateException("No local FASTA file to fetch from");
+        }
+        MappedFastaIterator iter = new MappedFastaIterator(this.fasta, e.start, e.end);
+        if (!iter.hasNext()) {
+            return null;
+        }
+        Sequence s = iter.next();
+        /** closes the file */
+        iter.hasNext();
+        return s;
+    }
+
+    /**
+     * Returns an iterator over the named sequences, in the given order. Names
+     * that are not in the index are skipped with a warning.
+     */
+    public SequenceIterator iterator(final List<String> names) {
+        return new SequenceIterator() {
+
+            private int index = 0;
+            private Sequence nextSequence = null;
+
+            public boolean hasNext() {
+                while (this.nextSequence == null && this.index < names.size()) {
+                    String name = names.get(this.index++);
+                    this.nextSequence = fetch(name);
+                    if (this.nextSequence == null) {
+                        LOG.warn("Sequence '" + name + "' was not found in '"
+                                + fasta.getPath() + "'");
+                    }
+                }
+                return this.nextSequence != null;
+            }
+
+            public Sequence next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Sequence s = this.nextSequence;
+                this.nextSequence = null;
+                return s;
+            }
+        };
+    }
+
+    /**
+     * Returns the start of the first record at or after the given file offset
+     * (or the file length if there are no more records).
+     */
+    public long nextRecordStart(long pos) {
+        if (pos <= 0) {
+            return 0;
+        }
+        int lo = 0;
+        int hi = this.entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.entries.get(mid).start < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (lo < this.entries.size()) ? this.entries.get(lo).start : this.fastaLength;
+    }
+
+    /**
+     * Splits the file into byte ranges of about <code>splitSize</code> bytes
+     * (at least one record each) that start and end on record boundaries.
+     *
+     * @return the boundaries, from zero to the file length; range i is from
+     * boundary i to boundary i + 1.
+     */
+    public long[] split(long splitSize) {
+        if (splitSize < 1) {
+            throw new IllegalArgumentException("Split size must be at least one byte");
+        }
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(0L);
+        long last = 0;
+        for (Entry e : this.entries) {
+            if (e.start - last >= splitSize) {
+                bounds.add(e.start);
+                last = e.start;
+            }
+        }
+        if (this.fastaLength > last) {
+            bounds.add(this.fastaLength);
+        }
+        long[] b = new long[bounds.size()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = bounds.get(i);
+        }
+        return b;
+    }
+
+    /**
+     * Writes a <tt>.fai</tt> index next to each of the given FASTA files.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("FastaIndex <fasta file>...");
+            return;
+        }
+        for (String arg : args) {
+            File fasta = new File(arg);
+            FastaIndex index = build(fasta);
+            index.write(getIndexFile(fasta));
+            LOG.info(String.format("Indexed %d sequences in '%s'", index.size(), fasta.getPath()));
+        }
+    }
+}
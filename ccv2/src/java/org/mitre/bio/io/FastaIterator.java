@@ -20,12 +20,15 @@
 
 package org.mitre.bio.io;
 
+import org.mitre.bio.PackedSequence;
 import org.mitre.bio.Sequence;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -35,6 +38,12 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * A Simple FASTA file parser.
+ * <P>
+ * Files given by name can be gzip or block-gzip (BGZF) compressed, see
+ * {@link BgzfInputStream}.
+ * <P>
+ * With {@link #setPacked(boolean)} the sequences are returned as
+ * {@link PackedSequence}s, packed line by line as they are read.
  *
  * @author Matt Peterson
  */
@@ -46,6 +55,7 @@ public class FastaIterator extends SequenceIterator {
     private boolean returnSeq = false;
     private BufferedReader buffer;
     private List<String> dirList = null;
+    private boolean packed = false;
     
     
     public FastaIterator(File file) {
@@ -54,10 +64,15 @@ public class FastaIterator extends SequenceIterator {
             this.dirList = new ArrayList<String>();
         } else {
             try {
-                this.buffer = new BufferedReader(new FileReader(file));
+                /** gzip and BGZF (block-gzip) files are decompressed as we go */
+                this.buffer = new BufferedReader(new InputStreamReader(
+                        BgzfInputStream.decompress(new FileInputStream(file))));
             } catch (FileNotFoundException ex) {
                 LOG.fatal("File '" + file.getPath() + "' was not found!");
                 this.buffer = null;
+            } catch (IOException ex) {
+                LOG.fatal("Unable to read file '" + file.getPath() + "'!", ex);
+                this.buffer = null;
             }
         }
     }
@@ -71,6 +86,17 @@ public class FastaIterator extends SequenceIterator {
     }
     
 
+    /**
+     * Return the sequences as {@link PackedSequence}s (default is <code>false</code>).
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    public boolean isPacked() {
+        return this.packed;
+    }
+
     public Sequence next() {
         if (!returnSeq) {
             if (!hasNext() ) {
@@ -149,25 +175,35 @@ public class FastaIterator extends SequenceIterator {
             desc = header.substring(endname+1, header.length());
         }
         
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = null;
+        PackedSequence.Builder pb = null;
+        if (this.packed) {
+            pb = new PackedSequence.Builder();
+        } else {
+            sb = new StringBuilder();
+        }
         while (reading) {
             try {
                 buffer.mark(2);
                 int first = buffer.read();
                 if (first == -1) {
-                    nextSequence = new Sequence(name, desc, sb.toString());
+                    nextSequence = (pb != null) ? pb.build(name, desc) : new Sequence(name, desc, sb.toString());
                     returnSeq = true;
                     return true;
                 }
                 
                 if ((char) first == '>') {
                     buffer.reset();
-                    nextSequence = new Sequence(name, desc, sb.toString());
+                    nextSequence = (pb != null) ? pb.build(name, desc) : new Sequence(name, desc, sb.toString());
                     returnSeq = true;
                     return true;
                 } else {
                     buffer.reset();
-                    sb.append(buffer.readLine().trim());
+                    if (pb != null) {
+                        pb.append(buffer.readLine().trim());
+                    } else {
+                        sb.append(buffer.readLine().trim());
+                    }
                 }
             } catch (IOException ioe) {
                 ioe.printStackTrace();
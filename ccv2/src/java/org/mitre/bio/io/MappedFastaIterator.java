@@ -0,0 +1,475 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+
+package org.mitre.bio.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.bio.ByteSequence;
+import org.mitre.bio.PackedSequence;
+import org.mitre.bio.Sequence;
+
+/**
+ * A FASTA file parser that works on the bytes of a memory-mapped file.
+ * <P>
+ * This parses the same way as {@link FastaIterator} (each sequence line is
+ * trimmed of white space and the header is split into the name and description
+ * at the first space) but returns {@link ByteSequence}s. A sequence that is on
+ * a single line is a view into the mapped file; otherwise its lines are copied
+ * once into a new buffer. No <code>String</code>s are made for the residues.
+ * <P>
+ * Files are mapped in windows (at most 2GB), so files of any size can be read
+ * as long as each record fits in a window. Given a directory, all of the files
+ * in it are read in name order. Files that are gzip or BGZF compressed cannot
+ * be mapped, so they are inflated with {@link BgzfInputStream#decompress} and
+ * parsed by a {@link FastaIterator}. A single (uncompressed) file can also be
+ * read over a byte range, such as one from {@link FastaIndex#split}.
+ * <P>
+ * With {@link #setPacked(boolean)} the residues are packed straight from the
+ * mapped bytes into {@link PackedSequence}s instead.
+ *
+ * @author Marc Colosimo
+ */
+public class MappedFastaIterator extends SequenceIterator {
+
+    private static final Log LOG = LogFactory.getLog("MappedFastaIterator");
+
+    /** The largest window we map */
+    public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /** Headers are decoded the same way as FileReader would */
+    private static final Charset HEADER_CHARSET = Charset.defaultCharset();
+
+    private final int windowSize;
+
+    /** Files still to be read */
+    private final List<File> files;
+
+    /** The byte range to read of a single file */
+    private final long rangeStart;
+    private final long rangeEnd;
+
+    private FileChannel channel = null;
+    private long fileSize;
+
+    /** The current compressed file, which is read as it is inflated */
+    private BufferedReader compressed = null;
+    private FastaIterator compressedIter = null;
+
+    /** The currently mapped window and its offset in the file */
+    private ByteBuffer window = null;
+    private long windowStart;
+
+    /** Our position in the window */
+    private int pos;
+
+    private Sequence nextSequence = null;
+    private boolean packed = false;
+
+    /** Start and end of each sequence line of the current record */
+    private int[] lines = new int[64];
+
+    public MappedFastaIterator(File file) {
+        this(file, MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * Construct a new <tt>MappedFastaIterator</tt> object.
+     *
+     * @param file the FASTA file or a directory of FASTA files.
+     * @param windowSize the most bytes to map at one time.
+     */
+    public MappedFastaIterator(File file, int windowSize) {
+        this(file, 0L, Long.MAX_VALUE, windowSize);
+    }
+
+    /**
+     * Construct a new <tt>MappedFastaIterator</tt> object that reads the records
+     * in part of a file. The end of the range is treated as the end of the
+     * file, so both ends should be record boundaries (see {@link FastaIndex}).
+     *
+     * @param file the FASTA file.
+     * @param start the offset of the first record.
+     * @param end the offset just past the last record.
+     */
+    public MappedFastaIterator(File file, long start, long end) {
+        this(file, start, end, MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * Construct a new <tt>MappedFastaIterator</tt> object.
+     *
+     * @param file the FASTA file (or a directory of FASTA files when reading
+     * all of it).
+     * @param start the offset of the first record.
+     * @param end the offset just past the last record.
+     * @param windowSize the most bytes to map at one time.
+     */
+    public MappedFastaIterator(File file, long start, long end, int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("Window size must be at least 2 bytes");
+        }
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range " + start + " to " + end);
+        }
+        if (file.isDirectory() && (start != 0 || end != Long.MAX_VALUE)) {
+            throw new IllegalArgumentException("Can only read a range of a single file");
+        }
+        this.windowSize = windowSize;
+        this.rangeStart = start;
+        this.rangeEnd = end;
+        this.files = new ArrayList<File>();
+        if (file.isDirectory()) {
+            File[] list = file.listFiles();
+            if (list != null) {
+                Arrays.sort(list);
+                for (File f : list) {
+                    if (f.isFile()) {
+                        this.files.add(f);
+                    }
+                }
+            }
+        } else if (file.exists()) {
+            this.files.add(file);
+        } else {
+            LOG.fatal("File '" + file.getPath() + "' was not found!");
+        }
+    }
+
+    /**
+     * Return the sequences as {@link PackedSequence}s (default is <code>false</code>).
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    public boolean isPacked() {
+        return this.packed;
+    }
+
+    public Sequence next() {
+        if (this.nextSequence == null && !this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Sequence s = this.nextSequence;
+        this.nextSequence = null;
+        return s;
+    }
+
+    public boolean hasNext() {
+        if (this.nextSequence != null) {
+            return true;
+        }
+        try {
+            while (true) {
+                if (this.channel == null && this.compressed == null && !this.openNextFile()) {
+                    return false;
+                }
+                if (this.compressed != null) {
+                    if (this.compressedIter.hasNext()) {
+                        this.nextSequence = this.compressedIter.next();
+                        return true;
+                    }
+                    this.closeFile();
+                    continue;
+                }
+                this.nextSequence = this.readRecord();
+                if (this.nextSequence != null) {
+                    return true;
+                }
+                this.closeFile();
+            }
+        } catch (IOException ioe) {
+            LOG.warn(ioe);
+            this.closeFile();
+            this.files.clear();
+            return false;
+        }
+    }
+
+    private boolean openNextFile() throws IOException {
+        while (!this.files.isEmpty()) {
+            File file = this.files.remove(0);
+            if (BgzfInputStream.isGzip(file)) {
+                if (this.rangeStart != 0 || this.rangeEnd != Long.MAX_VALUE) {
+                    throw new IOException("Can not read a range of compressed file '" + file.getPath() + "'");
+                }
+                this.compressed = new BufferedReader(new InputStreamReader(
+                        BgzfInputStream.decompress(new FileInputStream(file))));
+                this.compressedIter = new FastaIterator(this.compressed);
+                this.compressedIter.setPacked(this.packed);
+                return true;
+            }
+            FileInputStream fis = new FileInputStream(file);
+            this.channel = fis.getChannel();
+            this.fileSize = Math.min(this.channel.size(), this.rangeEnd);
+            if (this.fileSize > this.rangeStart) {
+                this.map(this.rangeStart);
+                return true;
+            }
+            this.closeFile();
+        }
+        return false;
+    }
+
+    private void closeFile() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ioe) {
+                LOG.warn(ioe);
+            }
+        }
+        if (this.compressed != null) {
+            try {
+                this.compressed.close();
+            } catch (IOException ioe) {
+                LOG.warn(ioe);
+            }
+        }
+        this.channel = null;
+        this.compressed = null;
+        this.compressedIter = null;
+        this.window = null;
+    }
+
+    /**
+     * Maps the window starting at the given file offset.
+     */
+    private void map(long start) throws IOException {
+        long size = Math.min(this.fileSize - start, this.windowSize);
+        MappedByteBuffer mbb = this.channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        this.window = mbb;
+        this.windowStart = start;
+        this.pos = 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the file continues past the window.
+     */
+    private boolean moreInFile() {
+        return this.windowStart + this.window.limit() < this.fileSize;
+    }
+
+    /**
+     * Reads the next record from the current file.
+     *
+     * @return the sequence or <code>null</code> if there are no more in this file.
+     */
+    private Sequence readRecord() throws IOException {
+        /** Get to the next sequence */
+        while (true) {
+            final ByteBuffer buf = this.window;
+            final int limit = buf.limit();
+            while (this.pos < limit && buf.get(this.pos) != '>') {
+                this.pos++;
+            }
+            if (this.pos < limit) {
+                break;
+            }
+            if (!this.moreInFile()) {
+                return null;
+            }
+            this.map(this.windowStart + limit);
+        }
+
+        /** Parse the record, remapping from its start if it runs off the window */
+        while (true) {
+            Sequence s = this.parseRecord(this.pos);
+            if (s != null) {
+                return s;
+            }
+            if (this.pos == 0 && this.window.limit() == this.windowSize) {
+                throw new IOException("Record at offset " + this.windowStart
+                        + " is larger than the mapping window (" + this.windowSize + " bytes)");
+            }
+            this.map(this.windowStart + this.pos);
+        }
+    }
+
+    /**
+     * Parses the record whose '&gt;' is at <code>start</code>.
+     *
+     * @return the sequence or <code>null</code> if the record is not complete
+     * in this window.
+     */
+    private Sequence parseRecord(int start) {
+        final ByteBuffer buf = this.window;
+        final int limit = buf.limit();
+        final boolean more = this.moreInFile();
+
+        /** Header */
+        int p = start + 1;
+        int eol = this.lineEnd(p);
+        if (eol == limit && more) {
+            return null;
+        }
+        String header = this.decode(p, eol);
+        p = this.nextLine(eol);
+        if (p < 0) {
+            return null;
+        }
+        String name;
+        String desc;
+        int endname = header.indexOf(" ");
+        if (endname == -1) {
+            name = header;
+            desc = "";
+        } else {
+            name = header.substring(0, endname);
+            desc = header.substring(endname + 1, header.length());
+        }
+
+        /** Sequence lines, trimmed */
+        int nlines = 0;
+        int total = 0;
+        while (true) {
+            if (p == limit) {
+                if (more) {
+                    return null;
+                }
+                break;
+            }
+            if (buf.get(p) == '>') {
+                break;
+            }
+            eol = this.lineEnd(p);
+            if (eol == limit && more) {
+                return null;
+            }
+            int a = p;
+            int b = eol;
+            while (a < b && (buf.get(a) & 0xFF) <= ' ') {
+                a++;
+            }
+            while (b > a && (buf.get(b - 1) & 0xFF) <= ' ') {
+                b--;
+            }
+            if (b > a) {
+                if (nlines * 2 + 2 > this.lines.length) {
+                    this.lines = Arrays.copyOf(this.lines, this.lines.length * 2);
+                }
+                this.lines[nlines * 2] = a;
+                this.lines[nlines * 2 + 1] = b;
+                nlines++;
+                total += b - a;
+            }
+            if (eol == limit) {
+                p = limit;
+            } else {
+                p = this.nextLine(eol);
+                if (p < 0) {
+                    return null;
+                }
+            }
+        }
+        this.pos = p;
+
+        if (this.packed) {
+            PackedSequence.Builder pb = new PackedSequence.Builder();
+            for (int i = 0; i < nlines; i++) {
+                pb.append(buf, this.lines[i * 2], this.lines[i * 2 + 1]);
+            }
+            return pb.build(name, desc);
+        }
+
+        ByteBuffer residues;
+        if (nlines == 1) {
+            /** zero-copy view of the mapped file */
+            residues = buf.duplicate();
+            residues.limit(this.lines[1]);
+            residues.position(this.lines[0]);
+        } else {
+            byte[] bytes = new byte[total];
+            ByteBuffer src = buf.duplicate();
+            int off = 0;
+            for (int i = 0; i < nlines; i++) {
+                int a = this.lines[i * 2];
+                int b = this.lines[i * 2 + 1];
+                src.limit(b);
+                src.position(a);
+                src.get(bytes, off, b - a);
+                off += b - a;
+            }
+            residues = ByteBuffer.wrap(bytes);
+        }
+        return new ByteSequence(name, desc, residues);
+    }
+
+    /**
+     * Returns the position of the '\n' or '\r' ending the line starting at p
+     * (or the window limit).
+     */
+    private int lineEnd(int p) {
+        final ByteBuffer buf = this.window;
+        final int limit = buf.limit();
+        while (p < limit) {
+            byte c = buf.get(p);
+            if (c == '\n' || c == '\r') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the start of the line after the line ending at eol (treating
+     * "\r\n" as one line ending) or -1 if we can not tell in this window.
+     */
+    private int nextLine(int eol) {
+        final ByteBuffer buf = this.window;
+        final int limit = buf.limit();
+        if (eol == limit) {
+            return limit;
+        }
+        if (buf.get(eol) == '\r') {
+            if (eol + 1 == limit) {
+                return this.moreInFile() ? -1 : limit;
+            }
+            if (buf.get(eol + 1) == '\n') {
+                return eol + 2;
+            }
+        }
+        return eol + 1;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer src = this.window.duplicate();
+        src.limit(end);
+        src.position(start);
+        src.get(bytes);
+        return new String(bytes, HEADER_CHARSET);
+    }
+}
@@ -14,7 +14,9 @@
 package org.mitre.ccv;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,6 +30,7 @@ import org.apache.commons.logging.LogFactory;
 
 import org.apache.commons.math.linear.RealMatrix;
 import org.mitre.bio.phylo.DistanceMatrix;
+import org.mitre.clustering.SimilarityGraph;
 import org.mitre.math.linear.RealMatrixUtils;
 //import weka.core.matrix.Matrix;
 
@@ -43,7 +46,19 @@ abstract public class AbstractVectorSet implements VectorSet {
 
     private static final Log LOG = LogFactory.getLog("AbstractVectorSet");
 
-    private final RealMatrixUtils matrixUtils = RealMatrixUtils.getSingleton();
+    /** Threads to calculate distances with */
+    private int distanceThreads = 1;
+    /** Largest fraction of non-zero entries for the sparse distance kernels */
+    private double sparseDensity = DistanceEngine.DEFAULT_SPARSE_DENSITY;
+    /** How the distance matrices are stored */
+    private int distancePrecision = RealMatrixUtils.PRECISION_DOUBLE;
+    private boolean mappedDistances = false;
+
+    /**
+     * Largest distance (in the exponent) from the mean that a value can add
+     * to a likelihood; <code>Math.exp</code> of anything below -745.2 is zero.
+     */
+    private static final double MAX_EXPONENT = 750;
 
     /**
      * Add the sequence to this set of vectors.
@@ -68,6 +83,77 @@ abstract public class AbstractVectorSet implements VectorSet {
      */
     abstract public Integer getStop();
 
+    /**
+     * Sets the number of threads the distance matrices are calculated with
+     * (see {@link DistanceEngine}).
+     */
+    public void setDistanceThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.distanceThreads = threads;
+    }
+
+    public int getDistanceThreads() {
+        return this.distanceThreads;
+    }
+
+    /**
+     * Sets the largest fraction of non-zero entries of the complete matrix
+     * that uses the sparse distance kernels (see {@link DistanceEngine}).
+     */
+    public void setSparseDensity(double density) {
+        if (!(density >= 0.0 && density <= 1.0)) {
+            throw new IllegalArgumentException("Density must be between 0 and 1");
+        }
+        this.sparseDensity = density;
+    }
+
+    public double getSparseDensity() {
+        return this.sparseDensity;
+    }
+
+    /**
+     * Sets whether the distance matrices store <code>double</code>s
+     * ({@link RealMatrixUtils#PRECISION_DOUBLE}, the default) or
+     * <code>float</code>s ({@link RealMatrixUtils#PRECISION_FLOAT}).
+     */
+    public void setDistancePrecision(int precision) {
+        if (precision != RealMatrixUtils.PRECISION_DOUBLE
+                && precision != RealMatrixUtils.PRECISION_FLOAT) {
+            throw new IllegalArgumentException("Distances must be stored as doubles or floats");
+        }
+        this.distancePrecision = precision;
+    }
+
+    public int getDistancePrecision() {
+        return this.distancePrecision;
+    }
+
+    /**
+     * Sets whether the distance matrices are kept in memory-mapped temporary
+     * files instead of direct memory.
+     */
+    public void setMappedDistances(boolean mappedDistances) {
+        this.mappedDistances = mappedDistances;
+    }
+
+    public boolean isMappedDistances() {
+        return this.mappedDistances;
+    }
+
+    /**
+     * Returns the engine the distance matrices are calculated with. The
+     * complete matrix given to it is not changed.
+     */
+    protected DistanceEngine getDistanceEngine() {
+        DistanceEngine engine = new DistanceEngine(this.distanceThreads);
+        engine.setSparseDensity(this.sparseDensity);
+        engine.setDistancePrecision(this.distancePrecision);
+        engine.setMappedDistances(this.mappedDistances);
+        return engine;
+    }
+
     /**
      * Gets the names of all of the sequences in this set.
      * 
@@ -87,6 +173,10 @@ abstract public class AbstractVectorSet implements VectorSet {
      * Computational Statistics & Data Analysis 51(2):918-930
      * {@link http://www.sciencedirect.com/science/journal/01679473}
      * {@link http://dx.doi.org/10.1016/j.csda.2005.09.010}
+     * <P>
+     * The entropies are copied into an array once; the mean and variance of
+     * both sides of each split are kept as running sums, so only the
+     * likelihoods are recalculated per split.
      * 
      * @param pairs
      * @param numLookAhead how far to look before returning. 1 returns default. 
@@ -94,9 +184,23 @@ abstract public class AbstractVectorSet implements VectorSet {
      * @return
      */
     public int getNmersByLikelihood(TreeSet<EntropyPair> pairs, Integer numLookAhead) {
-        // Iterate over the set
-        int count = 0;
-        final int paircount = pairs.size();
+        /** The entropies, highest first */
+        final double[] values = new double[pairs.size()];
+        int n = 0;
+        for (EntropyPair ep : pairs) {
+            values[n++] = ep.value;
+        }
+        return this.getNmersByLikelihood(values, numLookAhead);
+    }
+
+    /**
+     * Calculates the optimal dimensionality from the entropies, sorted
+     * highest first.
+     *
+     * @see #getNmersByLikelihood(TreeSet, Integer)
+     */
+    public int getNmersByLikelihood(final double[] values, Integer numLookAhead) {
+        final int paircount = values.length;
 
         int optim = 0;
         double maxLikelihood = -Double.MAX_VALUE;
@@ -110,35 +214,40 @@ abstract public class AbstractVectorSet implements VectorSet {
             lookAhead = 200;
         }
 
-        Iterator<EntropyPair> pairIterator = pairs.iterator();
-
-        if (pairIterator.hasNext()) {
-            pairIterator.next();
+        /** Mean and variance of each tail (values[i..]), built from the end */
+        final double[] tailMeans = new double[paircount];
+        final double[] tailVars = new double[paircount];
+        double mean = 0;
+        double s = 0;
+        int n = 0;
+        for (int i = paircount - 1; i >= 0; i--) {
+            final double x = values[i];
+            n++;
+            final double delta = x - mean;
+            mean += delta / n;
+            s += delta * (x - mean);
+            tailMeans[i] = mean;
+            tailVars[i] = s / n;
         }
 
-        while (pairIterator.hasNext()) {
-            count++;
-            EntropyPair ep = pairIterator.next();
-            // Split up the set into two seperate sets
-            // Think about using ArrayList and keeping track of begin, split, end
-            SortedSet<EntropyPair> l1 = pairs.headSet(ep);
-            SortedSet<EntropyPair> l2 = pairs.tailSet(ep);
-
-            // Calculate the parameters (mean, variance).  Should this function
-            // be moved into another seperate class, to reuse?
-            final double[] stats1 = calculateParameters(l1);
-            final double[] stats2 = calculateParameters(l2);
+        /**
+         * Split the values into the first count and the rest, keeping the
+         * head's mean and variance as we go (see calculateParameters)
+         */
+        mean = 0;
+        s = 0;
+        for (int count = 1; count < paircount; count++) {
+            final double x = values[count - 1];
+            final double delta = x - mean;
+            mean += delta / count;
+            s += delta * (x - mean);
 
-            final double u1 = stats1[0];
-            final double u2 = stats2[0];
-            final double var = ((count - 1) * stats1[1] + (paircount - count - 1) * stats2[1]) / (paircount - 2);
+            final double u1 = mean;
+            final double u2 = tailMeans[count];
+            final double var = ((count - 1) * (s / count) + (paircount - count - 1) * tailVars[count]) / (paircount - 2);
 
-            /*
-            double likelihood = 0;
-            likelihood += getLikelihood(l1, u1, sigma);
-            likelihood += getLikelihood(l2, u2, sigma);
-*/
-            final double likelihood = getLikelihood(l1, u1, var) + getLikelihood(l2, u2, var);
+            final double likelihood = getLikelihood(values, 0, count, u1, var)
+                    + getLikelihood(values, count, paircount, u2, var);
             if (likelihood > maxLikelihood) {
                 maxLikelihood = likelihood;
                 optim = count;
@@ -199,17 +308,23 @@ abstract public class AbstractVectorSet implements VectorSet {
     }
 
     /**
-     * Calculates the likelihood for a given set
-     * @param p
+     * Calculates the likelihood of the values from (inclusive) to (exclusive),
+     * which are sorted highest first.
+     * <P>
+     * Only the values within {@link #MAX_EXPONENT} of the mean can add to the
+     * sum (the rest underflow to zero), so only those are looked at.
      */
-    private double getLikelihood(SortedSet<EntropyPair> epset, double mean, double sigma) {
-        double l = 0;
+    private double getLikelihood(final double[] values, int from, int to,
+            final double mean, final double sigma) {
+        final double limit = Math.sqrt(2 * sigma * MAX_EXPONENT);
+        if (limit > 0 && !Double.isInfinite(limit)) {
+            from = firstBelow(values, from, to, mean + limit);
+            to = firstBelow(values, from, to, mean - limit);
+        }
 
-        Iterator<EntropyPair> i = epset.iterator();
-        while (i.hasNext()) {
-            EntropyPair ep = i.next();
-            final double v = ep.value;
-            final double g = gaussianValue(v, mean, sigma);
+        double l = 0;
+        for (int i = from; i < to; i++) {
+            final double g = gaussianValue(values[i], mean, sigma);
             if (g > 0.0) {
                 l += g;
             }
@@ -218,6 +333,22 @@ abstract public class AbstractVectorSet implements VectorSet {
         return l;
     }
 
+    /**
+     * Returns the first index from (inclusive) to (exclusive) of the values,
+     * sorted highest first, that is below the key (or <code>to</code>).
+     */
+    private static int firstBelow(final double[] values, int from, int to, final double key) {
+        while (from < to) {
+            final int mid = (from + to) >>> 1;
+            if (values[mid] >= key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
     /**
      * Find the m top n-mers with the highest entropy.
      *  
@@ -238,34 +369,7 @@ abstract public class AbstractVectorSet implements VectorSet {
 
             return nmers;
         }
-        /** Generate the vector matrix for all sequences. This is 1-D. */
-        CompleteMatrix sMtx = this.getCompleteMatrix(nmers);
-        TreeSet<EntropyPair> entSet = new TreeSet<EntropyPair>();
-        ArrayList<String> nmersArray = new ArrayList<String>(nmers);
-
-        CompleteMatrix cmtx = this.getFullMatrix(nmers);
-        RealMatrix mtx = cmtx.getMatrix();
-        int r = mtx.getRowDimension();
-        int c = mtx.getColumnDimension();
-
-        /** This seems numerically stable */
-        LOG.debug(String.format("Calculating revised relative entropies (%d by %d)", r, c));
-        for (int i = 0; i < r; ++i) {
-            //for (int i = r - 1; i >= 0; i--) {
-            double ent = 0;
-            for (int j = 0; j < c; j++) {
-                //for (int j = c - 1; j >= 0; j--) {
-                if (mtx.getEntry(i, j) != 0) {
-                    ent += Math.abs(mtx.getEntry(i, j)) * Math.log(Math.abs(mtx.getEntry(i, j) / sMtx.get(i, 0)));
-                }
-            }
-
-            ent = Math.abs(ent);
-            EntropyPair p = new EntropyPair(nmersArray.get(i), ent);
-            entSet.add(p);
-        }
-        nmersArray = null;
-
+        TreeSet<EntropyPair> entSet = this.calculateEntropies(nmers);
 
         if (m < 0) {
             /**
@@ -310,6 +414,43 @@ abstract public class AbstractVectorSet implements VectorSet {
         return top;
     }
 
+    /**
+     * Calculates the revised relative entropy of each n-mer over the samples.
+     * <P>
+     * This builds the full matrix of the n-mers; sets that can walk the
+     * n-mers of each vector should override it so that the matrix is never
+     * made.
+     *
+     * @param nmers the n-mers to calculate the entropies of.
+     * @return the entropies, highest first.
+     */
+    protected TreeSet<EntropyPair> calculateEntropies(TreeSet<String> nmers) {
+        /** Generate the vector matrix for all sequences. This is 1-D. */
+        CompleteMatrix sMtx = this.getCompleteMatrix(nmers);
+        TreeSet<EntropyPair> entSet = new TreeSet<EntropyPair>();
+        ArrayList<String> nmersArray = new ArrayList<String>(nmers);
+
+        CompleteMatrix cmtx = this.getFullMatrix(nmers);
+        RealMatrix mtx = cmtx.getMatrix();
+        int r = mtx.getRowDimension();
+        int c = mtx.getColumnDimension();
+
+        /** This seems numerically stable */
+        LOG.debug(String.format("Calculating revised relative entropies (%d by %d)", r, c));
+        for (int i = 0; i < r; ++i) {
+            double full = sMtx.get(i, 0);
+            double ent = 0;
+            for (int j = 0; j < c; j++) {
+                double v = mtx.getEntry(i, j);
+                if (v != 0) {
+                    ent += Math.abs(v) * Math.log(Math.abs(v / full));
+                }
+            }
+            entSet.add(new EntropyPair(nmersArray.get(i), Math.abs(ent)));
+        }
+        return entSet;
+    }
+
     /**
      * Export an the Entropies to a file.
      * 
@@ -339,31 +480,7 @@ abstract public class AbstractVectorSet implements VectorSet {
      * @return pal.distance.DistanceMatrix representing the distances
      */
     public DistanceMatrix createEuclidianDistanceMatrix(CompleteMatrix completeMatrix) {
-        Integer size = completeMatrix.getNames().size();
-
-        DistanceMatrix distMatrix = new DistanceMatrix(new double[size][size],
-                new String[completeMatrix.getNames().size()]);
-
-        RealMatrix matrix = completeMatrix.getMatrix();
-        matrixUtils.normalizeMatrix(matrix);
-
-        int nmerSize = matrix.getRowDimension();
-        for (int i = 0; i < size; ++i) {
-            distMatrix.setIdentifier(i, completeMatrix.getNames().get(i));
-            RealMatrix mI = matrix.getSubMatrix(0, nmerSize - 1, i, i);
-            for (int j = i + 1; j < size; ++j) {
-                if (j == i) {
-                    distMatrix.setDistance(i, j, 0);
-                } else {
-                    RealMatrix mJ = matrix.getSubMatrix(0,  nmerSize - 1, j, j);
-                    RealMatrix mT = mI.subtract(mJ);  //mI.minus(mJ);
-                    mT = matrixUtils.arrayTimes(mT, mT);
-                    double dist = Math.sqrt(matrixUtils.norm1(mT));
-                    distMatrix.setDistance(i, j, dist);
-                }
-            }
-        }
-        return distMatrix;
+        return this.getDistanceEngine().create(completeMatrix, DistanceEngine.EUCLIDEAN);
     }
 
     /**
@@ -373,35 +490,7 @@ abstract public class AbstractVectorSet implements VectorSet {
      * @return pal.distance.DistanceMatrix representing the distances
      */
     public DistanceMatrix createMHDistanceMatrix(CompleteMatrix completeMatrix) {
-        Integer size = completeMatrix.getNames().size();
-
-        DistanceMatrix distMatrix = new DistanceMatrix(new double[size][size],
-                new String[completeMatrix.getNames().size()]);
-
-        RealMatrix matrix = completeMatrix.getMatrix();
-        matrixUtils.normalizeMatrix(matrix);
-
-        int nmerSize = matrix.getRowDimension();//might be column?
-        int[] rowInds = new int[nmerSize];
-        for (int i = 0; i < nmerSize; ++i) {
-            rowInds[i] = i;
-        }
-
-        for (int i = 0; i < size; ++i) {
-            distMatrix.setIdentifier(i, completeMatrix.getNames().get(i));
-            RealMatrix mI = matrix.getSubMatrix(0, nmerSize - 1, i, i);
-            for (int j = i + 1; j < size; ++j) {
-                if (j == i) {
-                    distMatrix.setDistance(i, j, 0);
-                } else {
-                    RealMatrix mJ = matrix.getSubMatrix(0, nmerSize - 1, j, j);
-                    RealMatrix mT = mI.subtract(mJ);         //mI.minus(mJ);
-                    double dist = matrixUtils.norm1(mT);     //mT.norm1();
-                    distMatrix.setDistance(i, j, dist);
-                }
-            }
-        }
-        return distMatrix;
+        return this.getDistanceEngine().create(completeMatrix, DistanceEngine.MANHATTAN);
     }
 
     /**
@@ -411,29 +500,7 @@ abstract public class AbstractVectorSet implements VectorSet {
      * @return pal.distance.DistanceMatrix representing the distances
      */
     public DistanceMatrix createESDistanceMatrix(CompleteMatrix completeMatrix) {
-        Integer size = completeMatrix.getNames().size();
-        DistanceMatrix distMatrix = new DistanceMatrix(new double[size][size],
-               new String[completeMatrix.getNames().size()]);
-
-        RealMatrix matrix = completeMatrix.getMatrix();
-        matrixUtils.normalizeMatrix(matrix);
-
-        int nmerSize = matrix.getRowDimension();
-        for (int i = 0; i < size; ++i) {
-            distMatrix.setIdentifier(i, completeMatrix.getNames().get(i));
-            RealMatrix mI = matrix.getSubMatrix(0, nmerSize - 1, i, i);
-            for (int j = i + 1; j < size; ++j) {
-                if (j == i) {
-                    distMatrix.setDistance(i, j, 0);
-                } else {
-                    RealMatrix mJ = matrix.getSubMatrix(0, nmerSize - 1, j, j);
-                    RealMatrix mT = mI.subtract(mJ);
-                    mT = matrixUtils.arrayTimes(mT, mT);
-                    distMatrix.setDistance(i, j, matrixUtils.norm1(mT));
-                }
-            }
-        }
-        return distMatrix;
+        return this.getDistanceEngine().create(completeMatrix, DistanceEngine.SQUARED_EUCLIDEAN);
     }
 
     /**
@@ -443,35 +510,7 @@ abstract public class AbstractVectorSet implements VectorSet {
      * @return pal.distance.DistanceMatrix representing the distances
      */
     public DistanceMatrix createCosineDistanceMatrix(CompleteMatrix completeMatrix) {
-        Integer size = completeMatrix.getNames().size();
-        DistanceMatrix distMatrix = new DistanceMatrix(new double[size][size],
-                new String[completeMatrix.getNames().size()]);
-
-        RealMatrix matrix = completeMatrix.getMatrix();
-        matrixUtils.normalizeMatrix(matrix);
-
-        int nmerSize = matrix.getRowDimension();
-        for (int i = 0; i < size; ++i) {
-            distMatrix.setIdentifier(i,completeMatrix.getNames().get(i));
-            RealMatrix mI = matrix.getSubMatrix(0, nmerSize - 1, i, i);
-            RealMatrix mIT = mI.transpose();
-            for (int j = i + 1; j < size; ++j) {
-                if (j == i) {
-                    distMatrix.setDistance(i, j, 0);
-                } else {
-                    RealMatrix mJ = matrix.getSubMatrix(0, nmerSize - 1, j, j);
-                    Double dot = mIT.multiply(mJ).getEntry(0, 0);
-                    dot = dot / (matrixUtils.norm2(mI) * matrixUtils.norm2(mJ));
-                    dot = (1.0 - dot) / 2.0;
-                    if (dot < 0) {
-                        dot = 0.0;
-                    }
-                    distMatrix.setDistance(i, j, dot);
-                }
-            }
-        }
-
-        return distMatrix;
+        return this.getDistanceEngine().create(completeMatrix, DistanceEngine.COSINE);
     }
 
     /**
@@ -496,13 +535,15 @@ abstract public class AbstractVectorSet implements VectorSet {
         
         List<CompleteCompositionVector> vectors = this.getVectors();
         Integer size = vectors.size();
-        DistanceMatrix distMatrix = new DistanceMatrix(new double[size][size],
-                new String[size]);
+        List<String> names = new ArrayList<String>(size);
+        for (CompleteCompositionVector ccv : vectors) {
+            names.add(ccv.getName());
+        }
+        DistanceMatrix distMatrix = this.getDistanceEngine().createDistanceMatrix(names);
 
         // Cui intersect Cuj count over Cui union Cuj
          for (int i = 0; i < vectors.size(); ++i) {
              CompleteCompositionVector ccvi = vectors.get(i);
-             distMatrix.setIdentifier(i,ccvi.getName());
              Set<String> Cui;
              if (nmerSet == null) {
                  Cui = ccvi.getNmerSet();
@@ -538,6 +579,94 @@ abstract public class AbstractVectorSet implements VectorSet {
         return distMatrix;
     }
 
+    /**
+     * Creates a Jaccard distance matrix estimated from MinHash sketches of
+     * the samples' n-mer sets. Samples that already have a sketch in the
+     * sketch file (by name) are not sketched again, and the sketches of the
+     * rest are added to it.
+     *
+     * @param sketchSize the number of hashes in a sketch.
+     * @param sketchFileName an optional file of sketches (<code>null</code> for none).
+     */
+    public DistanceMatrix createMinHashDistanceMatrix(int sketchSize, String sketchFileName) {
+        File sketchFile = (sketchFileName == null) ? null : new File(sketchFileName);
+        MinHashSketches sketches = null;
+        if (sketchFile != null) {
+            try {
+                sketches = MinHashSketches.load(sketchFile, this.getStart(), this.getStop(), sketchSize);
+            } catch (IOException ioe) {
+                LOG.error(String.format("Error in reading sketch file '%s'!", sketchFileName), ioe);
+            }
+        }
+        if (sketches == null) {
+            sketches = new MinHashSketches(this.getStart(), this.getStop(), sketchSize);
+        }
+
+        List<CompleteCompositionVector> vectors = this.getVectors();
+        ArrayList<String> names = new ArrayList<String>(vectors.size());
+        int sketched = 0;
+        for (CompleteCompositionVector ccv : vectors) {
+            names.add(ccv.getName());
+            if (!sketches.contains(ccv.getName())) {
+                sketches.addSample(ccv.getName(), this.getNmerHashes(ccv));
+                sketched++;
+            }
+        }
+        LOG.debug(String.format("createMinHashDistanceMatrix: Sketched %d of %d samples",
+                sketched, vectors.size()));
+
+        if (sketchFile != null && sketched > 0) {
+            try {
+                sketches.save(sketchFile);
+            } catch (IOException ioe) {
+                LOG.error(String.format("Error in writing sketch file '%s'!", sketchFileName), ioe);
+            }
+        }
+        return sketches.createDistanceMatrix(names, this.getDistanceEngine());
+    }
+
+    /**
+     * Creates a sparse graph of the pairs of samples with a Jaccard
+     * similarity of at least the threshold from MinHash signatures, and logs
+     * the fraction of the pairs it found among up to
+     * {@link MinHashNeighbors#DEFAULT_RECALL_SAMPLES} of the samples.
+     *
+     * @param threshold the smallest similarity of a pair.
+     * @param bins the number of bins in a signature.
+     */
+    public SimilarityGraph createMinHashSimilarityGraph(double threshold, int bins) {
+        List<CompleteCompositionVector> vectors = this.getVectors();
+        MinHashNeighbors neighbors = new MinHashNeighbors(threshold, bins);
+        for (CompleteCompositionVector ccv : vectors) {
+            neighbors.addSample(this.getNmerHashes(ccv));
+        }
+        SimilarityGraph graph = neighbors.createGraph();
+
+        int[] points = MinHashNeighbors.spread(vectors.size(), MinHashNeighbors.DEFAULT_RECALL_SAMPLES);
+        List<long[]> hashes = new ArrayList<long[]>(points.length);
+        for (int p : points) {
+            hashes.add(this.getNmerHashes(vectors.get(p)));
+        }
+        double recall = MinHashNeighbors.recall(graph, points, hashes, threshold);
+        LOG.info(String.format("createMinHashSimilarityGraph: Found %.1f%% of the pairs of %d samples " +
+                "with a Jaccard similarity of at least %f", 100 * recall, points.length, threshold));
+        return graph;
+    }
+
+    /**
+     * Returns the hashes (see {@link MinHashSketches#hash(String)}) of the
+     * n-mers of the vector.
+     */
+    protected long[] getNmerHashes(CompleteCompositionVector ccv) {
+        Set<String> nmers = ccv.getNmerSet();
+        long[] hashes = new long[nmers.size()];
+        int n = 0;
+        for (String nmer : nmers) {
+            hashes[n++] = MinHashSketches.hash(nmer);
+        }
+        return hashes;
+    }
+
     /**
      * Class used for sorting entropy key-value pairs by value
      * 
@@ -19,16 +19,21 @@
  */
 package org.mitre.ccv;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.NoSuchElementException;
 import java.util.ResourceBundle;
 import java.util.MissingResourceException;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.PrintWriter;
 
@@ -51,12 +56,17 @@ import org.apache.xml.serialize.XMLSerializer;
 import org.apache.xml.serialize.OutputFormat;
 
 import org.mitre.ccv.index.IndexedCompleteCompositionVectorSet;
+import org.mitre.ccv.index.PiValueCache;
 import org.mitre.ccv.sql.AbstractVectorSetSQL;
 import org.mitre.ccv.sql.EmbeddedVectorSetSQL;
 import org.mitre.ccv.sql.VectorSetSQL;
 
 import org.mitre.bio.Sequence;
+import org.mitre.bio.io.BgzfInputStream;
+import org.mitre.bio.io.FastaIndex;
 import org.mitre.bio.io.FastaIterator;
+import org.mitre.bio.io.MappedFastaIterator;
+import org.mitre.bio.io.SequenceIterator;
 
 import org.mitre.bio.phylo.DistanceMatrix;
 import org.mitre.bio.phylo.dom.Forest;
@@ -68,6 +78,10 @@ import org.mitre.bio.phylo.tree.UPGMATree;
 
 import org.mitre.bio.phylo.tree.io.NewickWriter;
 import org.mitre.clustering.AffinityPropagation;
+import org.mitre.clustering.ParallelAffinityPropagation;
+import org.mitre.clustering.SimilarityGraph;
+import org.mitre.clustering.SparseAffinityPropagation;
+import org.mitre.math.linear.RealMatrixUtils;
 
 import weka.core.matrix.Matrix;
 
@@ -81,7 +95,7 @@ public class CompleteCompositionVectorMain {
 
     /** Set-up our logger. */
     private static final Log LOG = LogFactory.getLog(CompleteCompositionVectorMain.class);
-    public FastaIterator seqIter = null;
+    public SequenceIterator seqIter = null;
     public Integer begin = 3;
     public Integer end = 9;
     public Integer topNMers = null;
@@ -97,9 +111,23 @@ public class CompleteCompositionVectorMain {
     public String nmersOutFile = null;      // default: Don't write nmers
     public String vectorsOutFile = null;     // default: Don't write vectors to a json file
     public String vectorsInFile = null;     // default: no input from a json file
+    public String vectorsBinFile = null;    // default: Don't write vectors to a binary file
+    public Integer precision = RealMatrixUtils.PRECISION_DOUBLE; // default: double pi-values
+    public Integer distPrecision = RealMatrixUtils.PRECISION_DOUBLE; // default: double distances
+    public Boolean distMapped = false;      // default: distances in direct memory
+    public String distBinFile = null;       // default: Don't write distances to a binary file
+    public String distInFile = null;        // default: calculate the distances
     public String entOutFile = null;        // default: Don't write entropy
     public Boolean embeddedSQL = false;     // default: Use memory, not derby
     public Boolean useSQL = false;          // default: if both SQLs set, this wins
+    public Integer threads = 1;             // default: add sequences serially
+    public Boolean serialAP = false;        // default: cluster with the in-place parallel engine
+    public Long piCache = null;             // default: calculate all pi-values up front
+    public Integer sketchSize = MinHashSketches.DEFAULT_SKETCH_SIZE; // MinHash distances only
+    public String sketchFile = null;        // default: Don't keep MinHash sketches in a file
+    public Double lshThreshold = null;      // default: cluster with the full distance matrix
+    public String knnOutFile = null;        // default: Don't write nearest neighbors
+    public Integer knn = CosineNeighborIndex.DEFAULT_NEIGHBORS; // nearest neighbors only
     private Level logginLevel = Level.WARN; // default: Log level WARN
 
 
@@ -182,7 +210,16 @@ public class CompleteCompositionVectorMain {
         } else if (this.embeddedSQL) {
             set = new EmbeddedVectorSetSQL(this.begin, this.end);
         } else {
-            set = new IndexedCompleteCompositionVectorSet(this.begin, this.end);
+            IndexedCompleteCompositionVectorSet iset =
+                    new IndexedCompleteCompositionVectorSet(this.begin, this.end, this.threads,
+                    (this.piCache == null) ? null : new PiValueCache(this.piCache));
+            iset.setPrecision(this.precision);
+            set = iset;
+        }
+        if (set instanceof AbstractVectorSet) {
+            ((AbstractVectorSet) set).setDistanceThreads(this.threads);
+            ((AbstractVectorSet) set).setDistancePrecision(this.distPrecision);
+            ((AbstractVectorSet) set).setMappedDistances(this.distMapped);
         }
 
         return set;
@@ -201,6 +238,8 @@ public class CompleteCompositionVectorMain {
 
         try {
             switch (this.distCalc) {
+                case 5:
+                    return set.createMinHashDistanceMatrix(this.sketchSize, this.sketchFile);
                 case 4:
                     if (this.topNMers == null) {
                         // much faster if we don't try to limit it to a set of nmers
@@ -248,7 +287,8 @@ public class CompleteCompositionVectorMain {
         if (calculateTree()) {
             return true;
         }
-        if (this.matrixOutFile != null || this.apClusterOutfile != null) {
+        if (this.matrixOutFile != null || this.apClusterOutfile != null
+                || this.distBinFile != null) {
             return true;
         }
 
@@ -263,12 +303,27 @@ public class CompleteCompositionVectorMain {
         if (this.calculateDistances()) {
             return true;
         }
-        if (this.vectorsOutFile != null || this.nmersOutFile != null) {
+        if (this.vectorsOutFile != null || this.nmersOutFile != null
+                || this.vectorsBinFile != null || this.knnOutFile != null) {
             return true;
         }
         return false;
     }
 
+    /**
+     * Check to see if the full vector matrix has to be generated: MinHash
+     * distances are made from the samples' n-mer sets, so they only need it
+     * to write out the vectors, n-mers, entropies or nearest neighbors.
+     */
+    public Boolean needCompleteMatrix() {
+        if (this.distCalc == 5) {
+            return this.vectorsOutFile != null || this.nmersOutFile != null
+                    || this.vectorsBinFile != null || this.entOutFile != null
+                    || this.knnOutFile != null;
+        }
+        return this.calculateMatrix();
+    }
+
     /**
      * Create a tree using the given distance matrix
      * 
@@ -355,6 +410,26 @@ public class CompleteCompositionVectorMain {
         bw.flush();
     }
 
+    /**
+     * Reads sequence names, one per line, skipping blank lines.
+     */
+    static List<String> readSequenceNames(File file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.length() != 0) {
+                    names.add(line);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return names;
+    }
+
     /**
      * Write the tree to a newick style file
      * 
@@ -376,35 +451,149 @@ public class CompleteCompositionVectorMain {
      * @param dm
      * @param filename
      */
-    public AffinityPropagation cluster(DistanceMatrix dm, int type) {
-        double[][] mVals = dm.getClonedDistances();
-        Matrix m = new Matrix(mVals);
-        if (distCalc == 1 || distCalc == 3) {
-            m = m.times(-1.0);
-        } else if (distCalc == 2) {
-            Matrix o = new Matrix(m.getRowDimension(), m.getColumnDimension(), 1.0);
-            m = o.minus(m);
-        }
-
-        int total = m.getColumnDimension();
-        double values[] = new double[(total * total - total) / 2];
+    public ParallelAffinityPropagation cluster(DistanceMatrix dm, int type) {
+        int total = dm.getSize();
+        double[] sims = this.getSimilarities(dm);
+        double preference = getPreference(getPreferenceValues(sims, total), type);
+
+        ParallelAffinityPropagation ap = new ParallelAffinityPropagation(sims, total,
+                5000, 300, 0.9, preference, this.threads);
+
+        return ap;
+    }
+
+    /**
+     * Performs Affinity Propagation Clustering with the original engine,
+     * which keeps its messages in weka matrices (see <code>-apserial</code>).
+     *
+     * @param dm
+     * @param type the preference type (see {@link #getPreference(double[], int)})
+     */
+    public AffinityPropagation clusterSerial(DistanceMatrix dm, int type) {
+        int total = dm.getSize();
+        double[] sims = this.getSimilarities(dm);
+        double preference = getPreference(getPreferenceValues(sims, total), type);
+
+        double[][] mVals = new double[total][total];
+        for (int i = 0; i < total; i++) {
+            System.arraycopy(sims, i * total, mVals[i], 0, total);
+        }
+        sims = null;
+        AffinityPropagation ap = new AffinityPropagation(new Matrix(mVals),
+                5000, 300, 0.9, preference);
+
+        return ap;
+    }
+
+    /**
+     * Returns the similarities of the samples in row-major order, read
+     * straight from the (condensed) distances.
+     */
+    private double[] getSimilarities(DistanceMatrix dm) {
+        int total = dm.getSize();
+        if ((long) total * total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "Too many samples (%d) for a full similarity matrix", total));
+        }
+        double[] sims = new double[total * total];
+        for (int i = 0; i < total; i++) {
+            for (int j = 0; j < total; j++) {
+                double d = dm.getDistance(i, j);
+                if (distCalc == 1 || distCalc == 3) {
+                    sims[i * total + j] = -1.0 * d;
+                } else if (distCalc == 2) {
+                    sims[i * total + j] = 1.0 - d;
+                } else {
+                    sims[i * total + j] = d;
+                }
+            }
+        }
+        return sims;
+    }
+
+    /**
+     * Returns the similarities the preference is picked from.
+     */
+    private static double[] getPreferenceValues(double[] sims, int total) {
+        double values[] = new double[(int) (((long) total * total - total) / 2)];
         int count = 0;
         for (int i = 1; i < total; i++) {
             for (int j = i + 1; j < total - 1; j++) {
-                values[count] = m.get(i, j);
+                values[count] = sims[i * total + j];
                 count++;
             }
 
         }
+        return values;
+    }
 
-        double preference = getPreference(values, type);
+    /**
+     * Performs Affinity Propagation Clustering over a sparse graph of
+     * similarities, picking the preference from the similarities of its
+     * edges.
+     *
+     * @param graph the similarities of the neighboring samples
+     * @param type the preference type (see {@link #getPreference(double[], int)})
+     */
+    public SparseAffinityPropagation cluster(SimilarityGraph graph, int type) {
+        double[] values = graph.getSimilarities();
+        double preference = (values.length == 0) ? 0.0 : getPreference(values, type);
 
-        AffinityPropagation ap = new AffinityPropagation(m,
+        SparseAffinityPropagation ap = new SparseAffinityPropagation(graph,
                 5000, 300, 0.9, preference);
 
         return ap;
     }
 
+    /**
+     * Writes the nearest (cosine) neighbors of each sample in the matrix to
+     * the nearest neighbors file, and then those of the samples in the set
+     * if the matrix was read in (they are not added to the index).
+     * <P>
+     * The neighbor index is read from next to the vectors file if it has
+     * one, otherwise it is made and saved there.
+     *
+     * File format: sample_name(String)<tab>neighbor_name(String)<tab>distance(double)
+     */
+    public void writeNearestNeighbors(VectorSet set, CompleteMatrix matrix) throws IOException {
+        String vectorsFile = this.vectorsInFile;
+        if (vectorsFile == null) {
+            vectorsFile = (this.vectorsOutFile != null) ? this.vectorsOutFile : this.vectorsBinFile;
+        }
+        File indexFile = (vectorsFile == null) ? null : CosineNeighborIndex.getIndexFile(vectorsFile);
+        CosineNeighborIndex index = (indexFile == null) ? null : CosineNeighborIndex.load(indexFile, matrix);
+        if (index == null) {
+            LOG.info("Building nearest neighbor index...");
+            index = new CosineNeighborIndex(matrix);
+            index.addColumns(matrix, this.threads);
+            if (indexFile != null) {
+                LOG.info("Writing nearest neighbor index to " + indexFile.getPath());
+                index.save(indexFile);
+            }
+        }
+
+        BufferedWriter bw = new BufferedWriter(new FileWriter(this.knnOutFile));
+        try {
+            List<List<CosineNeighborIndex.Neighbor>> graph = index.getNearestNeighbors(this.knn, this.threads);
+            for (int i = 0; i < graph.size(); i++) {
+                for (CosineNeighborIndex.Neighbor neighbor : graph.get(i)) {
+                    bw.write(index.getName(i) + "\t" + neighbor.getName() + "\t"
+                            + Double.toString(neighbor.getDistance()) + "\n");
+                }
+            }
+            if (this.vectorsInFile != null) {
+                for (CompleteCompositionVector ccv : set.getVectors()) {
+                    for (CosineNeighborIndex.Neighbor neighbor : index.search(ccv, this.knn)) {
+                        bw.write(ccv.getName() + "\t" + neighbor.getName() + "\t"
+                                + Double.toString(neighbor.getDistance()) + "\n");
+                    }
+                }
+            }
+        } finally {
+            bw.close();
+        }
+    }
+
     /**
      * Write out the distance matrix to the given BufferedWriter.
      * 
@@ -413,35 +602,118 @@ public class CompleteCompositionVectorMain {
      *
      */
     public void writeDistanceMatrix(DistanceMatrix dm, BufferedWriter bw) throws IOException {
+        /** Same layout as weka's Matrix.write, a row at a time */
+        int total = dm.getSize();
+        try {
+            bw.write("% Rows\tColumns\n");
+            bw.write("" + total + "\t" + total + "\n");
+            bw.write("% Matrix elements\n");
+            for (int i = 0; i < total; i++) {
+                for (int j = 0; j < total; j++) {
+                    bw.write("" + dm.getDistance(i, j) + "\t");
+                }
+                bw.write("\n");
+            }
+            bw.flush();
+        } finally {
+            bw.close();
+        }
+    }
 
-        double[][] mVals = dm.getClonedDistances();
-        Matrix m = new Matrix(mVals);
-        /** was when this was writeSimilarityMatrix
-        if (distCalc == 1 || distCalc == 3) {
-            m = m.times(-1.0);
-        } else if (distCalc == 2 || distCalc == 4) {
-            Matrix o = new Matrix(m.getRowDimension(), m.getColumnDimension(), 1.0);
-            m = o.minus(m);
+    /**
+     * Builds the trees, writes out the distances and runs clustering over
+     * the distance matrix, as set by the options.
+     *
+     * @param distMatrix the distances (calculated or read in).
+     */
+    public void processDistanceMatrix(DistanceMatrix distMatrix) {
+        BufferedWriter bw;
+
+        if (this.distBinFile != null) {
+            LOG.info("Writing distance matrix to binary file " + this.distBinFile);
+            try {
+                double error = DistanceMatrixFile.write(distMatrix, this.distCalc,
+                        this.distPrecision, new File(this.distBinFile));
+                LOG.info(String.format("Distances in %s are within %g of their values",
+                        this.distBinFile, error));
+            } catch (IOException ioe) {
+                LOG.error(String.format(
+                        "Error in writing distances to binary file '%s'!",
+                        this.distBinFile), ioe);
+            }
         }
-        */
-        try {
-            m.write(bw);
-            // Write the matrix to the file.
-            /**
-            bw.write(this.distCalc.toString() + "\n");
-            for (int i = 0; i < m.getRowDimension(); i++) {
-                for (int j = 0; j < m.getColumnDimension(); j++) {
 
-                    String s = String.format("%03d\t%03d\t%f\n", i + 1, j + 1, m.get(i, j));
+        if (this.calculateTree() && distMatrix.getSize() > 2 ) {
+            LOG.info("Creating tree");
 
-                    bw.write(s);
+            Tree tree = this.createTree(distMatrix);
+            if (this.nwkOutFile != null) {
+                try {
+                    bw = new BufferedWriter(new FileWriter(this.nwkOutFile));
+                    writeNwkTree(tree, bw);
+                    bw.close();
+                } catch (Exception ioe) {
+                    LOG.error(String.format(
+                            "Error in writing tree to newick file '%s'!",
+                            this.nwkOutFile), ioe);
                 }
             }
-             */
-            bw.close();
 
-        } catch (Exception ex) {
-           throw new IOException(ex.getMessage());
+            /** We can output both */
+            if (this.xmlOutFile != null) {
+                try {
+                    bw = new BufferedWriter(new FileWriter(this.xmlOutFile));
+                    this.writePhyloXMLTree(tree, bw);
+                    bw.close();
+                } catch (IOException ioe) {
+                    LOG.error(String.format(
+                            "Error in writing tree to phyloXML file '%s'!",
+                            this.xmlOutFile), ioe);
+                }
+            }
+        } else if ( this.calculateTree() && distMatrix.getSize() <= 2) {
+                LOG.error("Cannot build a tree with less than 3 samples!");
+        }
+
+        if (this.matrixOutFile != null) {
+            LOG.info("Writing distance matrix to file.");
+            try {
+                this.writeDistanceMatrix(distMatrix,
+                        new BufferedWriter(new FileWriter(this.matrixOutFile)));
+            } catch (IOException ioe) {
+                LOG.error(String.format(
+                        "Error in writing distances to file '%s'!",
+                        this.matrixOutFile), ioe);
+            }
+        }
+
+        /** 
+         * Run AP Clustering 
+         * 
+         * Cluster file format: sample_name(String)<tab>cluster_id(Integer)
+         */
+        if (this.apClusterOutfile != null) {
+            LOG.info("Running affinity propagation clustering...");
+            int[] clusters;
+            if (this.serialAP) {
+                clusters = this.clusterSerial(distMatrix, this.prefVal).getClusters();
+            } else {
+                clusters = this.cluster(distMatrix, this.prefVal).getClusters();
+            }
+            try {
+                bw = new BufferedWriter(new FileWriter(this.apClusterOutfile));
+                for (int c = 0; c < clusters.length; c++) {
+                    //String id = distMatrix.getIdentifier(c).getName();
+                    String id = distMatrix.getIdentifier(c);
+                    bw.write(id + "\t" + Integer.toString(clusters[c]) + "\n");
+
+                }
+                bw.close();
+            } catch (IOException ioe) {
+                LOG.error(String.format(
+                        "Error in writing clustering results to the file '%s'!",
+                        this.apClusterOutfile), ioe);
+            }
         }
     }
 
@@ -501,7 +773,9 @@ public class CompleteCompositionVectorMain {
         /** create the Options */
         Options options = new Options();
         options.addOption(
-                OptionBuilder.withArgName("file").hasArg(true).withDescription("use given file for generating ccv").create("file"));
+                OptionBuilder.withArgName("file").hasArg(true).withDescription("use given file (or directory of files, gzip or BGZF compressed allowed) for generating ccv").create("file"));
+        options.addOption(
+                OptionBuilder.withArgName("file").hasArg(true).withDescription("only use the sequences named (one per line) in the given file, fetched through the FASTA index (file.fai, built if missing)").create("subset"));
         options.addOption(
                 OptionBuilder.withArgName("number").hasArg(true).withDescription("number of top nmers to use in calculations").create("topNmers"));
         options.addOption(
@@ -513,7 +787,7 @@ public class CompleteCompositionVectorMain {
         options.addOption(
                 OptionBuilder.withArgName("number").hasArg(true).withDescription("what distance calculation " +
                 "to use: 1-euclidian;2-cosine(default);" +
-                "3-ESDistance;4-Jaccard").create("distance"));
+                "3-ESDistance;4-Jaccard;5-MinHash estimate of Jaccard (of all nmers)").create("distance"));
         options.addOption(
                 OptionBuilder.withArgName("upgma").hasArg(false).withDescription("Generate UPGMA tree (default is neighor-joined)").create("upgma"));
 
@@ -545,8 +819,63 @@ public class CompleteCompositionVectorMain {
                 "(Overrides nmersout, only one file will be written).").create("vectorsout"));
 
         options.addOption(
-                OptionBuilder.hasArg(true).withArgName("file").withDescription("JSON file to read in vectors from").create("vectorsin"));
+                OptionBuilder.hasArg(true).withArgName("file").withDescription("JSON (or binary) file to read in vectors from").create("vectorsin"));
+
+        options.addOption(
+                OptionBuilder.hasArg(true).withArgName("file").withDescription("binary file to write out vectors to " +
+                "(in the precision given by -precision)").create("vectorsbin"));
+
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("Precision to store pi-values in: 0-double 1-float " +
+                "2-16 bit (scaled by window size): default is double").create("precision"));
+
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("Precision to store distances in: 0-double 1-float: " +
+                "default is double").create("distprecision"));
+
+        options.addOption(
+                OptionBuilder.withArgName("distmapped").hasArg(false).withDescription("Keep the distances in a memory-mapped " +
+                "temporary file instead of memory").create("distmapped"));
+
+        options.addOption(
+                OptionBuilder.withArgName("apserial").hasArg(false).withDescription("Cluster with the original affinity propagation " +
+                "engine instead of the in-place parallel one").create("apserial"));
+
+        options.addOption(
+                OptionBuilder.hasArg(true).withArgName("file").withDescription("binary file to write out distances to " +
+                "(in the precision given by -distprecision)").create("distbin"));
+
+        options.addOption(
+                OptionBuilder.hasArg(true).withArgName("file").withDescription("binary distance file to read in distances from " +
+                "(written with -distbin) instead of calculating them").create("distin"));
         
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("number of threads to use for generating vectors and distances (default is 1)").create("threads"));
+
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("number of hashes in a MinHash sketch " +
+                "(default is " + MinHashSketches.DEFAULT_SKETCH_SIZE + ")").create("sketchsize"));
+
+        options.addOption(
+                OptionBuilder.withArgName("file").hasArg(true).withDescription("File to read MinHash sketches from and add new " +
+                "samples' sketches to").create("sketchfile"));
+
+        options.addOption(
+                OptionBuilder.withArgName("threshold").hasArg(true).withDescription("Cluster only the pairs of samples with a Jaccard similarity " +
+                "(of all nmers) of at least this, found by MinHash LSH, instead of using the full distance matrix").create("lsh"));
+
+        options.addOption(
+                OptionBuilder.withArgName("file").hasArg(true).withDescription("Write the nearest (cosine) neighbors of each sample to the file, " +
+                "using a neighbor index kept next to the vectors file (with -vectorsin, also those of the new samples)").create("knnfile"));
+
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("number of nearest neighbors to write (default is " +
+                CosineNeighborIndex.DEFAULT_NEIGHBORS + ")").create("knn"));
+
+        options.addOption(
+                OptionBuilder.withArgName("number").hasArg(true).withDescription("calculate pi-values as they are needed, keeping at most this many in memory " +
+                "(default is to calculate them all when the sequences are added)").create("picache"));
+
         options.addOption(
                 OptionBuilder.withArgName("help").hasArg(false).withDescription("Print this message").create("help"));
 
@@ -574,13 +903,45 @@ public class CompleteCompositionVectorMain {
                 ccvm.setLoggingLevel(Level.toLevel(line.getOptionValue("verbosity")));
             }
             if (line.hasOption("file")) {
-                String fileName = line.getOptionValue("file");
-                BufferedReader br = new BufferedReader(new FileReader(fileName));
-                ccvm.seqIter = new FastaIterator(br);
+                File file = new File(line.getOptionValue("file"));
+                if (!file.exists()) {
+                    throw new FileNotFoundException(file.getPath());
+                }
+                if (!file.isDirectory() && BgzfInputStream.isGzip(file)) {
+                    /** packed as it is inflated, the residues are never a String */
+                    FastaIterator fi = new FastaIterator(file);
+                    fi.setPacked(true);
+                    ccvm.seqIter = fi;
+                } else {
+                    ccvm.seqIter = new MappedFastaIterator(file);
+                }
+            }
+            if (line.hasOption("subset")) {
+                if (!line.hasOption("file")) {
+                    throw new ParseException("The 'subset' option requires the 'file' option");
+                }
+                File file = new File(line.getOptionValue("file"));
+                if (file.isDirectory() || BgzfInputStream.isGzip(file)) {
+                    throw new ParseException("The 'subset' option requires an uncompressed FASTA file");
+                }
+                List<String> names = readSequenceNames(new File(line.getOptionValue("subset")));
+                FastaIndex index = FastaIndex.load(file);
+                LOG.info(String.format("Using %d of the %d sequences in '%s'",
+                        names.size(), index.size(), file.getPath()));
+                ccvm.seqIter = index.iterator(names);
             }
             if (line.hasOption("vectorsin")) {
                 ccvm.vectorsInFile = line.getOptionValue("vectorsin");
             }
+            if (line.hasOption("vectorsbin")) {
+                ccvm.vectorsBinFile = line.getOptionValue("vectorsbin");
+            }
+            if (line.hasOption("distbin")) {
+                ccvm.distBinFile = line.getOptionValue("distbin");
+            }
+            if (line.hasOption("distin")) {
+                ccvm.distInFile = line.getOptionValue("distin");
+            }
             if (line.hasOption("topNmers")) {
                 try {
                     ccvm.topNMers =
@@ -669,6 +1030,108 @@ public class CompleteCompositionVectorMain {
                 ccvm.nmersOutFile = null;
             }
 
+            if (line.hasOption("threads")) {
+                try {
+                    ccvm.threads = Integer.parseInt(line.getOptionValue("threads"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'threads' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.threads < 1) {
+                    throw new ParseException("The 'threads' option must be at least 1");
+                }
+            }
+
+            if (line.hasOption("picache")) {
+                try {
+                    ccvm.piCache = Long.parseLong(line.getOptionValue("picache"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'picache' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.piCache < 1) {
+                    throw new ParseException("The 'picache' option must be at least 1");
+                }
+            }
+
+            if (line.hasOption("sketchsize")) {
+                try {
+                    ccvm.sketchSize = Integer.parseInt(line.getOptionValue("sketchsize"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'sketchsize' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.sketchSize < 1) {
+                    throw new ParseException("The 'sketchsize' option must be at least 1");
+                }
+            }
+            if (line.hasOption("sketchfile")) {
+                ccvm.sketchFile = line.getOptionValue("sketchfile");
+            }
+            if (line.hasOption("knnfile")) {
+                ccvm.knnOutFile = line.getOptionValue("knnfile");
+            }
+            if (line.hasOption("knn")) {
+                try {
+                    ccvm.knn = Integer.parseInt(line.getOptionValue("knn"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'knn' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.knn < 1) {
+                    throw new ParseException("The 'knn' option must be at least 1");
+                }
+            }
+            if (line.hasOption("lsh")) {
+                try {
+                    ccvm.lshThreshold = Double.parseDouble(line.getOptionValue("lsh"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'lsh' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (!(ccvm.lshThreshold > 0.0 && ccvm.lshThreshold <= 1.0)) {
+                    throw new ParseException("The 'lsh' option must be above 0 and at most 1");
+                }
+            }
+
+            if (line.hasOption("precision")) {
+                try {
+                    ccvm.precision = Integer.parseInt(line.getOptionValue("precision"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'precision' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.precision < RealMatrixUtils.PRECISION_DOUBLE
+                        || ccvm.precision > RealMatrixUtils.PRECISION_16BIT) {
+                    throw new ParseException("The 'precision' option must be 0, 1 or 2");
+                }
+            }
+            if (line.hasOption("distprecision")) {
+                try {
+                    ccvm.distPrecision = Integer.parseInt(line.getOptionValue("distprecision"));
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException(
+                            "Error parsing 'distprecision' option. Reason: " +
+                            nfe.getMessage());
+                }
+                if (ccvm.distPrecision != RealMatrixUtils.PRECISION_DOUBLE
+                        && ccvm.distPrecision != RealMatrixUtils.PRECISION_FLOAT) {
+                    throw new ParseException("The 'distprecision' option must be 0 or 1");
+                }
+            }
+            if (line.hasOption("distmapped")) {
+                ccvm.distMapped = true;
+            }
+            if (line.hasOption("apserial")) {
+                ccvm.serialAP = true;
+            }
+
             if (line.hasOption("prefval")) {
                 try {
                     ccvm.prefVal = Integer.parseInt(line.getOptionValue("prefval"));
@@ -694,12 +1157,34 @@ public class CompleteCompositionVectorMain {
         DistanceMatrix distMatrix = null;
         CompleteMatrix matrix = null;
 
+        /** Skip the vectors and go straight to the distances */
+        if (ccvm.distInFile != null) {
+            LOG.info("Reading in distances from " + ccvm.distInFile);
+            DistanceMatrixFile distFile = DistanceMatrixFile.read(new File(ccvm.distInFile));
+            distMatrix = distFile.getDistanceMatrix();
+            ccvm.distCalc = distFile.getDistanceType();
+            LOG.info(String.format("Loaded in distances of type %d between %d samples",
+                    ccvm.distCalc, distMatrix.getSize()));
+            if (ccvm.seqIter != null || ccvm.vectorsInFile != null) {
+                LOG.warn("Ignoring the sequences and vectors when given a distance file!");
+            }
+            ccvm.processDistanceMatrix(distMatrix);
+            LOG.info("Finished!");
+            return;
+        }
+
         if (ccvm.vectorsInFile != null) {
             LOG.info("Reading in CompleteCompositionVectors from " + ccvm.vectorsInFile);
             // we only save the data not everything that is in the vectorSet
-            BufferedReader br = new BufferedReader(new FileReader(ccvm.vectorsInFile));
-            matrix = CompleteMatrix.readJsonCompleteMatrix(br);
-            br.close();
+            if (CompleteMatrix.isBinaryCompleteMatrix(new File(ccvm.vectorsInFile))) {
+                FileInputStream fis = new FileInputStream(ccvm.vectorsInFile);
+                matrix = CompleteMatrix.readBinaryCompleteMatrix(fis);
+                fis.close();
+            } else {
+                BufferedReader br = new BufferedReader(new FileReader(ccvm.vectorsInFile));
+                matrix = CompleteMatrix.readJsonCompleteMatrix(br);
+                br.close();
+            }
             ccvm.begin = matrix.getBegin();
             ccvm.end = matrix.getEnd();
             LOG.info(String.format("Loaded in %d samples and %d nmers (features)",
@@ -712,7 +1197,18 @@ public class CompleteCompositionVectorMain {
              * Need to think about this - should be able to use the nmer list
              * directly in generating the complete matrix then merge the two
              */
-            if (ccvm.seqIter != null) {
+            if (ccvm.seqIter != null && ccvm.knnOutFile != null) {
+                /** New samples are only looked up in the neighbor index */
+                LOG.info("Generating complete composition vectors of new samples...");
+                SequencePipeline pipeline =
+                        new SequencePipeline(ccvm.seqIter, 4 * ccvm.threads);
+                try {
+                    pipeline.run(set, ccvm.seqNameParser);
+                } catch (NoSuchElementException e) {
+                    LOG.fatal("Iteration error in sequence file!", e);
+                    return;
+                }
+            } else if (ccvm.seqIter != null) {
                 LOG.warn("Unable to process new samples when given a JSON vector set!");
             }
         } else {
@@ -721,26 +1217,48 @@ public class CompleteCompositionVectorMain {
 
             /** If we have a sequnece iterator (i.e. a fasta file) then process those samples */
             if (ccvm.seqIter != null) {
-                while (ccvm.seqIter.hasNext()) {
-                    Sequence s = null;
-                    try {
-                        s = ccvm.seqIter.next();
-                    } catch (NoSuchElementException e) {
-                        LOG.fatal("Iteration error in sequence file!", e);
-                        return;
-                    }
-                    String seqString = s.seqString();
-                    set.addSequence(parseSequenceName(s, ccvm.seqNameParser), seqString);
+                SequencePipeline pipeline =
+                        new SequencePipeline(ccvm.seqIter, 4 * ccvm.threads);
+                try {
+                    pipeline.run(set, ccvm.seqNameParser);
+                } catch (NoSuchElementException e) {
+                    LOG.fatal("Iteration error in sequence file!", e);
+                    return;
                 }
             }
         }
 
+        /**
+         * Run AP Clustering over the MinHash neighbors instead of the
+         * full distance matrix
+         */
+        if (ccvm.lshThreshold != null && ccvm.apClusterOutfile != null) {
+            LOG.info("Running affinity propagation clustering of MinHash neighbors...");
+            SimilarityGraph graph = set.createMinHashSimilarityGraph(ccvm.lshThreshold,
+                    MinHashNeighbors.DEFAULT_BINS);
+            SparseAffinityPropagation ap = ccvm.cluster(graph, ccvm.prefVal);
+            int[] clusters = ap.getClusters();
+            List<String> names = set.getSampleNames();
+            try {
+                BufferedWriter cw = new BufferedWriter(new FileWriter(ccvm.apClusterOutfile));
+                for (int c = 0; c < clusters.length; c++) {
+                    cw.write(names.get(c) + "\t" + Integer.toString(clusters[c]) + "\n");
+                }
+                cw.close();
+            } catch (IOException ioe) {
+                LOG.error(String.format(
+                        "Error in writing clustering results to the file '%s'!",
+                        ccvm.apClusterOutfile), ioe);
+            }
+            ccvm.apClusterOutfile = null;
+        }
+
         if (!ccvm.calculateMatrix()) {
             LOG.info("No other operations left so finished!");
             return;
         }
 
-        if (matrix == null) {
+        if (matrix == null && ccvm.needCompleteMatrix()) {
             LOG.info("Generating complete matrix of nmers...");
             try {
                 matrix = set.getFullMatrix(ccvm.topNMers, ccvm.entOutFile);
@@ -756,6 +1274,10 @@ public class CompleteCompositionVectorMain {
          * set.getFullMatrix(matrix.getNmers)
          * and merge the two
          */
+        if (matrix != null && matrix.getErrorBound() > 0.0) {
+            LOG.info(String.format("Pi-values in the matrix are within %g of their values",
+                    matrix.getErrorBound()));
+        }
 
         BufferedWriter bw;  // Used in several places
 
@@ -776,6 +1298,21 @@ public class CompleteCompositionVectorMain {
             matrix.writeJsonNmers(bw);
             bw.close();
         }
+        if (ccvm.vectorsBinFile != null && ccvm.vectorsBinFile.length() != 0) {
+            LOG.info(String.format("Writing %d nmers and %d vectors to binary file %s",
+                    matrix.getNmers().size(), matrix.getNames().size(),
+                    ccvm.vectorsBinFile));
+            FileOutputStream fos = new FileOutputStream(ccvm.vectorsBinFile);
+            double error = matrix.writeBinaryCompleteMatrix(fos, ccvm.precision);
+            fos.close();
+            LOG.info(String.format("Pi-values in %s are within %g of their values",
+                    ccvm.vectorsBinFile, error));
+        }
+
+        if (ccvm.knnOutFile != null) {
+            LOG.info("Writing nearest neighbors to file " + ccvm.knnOutFile);
+            ccvm.writeNearestNeighbors(set, matrix);
+        }
 
         /** Build distance matrix */
         if (!ccvm.calculateDistances()) {
@@ -785,74 +1322,10 @@ public class CompleteCompositionVectorMain {
         LOG.info("Generating distance matrix...");
         distMatrix = ccvm.createDistanceMatrix(set, matrix);
 
-        if (ccvm.calculateTree() && set.getSampleNames().size() > 2 ) {
-            LOG.info("Creating tree");
-
-            Tree tree = ccvm.createTree(distMatrix);
-            if (ccvm.nwkOutFile != null) {
-                try {
-                    bw = new BufferedWriter(new FileWriter(ccvm.nwkOutFile));
-                    ccvm.writeNwkTree(tree, bw);
-                    bw.close();
-                } catch (Exception ioe) {
-                    LOG.error(String.format(
-                            "Error in writing tree to newick file '%s'!",
-                            ccvm.nwkOutFile), ioe);
-                }
-            }
-
-            /** We can output both */
-            if (ccvm.xmlOutFile != null) {
-                try {
-                    bw = new BufferedWriter(new FileWriter(ccvm.xmlOutFile));
-                    ccvm.writePhyloXMLTree(tree, bw);
-                    bw.close();
-                } catch (IOException ioe) {
-                    LOG.error(String.format(
-                            "Error in writing tree to phyloXML file '%s'!",
-                            ccvm.xmlOutFile), ioe);
-                }
-            }
-        } else if ( ccvm.calculateTree() && set.getSampleNames().size() <= 2) {
-                LOG.error("Cannot build a tree with less than 3 samples!");
-        }
-
-        if (ccvm.matrixOutFile != null) {
-            LOG.info("Writing distance matrix to file.");
-            try {
-                ccvm.writeDistanceMatrix(distMatrix,
-                        new BufferedWriter(new FileWriter(ccvm.matrixOutFile)));
-            } catch (IOException ioe) {
-                LOG.error(String.format(
-                        "Error in writing distances to file '%s'!",
-                        ccvm.matrixOutFile), ioe);
-            }
-        }
-
-        /** 
-         * Run AP Clustering 
-         * 
-         * Cluster file format: sample_name(String)<tab>cluster_id(Integer)
-         */
-        if (ccvm.apClusterOutfile != null) {
-            LOG.info("Running affinity propagation clustering...");
-            AffinityPropagation ap = ccvm.cluster(distMatrix, ccvm.prefVal);
-            int[] clusters = ap.getClusters();
-            try {
-                bw = new BufferedWriter(new FileWriter(ccvm.apClusterOutfile));
-                for (int c = 0; c < clusters.length; c++) {
-                    //String id = distMatrix.getIdentifier(c).getName();
-                    String id = distMatrix.getIdentifier(c);
-                    bw.write(id + "\t" + Integer.toString(clusters[c]) + "\n");
-
-                }
-                bw.close();
-            } catch (IOException ioe) {
-                LOG.error(String.format(
-                        "Error in writing clustering results to the file '%s'!",
-                        ccvm.apClusterOutfile), ioe);
-            }
+        if (distMatrix == null) {
+            return;
         }
+        ccvm.processDistanceMatrix(distMatrix);
         LOG.info("Finished!");
     }
 }
@@ -14,10 +14,20 @@
 
 package org.mitre.ccv;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
@@ -39,6 +49,7 @@ import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import org.mitre.math.linear.QuantizedRealMatrix;
 import org.mitre.math.linear.RealMatrixUtils;
 
 /**
@@ -61,6 +72,11 @@ public class CompleteMatrix {
 
     static private ObjectMapper mapper = new ObjectMapper(); // can reuse, share globally
 
+    /** Magic number at the start of a binary vectors file ("CCVM") */
+    public static final int BINARY_MAGIC = 0x4343564D;
+    /** Version of the binary vectors file format */
+    public static final int BINARY_VERSION = 1;
+
     /**
      * Construct a CompleteMatrix
      * 
@@ -128,6 +144,29 @@ public class CompleteMatrix {
         return this.end;
     }
 
+    /**
+     * Returns the largest absolute error in the entries caused by the
+     * precision the matrix is stored in (zero for <code>double</code>s).
+     *
+     * @see RealMatrixUtils#getErrorBound(RealMatrix)
+     */
+    public double getErrorBound() {
+        return RealMatrixUtils.getErrorBound(this.matrix);
+    }
+
+    /**
+     * Returns the window index (the length of the n-mer minus
+     * <code>begin</code>) of each n-mer, clamped to the range of windows.
+     */
+    public static int[] getWindowIndexes(Collection<String> nmers, int begin, int end) {
+        int[] windows = new int[nmers.size()];
+        int i = 0;
+        for (String nmer : nmers) {
+            windows[i++] = Math.max(0, Math.min(end, nmer.length()) - begin);
+        }
+        return windows;
+    }
+
     /**
      * Returns the samples as {@link RealVector}s.
      */
@@ -260,6 +299,185 @@ public class CompleteMatrix {
                 nmers, names, jmatrix);
     }
 
+    /**
+     * Writes the vectors to a binary file (with sparse vectors, like the
+     * json file) storing the pi-values in the given precision.
+     * <P>
+     * Format (big-endian, see {@link DataOutputStream}):
+     * <pre>
+     * int      BINARY_MAGIC, BINARY_VERSION
+     * int      precision (see RealMatrixUtils)
+     * int      begin, end
+     * int      number of n-mers, followed by each n-mer (UTF)
+     * int      number of samples, followed by each name (UTF)
+     * 16-bit:  int number of windows, followed by the double scale of each
+     * samples: int number of non-zero pi-values, followed by each
+     *          int n-mer index and its value (double, float or short)
+     * </pre>
+     * With 16-bit precision each window size has its own scale and a value
+     * is stored as <code>round(pi-value / scale)</code>.
+     *
+     * @param out the stream to write to (it is flushed, not closed).
+     * @param precision one of the <code>PRECISION_</code> values of {@link RealMatrixUtils}
+     * @return the largest absolute error of the written pi-values
+     */
+    public double writeBinaryCompleteMatrix(OutputStream out, int precision) throws IOException {
+        RealMatrixUtils.checkPrecision(precision);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        dos.writeInt(BINARY_MAGIC);
+        dos.writeInt(BINARY_VERSION);
+        dos.writeInt(precision);
+        dos.writeInt(this.begin);
+        dos.writeInt(this.end);
+        dos.writeInt(this.nmerList.size());
+        for (String nmer : this.nmerList) {
+            dos.writeUTF(nmer);
+        }
+        dos.writeInt(this.nameList.size());
+        for (String name : this.nameList) {
+            dos.writeUTF(name);
+        }
+
+        final RealMatrix m = this.matrix;
+        final int rows = m.getRowDimension();
+        final int columns = m.getColumnDimension();
+        int[] windows = null;
+        double[] scales = null;
+        if (precision == RealMatrixUtils.PRECISION_16BIT) {
+            windows = getWindowIndexes(this.nmerList, this.begin, this.end);
+            scales = new double[this.end - this.begin + 1];
+            for (int c = 0; c < columns; c++) {
+                for (int r = 0; r < rows; r++) {
+                    scales[windows[r]] = Math.max(scales[windows[r]], Math.abs(m.getEntry(r, c)));
+                }
+            }
+            dos.writeInt(scales.length);
+            for (int w = 0; w < scales.length; w++) {
+                scales[w] = QuantizedRealMatrix.scaleFor(scales[w]);
+                dos.writeDouble(scales[w]);
+            }
+        }
+
+        double error = 0.0;
+        final int[] index = new int[rows];
+        final double[] values = new double[rows];
+        for (int c = 0; c < columns; c++) {
+            int n = 0;
+            for (int r = 0; r < rows; r++) {
+                double value = m.getEntry(r, c);
+                if (windows != null) {
+                    /** Stored like a QuantizedRealMatrix, so no value becomes zero */
+                    value = QuantizedRealMatrix.levelFor(value, scales[windows[r]]);
+                }
+                if (value != 0.0) {
+                    index[n] = r;
+                    values[n++] = value;
+                }
+            }
+            dos.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                dos.writeInt(index[i]);
+                double value = m.getEntry(index[i], c);
+                switch (precision) {
+                    case RealMatrixUtils.PRECISION_FLOAT:
+                        dos.writeFloat((float) values[i]);
+                        error = Math.max(error, Math.abs(value - (float) values[i]));
+                        break;
+                    case RealMatrixUtils.PRECISION_16BIT:
+                        dos.writeShort((short) values[i]);
+                        error = Math.max(error, Math.abs(value - values[i] * scales[windows[index[i]]]));
+                        break;
+                    default:
+                        dos.writeDouble(values[i]);
+                }
+            }
+        }
+        dos.flush();
+        return RealMatrixUtils.getErrorBound(m) + error;
+    }
+
+    /**
+     * Reads in the vectors from a binary file, keeping the pi-values in the
+     * precision they were written in.
+     *
+     * @see CompleteMatrix#writeBinaryCompleteMatrix(java.io.OutputStream, int)
+     */
+    public static CompleteMatrix readBinaryCompleteMatrix(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (dis.readInt() != BINARY_MAGIC) {
+            throw new IOException("Not a binary vectors file");
+        }
+        int version = dis.readInt();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unsupported binary vectors file version " + version);
+        }
+        int precision = dis.readInt();
+        if (precision < RealMatrixUtils.PRECISION_DOUBLE || precision > RealMatrixUtils.PRECISION_16BIT) {
+            throw new IOException("Unknown precision " + precision + " in binary vectors file");
+        }
+        int begin = dis.readInt();
+        int end = dis.readInt();
+        int size = dis.readInt();
+        ArrayList<String> nmers = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            nmers.add(dis.readUTF());
+        }
+        size = dis.readInt();
+        ArrayList<String> names = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(dis.readUTF());
+        }
+
+        RealMatrix matrix;
+        QuantizedRealMatrix quantized = null;
+        if (precision == RealMatrixUtils.PRECISION_16BIT) {
+            double[] scales = new double[dis.readInt()];
+            if (scales.length != end - begin + 1) {
+                throw new IOException(String.format("Expected %d window scales, found %d",
+                        end - begin + 1, scales.length));
+            }
+            for (int w = 0; w < scales.length; w++) {
+                scales[w] = dis.readDouble();
+            }
+            quantized = new QuantizedRealMatrix(nmers.size(), names.size(),
+                    getWindowIndexes(nmers, begin, end), scales);
+            matrix = quantized;
+        } else {
+            matrix = RealMatrixUtils.createRealMatrix(nmers.size(), names.size(), precision);
+        }
+        for (int c = 0; c < names.size(); c++) {
+            int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                int r = dis.readInt();
+                switch (precision) {
+                    case RealMatrixUtils.PRECISION_FLOAT:
+                        matrix.setEntry(r, c, dis.readFloat());
+                        break;
+                    case RealMatrixUtils.PRECISION_16BIT:
+                        quantized.setQuantizedEntry(r, c, dis.readShort());
+                        break;
+                    default:
+                        matrix.setEntry(r, c, dis.readDouble());
+                }
+            }
+        }
+        return new CompleteMatrix(begin, end, nmers, names, matrix);
+    }
+
+    /**
+     * Returns <code>true</code> if the file starts like a binary vectors file.
+     */
+    public static boolean isBinaryCompleteMatrix(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == BINARY_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Writes out the features (the nmers found) as a JSONArray.
      *
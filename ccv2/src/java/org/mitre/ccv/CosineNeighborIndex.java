@@ -0,0 +1,1037 @@
+/**
+ * CosineNeighborIndex.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.commons.math.linear.RealMatrix;
+import org.mitre.clustering.SimilarityGraph;
+
+/**
+ * Finds the nearest neighbors of samples by the cosine distance of
+ * {@link AbstractVectorSet#createCosineDistanceMatrix(CompleteMatrix)}
+ * without calculating all of the distances, using a hierarchical navigable
+ * small world (HNSW) graph (Malkov and Yashunin, 2016).
+ * <P>
+ * The rows (n-mers) of the matrix the index is made for are normalized the
+ * same way as the distance matrix, and the centers and scales of the rows
+ * are kept so that samples added later, or asked about, are normalized the
+ * same way. The distances are <code>(1 - cosine similarity) / 2</code>.
+ * <P>
+ * Each sample is a node on a random number of layers, fewer samples on each
+ * layer up. A node is linked to at most {@link #getM()} of its near
+ * neighbors on each layer (twice that on the bottom one), chosen so the links
+ * point in different directions. A search walks greedily down from the top
+ * layer and then keeps the <code>ef</code> nearest nodes it has found on the
+ * bottom one, so larger <code>ef</code>s find more of the true neighbors at
+ * the cost of more distances.
+ * <P>
+ * Samples can be added one at a time or all of the columns of the matrix at
+ * once on a pool of threads ({@link #addColumns(CompleteMatrix, int)}).
+ * Adding with more than one thread links the nodes in a different order, so
+ * the graph (but not the quality of it) changes from run to run. The index
+ * is written to a file next to the vectors file (see
+ * {@link #getIndexFile(String)}); the vectors of the matrix's samples are not
+ * written, they are made again from the matrix when it is read in.
+ *
+ * @author Marc Colosimo
+ */
+public class CosineNeighborIndex {
+
+    private static final Log LOG = LogFactory.getLog("CosineNeighborIndex");
+
+    /** Default number of links of a node on each layer above the bottom */
+    public static final int DEFAULT_M = 16;
+    /** Default number of nodes kept while linking a new node */
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    /** Default number of nodes kept while searching */
+    public static final int DEFAULT_EF = 50;
+    /** Default number of nearest neighbors */
+    public static final int DEFAULT_NEIGHBORS = 10;
+
+    /** Suffix of the index file of a vectors file */
+    public static final String INDEX_SUFFIX = ".hnsw";
+    /** Magic number at the start of an index file ("CCVN") */
+    public static final int INDEX_MAGIC = 0x4343564E;
+    /** Version of the index file format */
+    public static final int INDEX_VERSION = 1;
+
+    /** Seed of the random layers of the nodes */
+    private static final long LEVEL_SEED = 0L;
+
+    private final int begin;
+    private final int end;
+    private final ArrayList<String> nmers;
+    /** Value subtracted from each row before scaling it */
+    private final double[] centers;
+    private final double[] scales;
+    private final int m;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random;
+    private int ef = DEFAULT_EF;
+
+    /** Number of samples that are the columns of the matrix */
+    private int columns = 0;
+    private final ArrayList<String> names = new ArrayList<String>();
+    /** Normalized samples of unit length */
+    private double[][] vectors = new double[16][];
+    private int[] levels = new int[16];
+    /** Links of each node (outer) on each of its layers: count then nodes */
+    private int[][][] links = new int[16][][];
+    private int size = 0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    /**
+     * A sample found by a search and its distance.
+     */
+    public static class Neighbor {
+
+        private final int index;
+        private final String name;
+        private final double distance;
+
+        public Neighbor(int index, String name, double distance) {
+            this.index = index;
+            this.name = name;
+            this.distance = distance;
+        }
+
+        /**
+         * Returns the number of the sample in the index.
+         */
+        public int getIndex() {
+            return this.index;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public double getDistance() {
+            return this.distance;
+        }
+    }
+
+    /**
+     * Construct an empty index normalizing the n-mers as the given matrix
+     * does, with the default number of links.
+     */
+    public CosineNeighborIndex(CompleteMatrix matrix) {
+        this(matrix, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * Construct an empty index normalizing the n-mers as the given matrix
+     * does.
+     *
+     * @param m the number of links of a node on each layer above the bottom
+     * @param efConstruction the number of nodes kept while linking a new node
+     */
+    public CosineNeighborIndex(CompleteMatrix matrix, int m, int efConstruction) {
+        this(matrix.getBegin(), matrix.getEnd(), matrix.getNmers(), m, efConstruction);
+        final RealMatrix realMatrix = matrix.getMatrix();
+        final int cols = realMatrix.getColumnDimension();
+        for (int i = 0; i < this.centers.length; i++) {
+            double[] row = realMatrix.getRow(i);
+            /** The same arithmetic as RealMatrixUtils.normalizeRow */
+            double max = 0;
+            for (int j = 0; j < cols; j++) {
+                max = Math.max(max, Math.abs(row[j]));
+            }
+            final double center = max / cols;
+            max = 0;
+            for (int j = 0; j < cols; j++) {
+                double value = row[j] + -1.0 * center;
+                max = Math.max(max, Math.abs(value * value));
+            }
+            double std = max / cols;
+            this.centers[i] = center;
+            /** A constant row does not tell the samples apart */
+            this.scales[i] = (std > 0.0) ? 1.0 / std : 0.0;
+        }
+    }
+
+    private CosineNeighborIndex(int begin, int end, ArrayList<String> nmers,
+            int m, int efConstruction) {
+        if (m < 2) {
+            throw new IllegalArgumentException("Need at least two links per node");
+        }
+        if (efConstruction < 1) {
+            throw new IllegalArgumentException("Need to keep at least one node while linking");
+        }
+        this.begin = begin;
+        this.end = end;
+        this.nmers = nmers;
+        this.centers = new double[nmers.size()];
+        this.scales = new double[nmers.size()];
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1.0 / Math.log(m);
+        this.random = new Random(LEVEL_SEED);
+    }
+
+    public int getBegin() {
+        return this.begin;
+    }
+
+    public int getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Returns the n-mers in the order the pi-values of a sample are given in.
+     */
+    public ArrayList<String> getNmers() {
+        return this.nmers;
+    }
+
+    public int getM() {
+        return this.m;
+    }
+
+    public int getEfConstruction() {
+        return this.efConstruction;
+    }
+
+    public int getEf() {
+        return this.ef;
+    }
+
+    /**
+     * Sets the number of nodes kept while searching (at least the number of
+     * neighbors asked for is always kept).
+     */
+    public void setEf(int ef) {
+        if (ef < 1) {
+            throw new IllegalArgumentException("Need to keep at least one node while searching");
+        }
+        this.ef = ef;
+    }
+
+    /**
+     * Returns the number of samples in the index.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public String getName(int index) {
+        return this.names.get(index);
+    }
+
+    /**
+     * Adds all of the samples (columns) of the matrix, linking them on the
+     * given number of threads. The matrix must have the n-mers of this
+     * index and no samples may have been added yet.
+     */
+    public void addColumns(CompleteMatrix matrix, int threads) {
+        if (this.size != 0) {
+            throw new IllegalStateException("Columns have to be added to an empty index");
+        }
+        if (!matrix.getNmers().equals(this.nmers)) {
+            throw new IllegalArgumentException("Matrix has different n-mers than the index");
+        }
+        final int cols = matrix.getMatrix().getColumnDimension();
+        double[][] normalized = this.normalizeColumns(matrix.getMatrix());
+        for (int c = 0; c < cols; c++) {
+            this.append(matrix.getNames().get(c), normalized[c], this.randomLevel());
+        }
+        this.columns = cols;
+
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < Math.min(threads, cols); t++) {
+            tasks.add(new Runnable() {
+
+                public void run() {
+                    Search search = new Search();
+                    for (int q = next.getAndIncrement(); q < cols; q = next.getAndIncrement()) {
+                        link(q, search);
+                    }
+                }
+            });
+        }
+        LOG.debug(String.format("Linking %d samples with %d threads", cols, tasks.size()));
+        DistanceEngine.run(tasks, threads, "CosineNeighborIndex-worker");
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @return the number of the sample in the index
+     */
+    public int add(String name, CompleteCompositionVector ccv) {
+        return this.add(name, this.getPiValues(ccv));
+    }
+
+    /**
+     * Adds a sample from its pi-values in the order of {@link #getNmers()}.
+     *
+     * @return the number of the sample in the index
+     */
+    public int add(String name, double[] piValues) {
+        int q = this.append(name, this.normalize(piValues), this.randomLevel());
+        this.link(q, new Search());
+        return q;
+    }
+
+    /**
+     * Returns the (up to) <code>k</code> samples nearest to the given one,
+     * nearest first.
+     */
+    public List<Neighbor> search(CompleteCompositionVector ccv, int k) {
+        return this.search(this.getPiValues(ccv), k);
+    }
+
+    /**
+     * Returns the (up to) <code>k</code> samples nearest to the one with the
+     * pi-values in the order of {@link #getNmers()}, nearest first.
+     */
+    public List<Neighbor> search(double[] piValues, int k) {
+        Search search = new Search();
+        int n = this.search(this.normalize(piValues), k, search);
+        List<Neighbor> neighbors = new ArrayList<Neighbor>(n);
+        for (int i = 0; i < n; i++) {
+            neighbors.add(this.neighbor(search.ids[i], search.dists[i]));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Returns the (up to) <code>k</code> nearest neighbors of each sample in
+     * the index, other than itself and nearest first, searching on the given
+     * number of threads.
+     */
+    public List<List<Neighbor>> getNearestNeighbors(final int k, int threads) {
+        final int n = this.size;
+        final List<List<Neighbor>> graph = new ArrayList<List<Neighbor>>(n);
+        for (int i = 0; i < n; i++) {
+            graph.add(null);
+        }
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < Math.min(threads, n); t++) {
+            tasks.add(new Runnable() {
+
+                public void run() {
+                    Search search = new Search();
+                    for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+                        int found = search(vectors[i], k + 1, search);
+                        List<Neighbor> neighbors = new ArrayList<Neighbor>(k);
+                        for (int f = 0; f < found && neighbors.size() < k; f++) {
+                            if (search.ids[f] != i) {
+                                neighbors.add(neighbor(search.ids[f], search.dists[f]));
+                            }
+                        }
+                        /** Each task sets different elements */
+                        synchronized (graph) {
+                            graph.set(i, neighbors);
+                        }
+                    }
+                }
+            });
+        }
+        LOG.debug(String.format("Searching the neighbors of %d samples with %d threads", n, tasks.size()));
+        DistanceEngine.run(tasks, threads, "CosineNeighborIndex-worker");
+        return graph;
+    }
+
+    /**
+     * Returns a graph linking each sample to its (up to) <code>k</code>
+     * nearest neighbors, with a similarity of one minus their distance, for
+     * {@link org.mitre.clustering.SparseAffinityPropagation} or the canopy
+     * clustering.
+     */
+    public SimilarityGraph createSimilarityGraph(int k, int threads) {
+        List<List<Neighbor>> graph = this.getNearestNeighbors(k, threads);
+        /** Neighbors are not always mutual, so keep each pair once */
+        long[] pairs = new long[this.size * k];
+        int n = 0;
+        for (int i = 0; i < this.size; i++) {
+            for (Neighbor neighbor : graph.get(i)) {
+                int j = neighbor.getIndex();
+                pairs[n++] = ((long) Math.min(i, j) << 32) | Math.max(i, j);
+            }
+        }
+        Arrays.sort(pairs, 0, n);
+        int[] from = new int[n];
+        int[] to = new int[n];
+        double[] similarity = new double[n];
+        int edges = 0;
+        for (int p = 0; p < n; p++) {
+            if (p > 0 && pairs[p] == pairs[p - 1]) {
+                continue;
+            }
+            int i = (int) (pairs[p] >>> 32);
+            int j = (int) pairs[p];
+            from[edges] = i;
+            to[edges] = j;
+            similarity[edges++] = 1.0 - this.distance(i, j);
+        }
+        return new SimilarityGraph(this.size, Arrays.copyOf(from, edges),
+                Arrays.copyOf(to, edges), Arrays.copyOf(similarity, edges));
+    }
+
+    /**
+     * Returns the distance between two samples in the index.
+     */
+    public double distance(int i, int j) {
+        return toDistance(distance(this.vectors[i], this.vectors[j]));
+    }
+
+    /**
+     * Returns the pi-values of the sample in the order of {@link #getNmers()}.
+     */
+    public double[] getPiValues(CompleteCompositionVector ccv) {
+        double[] piValues = new double[this.nmers.size()];
+        for (int i = 0; i < piValues.length; i++) {
+            Double value = ccv.getPiValueforNmer(this.nmers.get(i));
+            piValues[i] = (value == null) ? 0.0 : value;
+        }
+        return piValues;
+    }
+
+    /**
+     * Returns the index file kept next to a vectors file.
+     */
+    public static File getIndexFile(String vectorsFile) {
+        return new File(vectorsFile + INDEX_SUFFIX);
+    }
+
+    /**
+     * Writes the index to a binary file.
+     * <P>
+     * Format (big-endian, see {@link DataOutputStream}):
+     * <pre>
+     * int      INDEX_MAGIC, INDEX_VERSION
+     * int      begin, end, m, efConstruction
+     * int      number of n-mers, followed by the n-mers (UTF)
+     * double   center and scale of each n-mer
+     * int      number of samples that are columns of the matrix
+     * int      number of samples, followed by each sample's name (UTF),
+     *          int layer and, if it is not a column, its normalized vector
+     * int      entry point, top layer
+     * int      for each sample and each of its layers the number of
+     *          links followed by the linked samples
+     * </pre>
+     *
+     * @param out the stream to write to (it is flushed, not closed).
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        dos.writeInt(INDEX_MAGIC);
+        dos.writeInt(INDEX_VERSION);
+        dos.writeInt(this.begin);
+        dos.writeInt(this.end);
+        dos.writeInt(this.m);
+        dos.writeInt(this.efConstruction);
+        dos.writeInt(this.nmers.size());
+        for (String nmer : this.nmers) {
+            dos.writeUTF(nmer);
+        }
+        for (int i = 0; i < this.centers.length; i++) {
+            dos.writeDouble(this.centers[i]);
+            dos.writeDouble(this.scales[i]);
+        }
+        dos.writeInt(this.columns);
+        dos.writeInt(this.size);
+        for (int q = 0; q < this.size; q++) {
+            dos.writeUTF(this.names.get(q));
+            dos.writeInt(this.levels[q]);
+            if (q >= this.columns) {
+                for (double value : this.vectors[q]) {
+                    dos.writeDouble(value);
+                }
+            }
+        }
+        dos.writeInt(this.entryPoint);
+        dos.writeInt(this.maxLevel);
+        for (int q = 0; q < this.size; q++) {
+            for (int[] layer : this.links[q]) {
+                for (int i = 0; i <= layer[0]; i++) {
+                    dos.writeInt(layer[i]);
+                }
+            }
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads in an index from a binary file, making the vectors of the
+     * columns from the matrix it was made for.
+     *
+     * @see CosineNeighborIndex#write(java.io.OutputStream)
+     */
+    public static CosineNeighborIndex read(InputStream in, CompleteMatrix matrix) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (dis.readInt() != INDEX_MAGIC) {
+            throw new IOException("Not a neighbor index file");
+        }
+        int version = dis.readInt();
+        if (version != INDEX_VERSION) {
+            throw new IOException("Unsupported neighbor index file version " + version);
+        }
+        int begin = dis.readInt();
+        int end = dis.readInt();
+        int m = dis.readInt();
+        int efConstruction = dis.readInt();
+        int count = dis.readInt();
+        ArrayList<String> nmers = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            nmers.add(dis.readUTF());
+        }
+        if (begin != matrix.getBegin() || end != matrix.getEnd() || !nmers.equals(matrix.getNmers())) {
+            throw new IOException("Neighbor index was made for different n-mers than the matrix");
+        }
+        CosineNeighborIndex index = new CosineNeighborIndex(begin, end, matrix.getNmers(),
+                m, efConstruction);
+        for (int i = 0; i < count; i++) {
+            index.centers[i] = dis.readDouble();
+            index.scales[i] = dis.readDouble();
+        }
+        int columns = dis.readInt();
+        if (columns != matrix.getNames().size()) {
+            throw new IOException(String.format("Neighbor index has %d samples from the matrix, it has %d",
+                    columns, matrix.getNames().size()));
+        }
+        double[][] normalized = index.normalizeColumns(matrix.getMatrix());
+        int size = dis.readInt();
+        for (int q = 0; q < size; q++) {
+            String name = dis.readUTF();
+            int level = dis.readInt();
+            double[] vector;
+            if (q < columns) {
+                if (!name.equals(matrix.getNames().get(q))) {
+                    throw new IOException(String.format("Sample %d of the neighbor index is %s, not %s",
+                            q, name, matrix.getNames().get(q)));
+                }
+                vector = normalized[q];
+            } else {
+                vector = new double[count];
+                for (int i = 0; i < count; i++) {
+                    vector[i] = dis.readDouble();
+                }
+            }
+            index.append(name, vector, level);
+        }
+        index.columns = columns;
+        index.entryPoint = dis.readInt();
+        index.maxLevel = dis.readInt();
+        for (int q = 0; q < size; q++) {
+            for (int[] layer : index.links[q]) {
+                int n = dis.readInt();
+                if (n < 0 || n >= layer.length) {
+                    throw new IOException(String.format("Sample %d has %d links", q, n));
+                }
+                layer[0] = n;
+                for (int i = 1; i <= n; i++) {
+                    layer[i] = dis.readInt();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index in the file if it exists and was made for the
+     * matrix, otherwise <code>null</code>.
+     */
+    public static CosineNeighborIndex load(File file, CompleteMatrix matrix) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            CosineNeighborIndex index = read(in, matrix);
+            LOG.debug(String.format("Read a neighbor index of %d samples from %s",
+                    index.size(), file.getPath()));
+            return index;
+        } catch (EOFException eof) {
+            LOG.warn("Ignoring truncated neighbor index file " + file.getPath());
+        } catch (IOException ioe) {
+            LOG.warn(String.format("Ignoring neighbor index file %s: %s", file.getPath(), ioe.getMessage()));
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+
+    /**
+     * Writes the index to the file.
+     */
+    public void save(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            this.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Buffers of a search, one per thread.
+     */
+    private class Search {
+
+        /** Nodes to visit, nearest on top */
+        final Heap candidates = new Heap(false);
+        /** Nearest nodes found, farthest on top */
+        final Heap results = new Heap(true);
+        final int[] visited = new int[size];
+        int mark = 0;
+        final int[] buffer = new int[2 * m];
+        /** Results of the last search, nearest first */
+        int[] ids = new int[16];
+        double[] dists = new double[16];
+
+        void clearVisited() {
+            if (++this.mark == 0) {
+                Arrays.fill(this.visited, 0);
+                this.mark = 1;
+            }
+        }
+
+        /**
+         * Moves the results into ids and dists, nearest first.
+         *
+         * @return the number of results
+         */
+        int drain() {
+            int n = this.results.size;
+            if (this.ids.length < n) {
+                this.ids = new int[n];
+                this.dists = new double[n];
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                this.ids[i] = this.results.topId();
+                this.dists[i] = this.results.topKey();
+                this.results.pop();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A growable binary heap of distances and nodes.
+     */
+    private static class Heap {
+
+        double[] keys = new double[16];
+        int[] ids = new int[16];
+        /** 1 to have the largest on top, -1 for the smallest */
+        final int sign;
+        int size = 0;
+
+        Heap(boolean largestOnTop) {
+            this.sign = largestOnTop ? 1 : -1;
+        }
+
+        boolean above(int i, int j) {
+            return this.sign * Double.compare(this.keys[i], this.keys[j]) > 0;
+        }
+
+        double topKey() {
+            return this.keys[0];
+        }
+
+        int topId() {
+            return this.ids[0];
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        void push(double key, int id) {
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            int i = this.size++;
+            this.keys[i] = key;
+            this.ids[i] = id;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!this.above(i, parent)) {
+                    break;
+                }
+                this.swap(i, parent);
+                i = parent;
+            }
+        }
+
+        void pop() {
+            this.size--;
+            if (this.size == 0) {
+                return;
+            }
+            this.keys[0] = this.keys[this.size];
+            this.ids[0] = this.ids[this.size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.above(child + 1, child)) {
+                    child++;
+                }
+                if (!this.above(child, i)) {
+                    break;
+                }
+                this.swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            double key = this.keys[i];
+            this.keys[i] = this.keys[j];
+            this.keys[j] = key;
+            int id = this.ids[i];
+            this.ids[i] = this.ids[j];
+            this.ids[j] = id;
+        }
+    }
+
+    private Neighbor neighbor(int id, double dist) {
+        return new Neighbor(id, this.names.get(id), toDistance(dist));
+    }
+
+    /**
+     * Returns the distance of the distance matrix from one minus the cosine
+     * similarity.
+     */
+    private static double toDistance(double dist) {
+        return Math.max(0.0, dist / 2.0);
+    }
+
+    /**
+     * Returns one minus the cosine similarity of two unit vectors.
+     */
+    private static double distance(double[] a, double[] b) {
+        double dot = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return 1.0 - dot;
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1.0 - this.random.nextDouble()) * this.levelFactor);
+    }
+
+    private int maxLinks(int level) {
+        return (level == 0) ? 2 * this.m : this.m;
+    }
+
+    /**
+     * Adds a node without linking it.
+     */
+    private int append(String name, double[] vector, int level) {
+        if (this.size == this.vectors.length) {
+            this.vectors = Arrays.copyOf(this.vectors, this.size * 2);
+            this.levels = Arrays.copyOf(this.levels, this.size * 2);
+            this.links = Arrays.copyOf(this.links, this.size * 2);
+        }
+        int q = this.size++;
+        this.names.add(name);
+        this.vectors[q] = vector;
+        this.levels[q] = level;
+        this.links[q] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            this.links[q][l] = new int[this.maxLinks(l) + 1];
+        }
+        return q;
+    }
+
+    /**
+     * Normalizes the pi-values and scales them to unit length.
+     */
+    private double[] normalize(double[] piValues) {
+        if (piValues.length != this.centers.length) {
+            throw new IllegalArgumentException(String.format("Expected %d pi-values, got %d",
+                    this.centers.length, piValues.length));
+        }
+        double[] vector = new double[piValues.length];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (piValues[i] + -1.0 * this.centers[i]) * this.scales[i];
+        }
+        return unit(vector);
+    }
+
+    /**
+     * Returns the normalized columns of the matrix, sweeping it by rows.
+     */
+    private double[][] normalizeColumns(RealMatrix matrix) {
+        final int rows = matrix.getRowDimension();
+        final int cols = matrix.getColumnDimension();
+        double[][] normalized = new double[cols][rows];
+        for (int i = 0; i < rows; i++) {
+            double[] row = matrix.getRow(i);
+            for (int j = 0; j < cols; j++) {
+                normalized[j][i] = (row[j] + -1.0 * this.centers[i]) * this.scales[i];
+            }
+        }
+        for (int j = 0; j < cols; j++) {
+            unit(normalized[j]);
+        }
+        return normalized;
+    }
+
+    private static double[] unit(double[] vector) {
+        double norm = 0.0;
+        for (double value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        if (norm > 0.0) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Copies the links of a node on a layer into the buffer.
+     *
+     * @return the number of links
+     */
+    private int getLinks(int node, int level, int[] buffer) {
+        synchronized (this.links[node]) {
+            int[] layer = this.links[node][level];
+            System.arraycopy(layer, 1, buffer, 0, layer[0]);
+            return layer[0];
+        }
+    }
+
+    /**
+     * Links an appended node into the graph.
+     */
+    private void link(int q, Search search) {
+        final double[] vector = this.vectors[q];
+        final int level = this.levels[q];
+        int ep;
+        int top;
+        synchronized (this) {
+            ep = this.entryPoint;
+            top = this.maxLevel;
+            if (ep < 0) {
+                this.entryPoint = q;
+                this.maxLevel = level;
+                return;
+            }
+        }
+        double epDist = distance(vector, this.vectors[ep]);
+        for (int l = top; l > level; l--) {
+            ep = this.closest(vector, ep, l, search);
+            epDist = distance(vector, this.vectors[ep]);
+        }
+        int[] selected = new int[2 * this.m];
+        for (int l = Math.min(top, level); l >= 0; l--) {
+            this.searchLayer(vector, ep, epDist, this.efConstruction, l, search);
+            int found = search.drain();
+            ep = search.ids[0];
+            epDist = search.dists[0];
+            int n = this.select(search.ids, search.dists, found, this.maxLinks(l), selected);
+            synchronized (this.links[q]) {
+                int[] layer = this.links[q][l];
+                System.arraycopy(selected, 0, layer, 1, n);
+                layer[0] = n;
+            }
+            for (int i = 0; i < n; i++) {
+                this.connect(selected[i], q, l);
+            }
+        }
+        if (level > top) {
+            synchronized (this) {
+                if (level > this.maxLevel) {
+                    this.maxLevel = level;
+                    this.entryPoint = q;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a link from node to q, dropping the links that no longer point in
+     * a different direction if the node has too many.
+     */
+    private void connect(int node, int q, int level) {
+        final int max = this.maxLinks(level);
+        synchronized (this.links[node]) {
+            int[] layer = this.links[node][level];
+            int n = layer[0];
+            if (n < max) {
+                layer[n + 1] = q;
+                layer[0] = n + 1;
+                return;
+            }
+            final double[] vector = this.vectors[node];
+            int[] ids = new int[n + 1];
+            double[] dists = new double[n + 1];
+            System.arraycopy(layer, 1, ids, 0, n);
+            ids[n] = q;
+            for (int i = 0; i <= n; i++) {
+                dists[i] = distance(vector, this.vectors[ids[i]]);
+            }
+            sortByDistance(ids, dists, n + 1);
+            int[] selected = new int[max];
+            int kept = this.select(ids, dists, n + 1, max, selected);
+            System.arraycopy(selected, 0, layer, 1, kept);
+            layer[0] = kept;
+        }
+    }
+
+    /**
+     * Picks up to max of the nodes, nearest first, skipping any that is
+     * nearer to a node already picked than to the base node (the heuristic
+     * of the HNSW paper), so the links point in different directions.
+     *
+     * @param ids the nodes, sorted by their distances to the base node
+     * @return the number of nodes picked into selected
+     */
+    private int select(int[] ids, double[] dists, int count, int max, int[] selected) {
+        int n = 0;
+        for (int i = 0; i < count && n < max; i++) {
+            final double[] vector = this.vectors[ids[i]];
+            boolean keep = true;
+            for (int j = 0; j < n; j++) {
+                if (distance(vector, this.vectors[selected[j]]) < dists[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[n++] = ids[i];
+            }
+        }
+        return n;
+    }
+
+    private static void sortByDistance(int[] ids, double[] dists, int count) {
+        for (int i = 1; i < count; i++) {
+            int id = ids[i];
+            double dist = dists[i];
+            int j = i - 1;
+            while (j >= 0 && dists[j] > dist) {
+                ids[j + 1] = ids[j];
+                dists[j + 1] = dists[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            dists[j + 1] = dist;
+        }
+    }
+
+    /**
+     * Walks greedily to the node nearest to the vector on a layer.
+     */
+    private int closest(double[] vector, int ep, int level, Search search) {
+        double best = distance(vector, this.vectors[ep]);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int n = this.getLinks(ep, level, search.buffer);
+            for (int i = 0; i < n; i++) {
+                int node = search.buffer[i];
+                double dist = distance(vector, this.vectors[node]);
+                if (dist < best) {
+                    best = dist;
+                    ep = node;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Finds the ef nodes nearest to the vector on a layer, starting from the
+     * entry point, into the results of the search.
+     */
+    private void searchLayer(double[] vector, int ep, double epDist, int ef, int level,
+            Search search) {
+        search.clearVisited();
+        search.candidates.clear();
+        search.results.clear();
+        search.visited[ep] = search.mark;
+        search.candidates.push(epDist, ep);
+        search.results.push(epDist, ep);
+        while (search.candidates.size > 0) {
+            if (search.candidates.topKey() > search.results.topKey()
+                    && search.results.size >= ef) {
+                break;
+            }
+            int node = search.candidates.topId();
+            search.candidates.pop();
+            int n = this.getLinks(node, level, search.buffer);
+            for (int i = 0; i < n; i++) {
+                int next = search.buffer[i];
+                if (search.visited[next] == search.mark) {
+                    continue;
+                }
+                search.visited[next] = search.mark;
+                double dist = distance(vector, this.vectors[next]);
+                if (search.results.size < ef || dist < search.results.topKey()) {
+                    search.candidates.push(dist, next);
+                    search.results.push(dist, next);
+                    if (search.results.size > ef) {
+                        search.results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the (up to) k nodes nearest to a normalized vector into the ids
+     * and dists of the search.
+     *
+     * @return the number found
+     */
+    private int search(double[] vector, int k, Search search) {
+        int ep;
+        int top;
+        synchronized (this) {
+            ep = this.entryPoint;
+            top = this.maxLevel;
+        }
+        if (ep < 0) {
+            return 0;
+        }
+        for (int l = top; l > 0; l--) {
+            ep = this.closest(vector, ep, l, search);
+        }
+        this.searchLayer(vector, ep, distance(vector, this.vectors[ep]),
+                Math.max(this.ef, k), 0, search);
+        while (search.results.size > k) {
+            search.results.pop();
+        }
+        return search.drain();
+    }
+}
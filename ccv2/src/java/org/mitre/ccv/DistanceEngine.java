@@ -0,0 +1,641 @@
+/**
+ * DistanceEngine.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.commons.math.linear.BlockRealMatrix;
+import org.apache.commons.math.linear.RealMatrix;
+import org.mitre.bio.phylo.DistanceMatrix;
+import org.mitre.math.linear.CondensedRealMatrix;
+import org.mitre.math.linear.FloatRealMatrix;
+import org.mitre.math.linear.QuantizedRealMatrix;
+import org.mitre.math.linear.RealMatrixUtils;
+
+/**
+ * Calculates the distances between all of the samples (columns) of a
+ * {@link CompleteMatrix}.
+ * <P>
+ * The matrix is normalized (as {@link RealMatrixUtils#normalizeMatrix} does)
+ * into a copy held as one <code>double[]</code> per sample, so the
+ * caller's matrix is left alone. The upper triangle of sample pairs is cut
+ * into square tiles of {@link #TILE_SIZE} samples that are handed to a
+ * pool of threads. A tile sweeps the n-mers in chunks, so the columns of
+ * its samples stay in the cache, and keeps one running sum per pair.
+ * <P>
+ * Each sum adds its terms in the same order as the matrix operations
+ * <code>AbstractVectorSet</code> used to do (including the blocked dot
+ * product of a {@link BlockRealMatrix}), so the distances are the same to
+ * the last bit. That is also why the inner loops stay scalar: splitting a
+ * sum into lanes would change its rounding.
+ * <P>
+ * Normalizing gives all of the zero entries of a row the same value, so a
+ * pair of samples only differs on the n-mers either of them has. When at
+ * most {@link #getSparseDensity()} of the matrix is non-zero each sample is
+ * kept as its sorted non-zero rows and values, and the distances are merge
+ * joins over the two samples' rows: the skipped terms are exactly zero, so
+ * the Euclidean, Manhattan and squared Euclidean distances do not change.
+ * The sparse cosine adds the dot product up in a different order (the sum
+ * of the zero rows plus a correction per non-zero row), so its distances
+ * can differ from the dense ones in the last bits (by a few units in the
+ * last place).
+ *
+ * @author Marc Colosimo
+ */
+public class DistanceEngine {
+
+    private static final Log LOG = LogFactory.getLog("DistanceEngine");
+
+    /** Euclidean distance of the normalized samples */
+    public static final int EUCLIDEAN = 0;
+    /** Manhattan distance of the normalized samples */
+    public static final int MANHATTAN = 1;
+    /** Squared Euclidean distance of the normalized samples */
+    public static final int SQUARED_EUCLIDEAN = 2;
+    /** (1 - cosine similarity) / 2 of the normalized samples */
+    public static final int COSINE = 3;
+
+    /** Samples along each side of a tile */
+    public static final int TILE_SIZE = 32;
+
+    /** N-mers swept at a time, whole blocks of a BlockRealMatrix */
+    private static final int CHUNK_SIZE = 16 * BlockRealMatrix.BLOCK_SIZE;
+
+    /** Default largest fraction of non-zero entries for the sparse kernels */
+    public static final double DEFAULT_SPARSE_DENSITY = 0.3;
+
+    private final int threads;
+    private double sparseDensity = DEFAULT_SPARSE_DENSITY;
+    private int distancePrecision = RealMatrixUtils.PRECISION_DOUBLE;
+    private boolean mappedDistances = false;
+
+    /**
+     * Construct a new <tt>DistanceEngine</tt> object using the calling thread.
+     */
+    public DistanceEngine() {
+        this(1);
+    }
+
+    /**
+     * Construct a new <tt>DistanceEngine</tt> object.
+     *
+     * @param threads the number of threads to calculate tiles with.
+     */
+    public DistanceEngine(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public double getSparseDensity() {
+        return this.sparseDensity;
+    }
+
+    /**
+     * Sets the largest fraction of non-zero entries of a matrix that uses
+     * the sparse kernels (zero always uses the dense ones).
+     */
+    public void setSparseDensity(double sparseDensity) {
+        if (!(sparseDensity >= 0.0 && sparseDensity <= 1.0)) {
+            throw new IllegalArgumentException("Density must be between 0 and 1");
+        }
+        this.sparseDensity = sparseDensity;
+    }
+
+    public int getDistancePrecision() {
+        return this.distancePrecision;
+    }
+
+    /**
+     * Sets whether the distances are stored as <code>double</code>s
+     * ({@link RealMatrixUtils#PRECISION_DOUBLE}, the default) or
+     * <code>float</code>s ({@link RealMatrixUtils#PRECISION_FLOAT}).
+     */
+    public void setDistancePrecision(int distancePrecision) {
+        if (distancePrecision != RealMatrixUtils.PRECISION_DOUBLE
+                && distancePrecision != RealMatrixUtils.PRECISION_FLOAT) {
+            throw new IllegalArgumentException("Distances must be stored as doubles or floats");
+        }
+        this.distancePrecision = distancePrecision;
+    }
+
+    public boolean isMappedDistances() {
+        return this.mappedDistances;
+    }
+
+    /**
+     * Sets whether the distances are stored in a memory-mapped temporary
+     * file instead of direct memory.
+     */
+    public void setMappedDistances(boolean mappedDistances) {
+        this.mappedDistances = mappedDistances;
+    }
+
+    /**
+     * Returns a distance matrix of zeros between the named samples, only
+     * storing the entries above the diagonal (in a {@link CondensedRealMatrix}).
+     */
+    public DistanceMatrix createDistanceMatrix(List<String> names) {
+        return new DistanceMatrix(this.createDistances(names.size()),
+                names.toArray(new String[names.size()]));
+    }
+
+    private CondensedRealMatrix createDistances(int size) {
+        if (this.mappedDistances) {
+            try {
+                return new CondensedRealMatrix(size, this.distancePrecision, null);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to map a file for the distances", ioe);
+            }
+        }
+        return new CondensedRealMatrix(size, this.distancePrecision);
+    }
+
+    /**
+     * The normalized samples and how to add up their products.
+     */
+    private static class Columns {
+
+        /** Each column or, if sparse, the values of its non-zero rows */
+        final double[][] columns;
+        /** The non-zero rows of each column (<code>null</code> if dense) */
+        int[][] indexes;
+        /** The normalized value of the zero entries of each row (if sparse) */
+        double[] background;
+        /** The dot product of two columns of only zero entries */
+        double backgroundDot;
+        final int length;
+        /** Dot products are added up a block at a time */
+        final boolean blocked;
+        /**
+         * Differences and dot products are rounded to floats (a float matrix
+         * makes float matrices to hold them)
+         */
+        final boolean floats;
+        /** The two norm of each column (for the cosine) */
+        double[] norms;
+
+        Columns(double[][] columns, int length, boolean blocked, boolean floats) {
+            this.columns = columns;
+            this.length = length;
+            this.blocked = blocked;
+            this.floats = floats;
+        }
+    }
+
+    /**
+     * Returns the distances between the samples of the matrix.
+     *
+     * @param completeMatrix the matrix with n-mers as rows and samples as columns.
+     * @param metric one of {@link #EUCLIDEAN}, {@link #MANHATTAN},
+     * {@link #SQUARED_EUCLIDEAN} or {@link #COSINE}.
+     */
+    public DistanceMatrix create(CompleteMatrix completeMatrix, final int metric) {
+        if (metric < EUCLIDEAN || metric > COSINE) {
+            throw new IllegalArgumentException("Unknown distance metric " + metric);
+        }
+        final int size = completeMatrix.getNames().size();
+        final RealMatrix matrix = completeMatrix.getMatrix();
+        Columns normalized = null;
+        if (this.sparseDensity > 0.0) {
+            normalized = sparseColumns(matrix, this.sparseDensity);
+        }
+        if (normalized == null) {
+            normalized = normalizedColumns(matrix);
+        }
+        final Columns columns = normalized;
+        if (metric == COSINE) {
+            columns.norms = new double[size];
+            for (int i = 0; i < size; i++) {
+                columns.norms[i] = norm2(columns, i);
+            }
+        }
+
+        final CondensedRealMatrix distances = this.createDistances(size);
+        final int tiles = (size + TILE_SIZE - 1) / TILE_SIZE;
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int ti = 0; ti < tiles; ti++) {
+            for (int tj = ti; tj < tiles; tj++) {
+                final int i0 = ti * TILE_SIZE;
+                final int j0 = tj * TILE_SIZE;
+                tasks.add(new Runnable() {
+
+                    public void run() {
+                        calculateTile(columns, metric, i0, Math.min(size, i0 + TILE_SIZE),
+                                j0, Math.min(size, j0 + TILE_SIZE), distances);
+                    }
+                });
+            }
+        }
+        LOG.debug(String.format("Calculating %d tiles of distances for %d samples with %d threads",
+                tasks.size(), size, this.threads));
+        run(tasks, this.threads, "DistanceEngine-worker");
+
+        return new DistanceMatrix(distances,
+                completeMatrix.getNames().toArray(new String[size]));
+    }
+
+    /**
+     * Runs the tasks on the calling thread or a pool of (daemon) threads
+     * with the given name, rethrowing the first exception of a task.
+     */
+    static void run(List<Runnable> tasks, int threads, final String name) {
+        if (threads == 1 || tasks.size() == 1) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, tasks.size()), new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running " + name, ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Calculates the distances of the pairs (i, j), i &lt; j, of a tile.
+     */
+    private static void calculateTile(Columns columns, int metric,
+            int i0, int i1, int j0, int j1, CondensedRealMatrix distances) {
+        final int width = j1 - j0;
+        final double[] sums = new double[(i1 - i0) * width];
+        final int length = columns.length;
+        if (columns.indexes != null) {
+            for (int i = i0; i < i1; i++) {
+                for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                    final int p = (i - i0) * width + (j - j0);
+                    sums[p] = (metric == COSINE) ? sparseDot(columns, i, j)
+                            : sparseSum(columns, metric, i, j);
+                }
+            }
+        } else {
+            for (int k0 = 0; k0 < length; k0 += CHUNK_SIZE) {
+                final int k1 = Math.min(length, k0 + CHUNK_SIZE);
+                for (int i = i0; i < i1; i++) {
+                    final double[] a = columns.columns[i];
+                    for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                        final double[] b = columns.columns[j];
+                        final int p = (i - i0) * width + (j - j0);
+                        switch (metric) {
+                            case MANHATTAN:
+                                sums[p] = columns.floats ? sumAbsFloatDifferences(a, b, k0, k1, sums[p])
+                                        : sumAbsDifferences(a, b, k0, k1, sums[p]);
+                                break;
+                            case COSINE:
+                                sums[p] = columns.blocked ? blockedDot(a, b, k0, k1, sums[p])
+                                        : dot(a, b, k0, k1, sums[p]);
+                                break;
+                            default:
+                                sums[p] = columns.floats ? sumSquaredFloatDifferences(a, b, k0, k1, sums[p])
+                                        : sumSquaredDifferences(a, b, k0, k1, sums[p]);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = i0; i < i1; i++) {
+            final int from = Math.max(j0, i + 1);
+            long index = distances.getIndex(i, from);
+            for (int j = from; j < j1; j++) {
+                final double sum = sums[(i - i0) * width + (j - j0)];
+                double dist;
+                switch (metric) {
+                    case EUCLIDEAN:
+                        dist = Math.sqrt(sum);
+                        break;
+                    case COSINE:
+                        dist = columns.floats ? (float) sum : sum;
+                        dist = dist / (columns.norms[i] * columns.norms[j]);
+                        dist = (1.0 - dist) / 2.0;
+                        if (dist < 0) {
+                            dist = 0.0;
+                        }
+                        break;
+                    default:
+                        dist = sum;
+                }
+                distances.setEntry(index++, dist);
+            }
+        }
+    }
+
+    private static double sumSquaredDifferences(double[] a, double[] b, int from, int to, double sum) {
+        for (int k = from; k < to; k++) {
+            final double d = a[k] - b[k];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static double sumSquaredFloatDifferences(double[] a, double[] b, int from, int to, double sum) {
+        for (int k = from; k < to; k++) {
+            final double d = (float) (a[k] - b[k]);
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static double sumAbsFloatDifferences(double[] a, double[] b, int from, int to, double sum) {
+        for (int k = from; k < to; k++) {
+            sum += Math.abs((float) (a[k] - b[k]));
+        }
+        return sum;
+    }
+
+    private static double sumAbsDifferences(double[] a, double[] b, int from, int to, double sum) {
+        for (int k = from; k < to; k++) {
+            sum += Math.abs(a[k] - b[k]);
+        }
+        return sum;
+    }
+
+    private static double dot(double[] a, double[] b, int from, int to, double sum) {
+        for (int k = from; k < to; k++) {
+            sum += a[k] * b[k];
+        }
+        return sum;
+    }
+
+    /**
+     * The dot product as {@link BlockRealMatrix#multiply} adds it up: four
+     * products at a time within each block, then block by block (from has
+     * to start a block).
+     */
+    private static double blockedDot(double[] a, double[] b, int from, int to, double out) {
+        for (int start = from; start < to; start += BlockRealMatrix.BLOCK_SIZE) {
+            final int end = Math.min(to, start + BlockRealMatrix.BLOCK_SIZE);
+            double sum = 0;
+            int k = start;
+            while (k < end - 3) {
+                sum += a[k] * b[k] + a[k + 1] * b[k + 1] + a[k + 2] * b[k + 2] + a[k + 3] * b[k + 3];
+                k += 4;
+            }
+            while (k < end) {
+                sum += a[k] * b[k];
+                k++;
+            }
+            out += sum;
+        }
+        return out;
+    }
+
+    /**
+     * Returns the sum of the terms of the differences of the two sparse
+     * columns, taken over the rows either of them has in order.
+     */
+    private static double sparseSum(Columns columns, int metric, int a, int b) {
+        final int[] ia = columns.indexes[a];
+        final int[] ib = columns.indexes[b];
+        final double[] va = columns.columns[a];
+        final double[] vb = columns.columns[b];
+        final double[] background = columns.background;
+        final boolean floats = columns.floats;
+        double sum = 0;
+        int p = 0;
+        int q = 0;
+        while (p < ia.length || q < ib.length) {
+            final int ra = (p < ia.length) ? ia[p] : Integer.MAX_VALUE;
+            final int rb = (q < ib.length) ? ib[q] : Integer.MAX_VALUE;
+            double d;
+            if (ra == rb) {
+                d = va[p++] - vb[q++];
+            } else if (ra < rb) {
+                d = va[p++] - background[ra];
+            } else {
+                d = background[rb] - vb[q++];
+            }
+            if (floats) {
+                d = (float) d;
+            }
+            sum += (metric == MANHATTAN) ? Math.abs(d) : d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the dot product of two sparse columns: the dot product of the
+     * zero rows plus, for each row either of them has, its product less the
+     * zero rows' product.
+     */
+    private static double sparseDot(Columns columns, int a, int b) {
+        final int[] ia = columns.indexes[a];
+        final int[] ib = columns.indexes[b];
+        final double[] va = columns.columns[a];
+        final double[] vb = columns.columns[b];
+        final double[] background = columns.background;
+        double correction = 0;
+        int p = 0;
+        int q = 0;
+        while (p < ia.length || q < ib.length) {
+            final int ra = (p < ia.length) ? ia[p] : Integer.MAX_VALUE;
+            final int rb = (q < ib.length) ? ib[q] : Integer.MAX_VALUE;
+            final int r = Math.min(ra, rb);
+            final double x = (ra == r) ? va[p++] : background[r];
+            final double y = (rb == r) ? vb[q++] : background[r];
+            correction += x * y - background[r] * background[r];
+        }
+        return columns.backgroundDot + correction;
+    }
+
+    /**
+     * The two norm of a column (its largest singular value).
+     */
+    private static double norm2(Columns columns, int c) {
+        final double[] a = columns.columns[c];
+        double sum = 0;
+        if (columns.indexes == null) {
+            for (int k = 0; k < a.length; k++) {
+                sum += a[k] * a[k];
+            }
+        } else {
+            final int[] rows = columns.indexes[c];
+            int p = 0;
+            for (int k = 0; k < columns.length; k++) {
+                final double v = (p < rows.length && rows[p] == k) ? a[p++] : columns.background[k];
+                sum += v * v;
+            }
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Returns the columns of the matrix after normalizing its rows.
+     */
+    private static Columns normalizedColumns(RealMatrix matrix) {
+        final int rows = matrix.getRowDimension();
+        final int cols = matrix.getColumnDimension();
+        final double[][] columns = new double[cols][rows];
+        final RowNormalizer normalizer = new RowNormalizer(matrix);
+        final double[] row = new double[cols];
+        for (int i = 0; i < rows; i++) {
+            normalizer.normalize(i, row);
+            for (int j = 0; j < cols; j++) {
+                columns[j][i] = row[j];
+            }
+        }
+        return new Columns(columns, rows, isBlocked(matrix), normalizer.floats);
+    }
+
+    /**
+     * Returns the non-zero entries of the columns of the matrix after
+     * normalizing its rows, or <code>null</code> if more than the density
+     * of the entries are non-zero or the zero entries of a row are not a
+     * number (a row of only zeros), so the matrix must be dense.
+     */
+    private static Columns sparseColumns(RealMatrix matrix, double density) {
+        final int rows = matrix.getRowDimension();
+        final int cols = matrix.getColumnDimension();
+        final long most = (long) (density * rows * cols);
+        final int[] counts = new int[cols];
+        long nonZeros = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (matrix.getEntry(i, j) != 0.0) {
+                    counts[j]++;
+                    nonZeros++;
+                }
+            }
+            if (nonZeros > most) {
+                return null;
+            }
+        }
+        LOG.debug(String.format("Using sparse kernels for %d non-zero entries out of %d",
+                nonZeros, (long) rows * cols));
+        final double[][] values = new double[cols][];
+        final int[][] indexes = new int[cols][];
+        for (int j = 0; j < cols; j++) {
+            values[j] = new double[counts[j]];
+            indexes[j] = new int[counts[j]];
+            counts[j] = 0;
+        }
+        final double[] background = new double[rows];
+        final RowNormalizer normalizer = new RowNormalizer(matrix);
+        final double[] row = new double[cols];
+        double backgroundDot = 0;
+        for (int i = 0; i < rows; i++) {
+            normalizer.normalize(i, row);
+            for (int j = 0; j < cols; j++) {
+                /** The normalized zeros of a row are all the same */
+                if (matrix.getEntry(i, j) == 0.0) {
+                    background[i] = row[j];
+                } else {
+                    values[j][counts[j]] = row[j];
+                    indexes[j][counts[j]++] = i;
+                }
+            }
+            if (Double.isNaN(background[i]) || Double.isInfinite(background[i])) {
+                return null;
+            }
+            backgroundDot += background[i] * background[i];
+        }
+        Columns columns = new Columns(values, rows, isBlocked(matrix), normalizer.floats);
+        columns.indexes = indexes;
+        columns.background = background;
+        columns.backgroundDot = backgroundDot;
+        return columns;
+    }
+
+    /**
+     * Sub-matrices of the matrix decide how its dot products were added.
+     */
+    private static boolean isBlocked(RealMatrix matrix) {
+        final int rows = matrix.getRowDimension();
+        return rows > 0 && matrix.getColumnDimension() > 0
+                && matrix.getSubMatrix(0, rows - 1, 0, 0) instanceof BlockRealMatrix;
+    }
+
+    /**
+     * Normalizes the rows of a matrix as storing them back in it would.
+     */
+    private static class RowNormalizer {
+
+        final RealMatrix matrix;
+        /** The rows normalized as a float matrix does (null if not one) */
+        final RealMatrix normalized;
+        /** A quantized matrix rescales and rounds each normalized row */
+        final RealMatrix buffer;
+        final boolean floats;
+
+        RowNormalizer(RealMatrix matrix) {
+            this.matrix = matrix;
+            this.floats = matrix instanceof FloatRealMatrix;
+            if (this.floats) {
+                /** Normalizing a float matrix rounds each step to a float */
+                this.normalized = matrix.copy();
+                RealMatrixUtils.getSingleton().normalizeMatrix(this.normalized);
+            } else {
+                this.normalized = null;
+            }
+            this.buffer = (matrix instanceof QuantizedRealMatrix)
+                    ? new QuantizedRealMatrix(1, matrix.getColumnDimension(), new int[1], new double[1])
+                    : null;
+        }
+
+        void normalize(int i, double[] row) {
+            final int cols = row.length;
+            if (this.normalized != null) {
+                for (int j = 0; j < cols; j++) {
+                    row[j] = this.normalized.getEntry(i, j);
+                }
+                return;
+            }
+            for (int j = 0; j < cols; j++) {
+                row[j] = this.matrix.getEntry(i, j);
+            }
+            RealMatrixUtils.normalizeRow(row);
+            if (this.buffer != null) {
+                this.buffer.setRow(0, row);
+                for (int j = 0; j < cols; j++) {
+                    row[j] = this.buffer.getEntry(0, j);
+                }
+            }
+        }
+    }
+}
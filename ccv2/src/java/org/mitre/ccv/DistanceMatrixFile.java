@@ -0,0 +1,229 @@
+/**
+ * DistanceMatrixFile.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.bio.phylo.DistanceMatrix;
+import org.mitre.math.linear.CondensedRealMatrix;
+import org.mitre.math.linear.RealMatrixUtils;
+
+/**
+ * A binary file of the distances between samples, which is read back by
+ * memory-mapping the distances instead of parsing them, so clustering or
+ * tree building can be run again without calculating the vectors.
+ * <P>
+ * Format (big-endian):
+ * <pre>
+ * int      DISTANCE_MAGIC, DISTANCE_VERSION
+ * int      precision (RealMatrixUtils.PRECISION_DOUBLE or PRECISION_FLOAT)
+ * int      distance type (the <code>-distance</code> option of the CLI)
+ * int      number of samples
+ * long     offset of the distances (a multiple of 8)
+ *          each sample's name (UTF, see {@link DataOutputStream}), then zeros up to the offset
+ * at the offset: the n(n-1)/2 distances above the diagonal, row by row
+ *          (see {@link CondensedRealMatrix}), as doubles or floats
+ * </pre>
+ *
+ * @author Marc Colosimo
+ */
+public class DistanceMatrixFile {
+
+    private static final Log LOG = LogFactory.getLog("DistanceMatrixFile");
+
+    /** Magic number at the start of a binary distance file ("CCVD") */
+    public static final int DISTANCE_MAGIC = 0x43435644;
+    /** Version of the binary distance file format */
+    public static final int DISTANCE_VERSION = 1;
+
+    /** Bytes of distances written to the channel at a time */
+    private static final int WRITE_BUFFER_SIZE = 1 << 22;
+    /** Bytes before the names: five ints and the long offset */
+    private static final int FIXED_HEADER_SIZE = 5 * 4 + 8;
+
+    private final DistanceMatrix distances;
+    private final int distanceType;
+    private final int precision;
+
+    private DistanceMatrixFile(DistanceMatrix distances, int distanceType, int precision) {
+        this.distances = distances;
+        this.distanceType = distanceType;
+        this.precision = precision;
+    }
+
+    /**
+     * Returns the distances, which are mapped read-only from the file.
+     */
+    public DistanceMatrix getDistanceMatrix() {
+        return this.distances;
+    }
+
+    /**
+     * Returns the distance type the distances were written with.
+     */
+    public int getDistanceType() {
+        return this.distanceType;
+    }
+
+    public int getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * Writes the distances to a binary file, storing them in the given
+     * precision.
+     *
+     * @param dm the distances (only those above the diagonal are written).
+     * @param distanceType the distance type to keep with the distances.
+     * @param precision {@link RealMatrixUtils#PRECISION_DOUBLE} or {@link RealMatrixUtils#PRECISION_FLOAT}
+     * @param file the file to write (it is replaced).
+     * @return the largest absolute error of the written distances
+     */
+    public static double write(DistanceMatrix dm, int distanceType, int precision, File file)
+            throws IOException {
+        if (precision != RealMatrixUtils.PRECISION_DOUBLE
+                && precision != RealMatrixUtils.PRECISION_FLOAT) {
+            throw new IllegalArgumentException("Distances must be written as doubles or floats");
+        }
+        final int size = dm.getSize();
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(names);
+        for (int i = 0; i < size; i++) {
+            dos.writeUTF(dm.getIdentifier(i));
+        }
+        dos.flush();
+        final long offset = (FIXED_HEADER_SIZE + names.size() + 7) / 8 * 8;
+
+        ByteBuffer header = ByteBuffer.allocate((int) offset);
+        header.putInt(DISTANCE_MAGIC);
+        header.putInt(DISTANCE_VERSION);
+        header.putInt(precision);
+        header.putInt(distanceType);
+        header.putInt(size);
+        header.putLong(offset);
+        header.put(names.toByteArray());
+        header.clear();
+
+        double error = 0.0;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0L);
+            FileChannel channel = raf.getChannel();
+            writeFully(channel, header);
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            final int bytes = CondensedRealMatrix.getEntryByteSize(precision);
+            for (int i = 0; i < size; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    if (buffer.remaining() < bytes) {
+                        buffer.flip();
+                        writeFully(channel, buffer);
+                        buffer.clear();
+                    }
+                    double d = dm.getDistance(i, j);
+                    if (precision == RealMatrixUtils.PRECISION_FLOAT) {
+                        buffer.putFloat((float) d);
+                        error = Math.max(error, Math.abs(d - (float) d));
+                    } else {
+                        buffer.putDouble(d);
+                    }
+                }
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        } finally {
+            raf.close();
+        }
+        LOG.debug(String.format("Wrote %d distances of %d samples to '%s'",
+                CondensedRealMatrix.getEntryCount(size), size, file.getPath()));
+        return error;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the names from a binary distance file and maps its distances.
+     *
+     * @see #write(DistanceMatrix, int, int, File)
+     */
+    public static DistanceMatrixFile read(File file) throws IOException {
+        int precision, distanceType, size;
+        long offset;
+        String[] names;
+        DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (dis.readInt() != DISTANCE_MAGIC) {
+                throw new IOException("Not a binary distance file");
+            }
+            int version = dis.readInt();
+            if (version != DISTANCE_VERSION) {
+                throw new IOException("Unsupported binary distance file version " + version);
+            }
+            precision = dis.readInt();
+            if (precision != RealMatrixUtils.PRECISION_DOUBLE
+                    && precision != RealMatrixUtils.PRECISION_FLOAT) {
+                throw new IOException("Unknown precision " + precision + " in binary distance file");
+            }
+            distanceType = dis.readInt();
+            size = dis.readInt();
+            offset = dis.readLong();
+            names = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = dis.readUTF();
+            }
+        } finally {
+            dis.close();
+        }
+
+        long length = offset + CondensedRealMatrix.getEntryCount(size)
+                * CondensedRealMatrix.getEntryByteSize(precision);
+        if (file.length() < length) {
+            throw new IOException(String.format("Expected %d bytes in binary distance file, found %d",
+                    length, file.length()));
+        }
+        CondensedRealMatrix matrix;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            matrix = new CondensedRealMatrix(size, precision, raf.getChannel(),
+                    offset, FileChannel.MapMode.READ_ONLY);
+        } finally {
+            raf.close();
+        }
+        return new DistanceMatrixFile(new DistanceMatrix(matrix, names), distanceType, precision);
+    }
+
+    /**
+     * Returns <code>true</code> if the file starts like a binary distance file.
+     */
+    public static boolean isDistanceMatrixFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == DISTANCE_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+}
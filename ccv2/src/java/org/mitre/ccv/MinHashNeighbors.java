@@ -0,0 +1,191 @@
+/**
+ * MinHashNeighbors.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.clustering.SimilarityGraph;
+import org.mitre.util.MinHash;
+import org.mitre.util.MinHashLSH;
+
+/**
+ * Finds the pairs of samples whose n-mer sets have a Jaccard similarity of
+ * at least a threshold without comparing all of the pairs.
+ * <P>
+ * Each sample gets a one permutation MinHash signature of its n-mer hashes
+ * (see {@link MinHashSketches#hash(String)}) that is banded by a
+ * {@link MinHashLSH} index tuned to find pairs at the threshold with a
+ * probability of {@link MinHashLSH#DEFAULT_RECALL}. Only the candidate pairs
+ * it finds are compared, by the similarity of their signatures, and the ones
+ * at or above the threshold become the edges of a {@link SimilarityGraph}.
+ * <P>
+ * {@link #recall(SimilarityGraph, int[], List, double)} checks how many of the
+ * pairs above the threshold were found, using exact Jaccard similarities of
+ * a sample of the samples.
+ *
+ * @author Marc Colosimo
+ */
+public class MinHashNeighbors {
+
+    private static final Log LOG = LogFactory.getLog("MinHashNeighbors");
+
+    /** Default number of bins in a signature */
+    public static final int DEFAULT_BINS = 128;
+
+    /** Default number of samples the recall is checked with */
+    public static final int DEFAULT_RECALL_SAMPLES = 200;
+
+    private final double threshold;
+    private final int bins;
+    private final MinHashLSH lsh;
+    private final List<long[]> signatures = new ArrayList<long[]>();
+
+    /**
+     * Construct an empty set of samples.
+     *
+     * @param threshold the smallest Jaccard similarity of a pair of neighbors
+     * @param bins the number of bins in a signature
+     */
+    public MinHashNeighbors(double threshold, int bins) {
+        this.threshold = threshold;
+        this.bins = bins;
+        this.lsh = MinHashLSH.forThreshold(threshold, bins);
+        LOG.debug(String.format("Banding %d bins into %d bands of %d rows for a threshold of %f",
+                bins, this.lsh.getBands(), this.lsh.getRows(), threshold));
+    }
+
+    public double getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Returns the number of samples added.
+     */
+    public int size() {
+        return this.signatures.size();
+    }
+
+    /**
+     * Adds a sample from the hashes of its n-mers.
+     *
+     * @return the number of the sample (its point in the graph)
+     */
+    public int addSample(long[] hashes) {
+        long[] signature = MinHash.getSingleton().signature(hashes, this.bins);
+        this.signatures.add(signature);
+        return this.lsh.add(signature);
+    }
+
+    /**
+     * Returns the graph of the pairs of samples with an estimated similarity
+     * of at least the threshold.
+     */
+    public SimilarityGraph createGraph() {
+        long[] candidates = this.lsh.getCandidatePairs();
+        int[] from = new int[candidates.length];
+        int[] to = new int[candidates.length];
+        double[] similarity = new double[candidates.length];
+        final MinHash minHash = MinHash.getSingleton();
+        int n = 0;
+        for (long pair : candidates) {
+            int i = MinHashLSH.first(pair);
+            int j = MinHashLSH.second(pair);
+            double sim = minHash.similarity(this.signatures.get(i), this.signatures.get(j));
+            if (sim >= this.threshold) {
+                from[n] = i;
+                to[n] = j;
+                similarity[n++] = sim;
+            }
+        }
+        LOG.info(String.format("Kept %d of %d candidate pairs of %d samples",
+                n, candidates.length, this.signatures.size()));
+        return new SimilarityGraph(this.signatures.size(), Arrays.copyOf(from, n),
+                Arrays.copyOf(to, n), Arrays.copyOf(similarity, n));
+    }
+
+    /**
+     * Returns the fraction of the pairs of the given samples with an exact
+     * Jaccard similarity of at least the threshold that are edges of the
+     * graph, or not a number if there are no such pairs.
+     *
+     * @param graph the graph of all of the samples
+     * @param points the samples (points of the graph) to check
+     * @param hashes the n-mer hashes of each of those samples
+     * @param threshold the smallest similarity of a pair that should be found
+     */
+    public static double recall(SimilarityGraph graph, int[] points, List<long[]> hashes,
+            double threshold) {
+        long[][] sets = new long[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            sets[i] = distinct(hashes.get(i));
+        }
+        int pairs = 0;
+        int found = 0;
+        for (int i = 0; i < points.length; i++) {
+            for (int j = i + 1; j < points.length; j++) {
+                if (jaccard(sets[i], sets[j]) >= threshold) {
+                    pairs++;
+                    if (graph.indexOf(points[i], points[j]) >= 0) {
+                        found++;
+                    }
+                }
+            }
+        }
+        LOG.debug(String.format("Found %d of %d pairs above %f among %d samples",
+                found, pairs, threshold, points.length));
+        return (double) found / pairs;
+    }
+
+    /**
+     * Returns up to <code>count</code> of the numbers below <code>size</code>,
+     * evenly spaced, for checking the recall with.
+     */
+    public static int[] spread(int size, int count) {
+        int[] points = new int[Math.min(size, count)];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = (int) ((long) i * size / points.length);
+        }
+        return points;
+    }
+
+    private static long[] distinct(long[] hashes) {
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        int u = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (u == 0 || sorted[u - 1] != sorted[i]) {
+                sorted[u++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, u);
+    }
+
+    /**
+     * Returns the Jaccard similarity of two sorted sets.
+     */
+    private static double jaccard(long[] a, long[] b) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+}
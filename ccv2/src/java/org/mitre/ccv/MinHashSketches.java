@@ -0,0 +1,291 @@
+/**
+ * MinHashSketches.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.bio.phylo.DistanceMatrix;
+import org.mitre.ccv.index.KmerCodec;
+import org.mitre.util.MinHash;
+import org.mitre.util.MurmurHash;
+
+/**
+ * Bottom-k MinHash sketches of the n-mer sets of samples, used to estimate
+ * the Jaccard distances between them without comparing the sets.
+ * <P>
+ * An n-mer is hashed by its packed key (see {@link KmerCodec}), so an
+ * indexed set does not have to make its n-mers into strings; n-mers that
+ * cannot be packed are hashed by their characters. A sample's sketch is the
+ * {@link #getSketchSize()} smallest hashes of all of its n-mers (over every
+ * window size), and the similarity of two samples is estimated from the
+ * smallest hashes of the union of their sketches (see
+ * {@link MinHash#jaccard(long[], long[], int)}). The standard error of the
+ * estimate is about <code>1/sqrt(k)</code>.
+ * <P>
+ * Sketches are kept by sample name and can be written to a sketch file, so
+ * a sample's sketch is only made once.
+ *
+ * @author Marc Colosimo
+ */
+public class MinHashSketches {
+
+    private static final Log LOG = LogFactory.getLog("MinHashSketches");
+
+    /** Default number of hashes in a sketch */
+    public static final int DEFAULT_SKETCH_SIZE = 1000;
+
+    /** Seed of the n-mer hashes */
+    public static final int SEED = 0x9747b28c;
+
+    /** Magic number at the start of a sketch file ("CCVS") */
+    public static final int SKETCH_MAGIC = 0x43435653;
+    /** Version of the sketch file format */
+    public static final int SKETCH_VERSION = 1;
+
+    private final int begin;
+    private final int end;
+    private final int sketchSize;
+    private final Map<String, long[]> sketches = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Construct an empty set of sketches.
+     *
+     * @param begin the smallest window size of the n-mers
+     * @param end the largest window size of the n-mers
+     * @param sketchSize the number of hashes in a sketch
+     */
+    public MinHashSketches(int begin, int end, int sketchSize) {
+        if (sketchSize < 1) {
+            throw new IllegalArgumentException("Sketch size must be at least one");
+        }
+        this.begin = begin;
+        this.end = end;
+        this.sketchSize = sketchSize;
+    }
+
+    public int getBegin() {
+        return this.begin;
+    }
+
+    public int getEnd() {
+        return this.end;
+    }
+
+    public int getSketchSize() {
+        return this.sketchSize;
+    }
+
+    /**
+     * Returns the number of samples with sketches.
+     */
+    public int size() {
+        return this.sketches.size();
+    }
+
+    public boolean contains(String name) {
+        return this.sketches.containsKey(name);
+    }
+
+    /**
+     * Returns the sorted sketch of the sample or <code>null</code> if it
+     * does not have one.
+     */
+    public long[] getSketch(String name) {
+        return this.sketches.get(name);
+    }
+
+    /**
+     * Sketches the sample from the hashes of its n-mers (see
+     * {@link #hash(String)} and {@link #hash(long)}), replacing any sketch
+     * it had.
+     */
+    public void addSample(String name, long[] hashes) {
+        this.sketches.put(name, MinHash.getSingleton().sketch(hashes, this.sketchSize));
+    }
+
+    /**
+     * Returns the hash of an n-mer.
+     */
+    public static long hash(String nmer) {
+        long key = KmerCodec.pack(nmer, 0, nmer.length());
+        if (key != KmerCodec.NO_KEY) {
+            return hash(key);
+        }
+        byte[] bytes = nmer.getBytes();
+        return MurmurHash.getSingleton().hash64A(bytes, bytes.length, SEED);
+    }
+
+    /**
+     * Returns the hash of the n-mer with a packed key (see
+     * {@link KmerCodec#isPacked(long)}), the same as hashing its string.
+     */
+    public static long hash(long packedKey) {
+        return MurmurHash.getSingleton().hash64A(packedKey, SEED);
+    }
+
+    /**
+     * Creates a distance matrix of one minus the estimated Jaccard
+     * similarity of each pair of the samples.
+     *
+     * @param names the samples, which must all have sketches
+     */
+    public DistanceMatrix createDistanceMatrix(List<String> names) {
+        return this.createDistanceMatrix(names, new DistanceEngine());
+    }
+
+    /**
+     * Creates a distance matrix of one minus the estimated Jaccard
+     * similarity of each pair of the samples, stored as the engine stores
+     * its distances (see {@link DistanceEngine#createDistanceMatrix(List)}).
+     *
+     * @param names the samples, which must all have sketches
+     */
+    public DistanceMatrix createDistanceMatrix(List<String> names, DistanceEngine engine) {
+        final int size = names.size();
+        final long[][] sketch = new long[size][];
+        for (int i = 0; i < size; i++) {
+            sketch[i] = this.sketches.get(names.get(i));
+            if (sketch[i] == null) {
+                throw new IllegalArgumentException("No sketch for sample " + names.get(i));
+            }
+        }
+        final MinHash minHash = MinHash.getSingleton();
+        DistanceMatrix distMatrix = engine.createDistanceMatrix(names);
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                Double sim = minHash.jaccard(sketch[i], sketch[j], this.sketchSize);
+                distMatrix.setDistance(i, j, 1 - sim);
+            }
+        }
+        return distMatrix;
+    }
+
+    /**
+     * Writes the sketches to a binary file.
+     * <P>
+     * Format (big-endian, see {@link DataOutputStream}):
+     * <pre>
+     * int      SKETCH_MAGIC, SKETCH_VERSION
+     * int      begin, end, sketch size, hash seed
+     * int      number of samples, followed by each sample's
+     *          name (UTF), int number of hashes and the (sorted) long hashes
+     * </pre>
+     *
+     * @param out the stream to write to (it is flushed, not closed).
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        dos.writeInt(SKETCH_MAGIC);
+        dos.writeInt(SKETCH_VERSION);
+        dos.writeInt(this.begin);
+        dos.writeInt(this.end);
+        dos.writeInt(this.sketchSize);
+        dos.writeInt(SEED);
+        dos.writeInt(this.sketches.size());
+        for (Map.Entry<String, long[]> entry : this.sketches.entrySet()) {
+            dos.writeUTF(entry.getKey());
+            long[] sketch = entry.getValue();
+            dos.writeInt(sketch.length);
+            for (long hash : sketch) {
+                dos.writeLong(hash);
+            }
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads in sketches from a binary file.
+     *
+     * @see MinHashSketches#write(java.io.OutputStream)
+     */
+    public static MinHashSketches read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (dis.readInt() != SKETCH_MAGIC) {
+            throw new IOException("Not a sketch file");
+        }
+        int version = dis.readInt();
+        if (version != SKETCH_VERSION) {
+            throw new IOException("Unsupported sketch file version " + version);
+        }
+        int begin = dis.readInt();
+        int end = dis.readInt();
+        int sketchSize = dis.readInt();
+        int seed = dis.readInt();
+        if (seed != SEED) {
+            throw new IOException("Sketch file was hashed with another seed " + seed);
+        }
+        MinHashSketches sketches = new MinHashSketches(begin, end, sketchSize);
+        int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            String name = dis.readUTF();
+            long[] sketch = new long[dis.readInt()];
+            if (sketch.length > sketchSize) {
+                throw new IOException(String.format("Sketch of %s has %d hashes, more than %d",
+                        name, sketch.length, sketchSize));
+            }
+            for (int h = 0; h < sketch.length; h++) {
+                sketch[h] = dis.readLong();
+            }
+            sketches.sketches.put(name, sketch);
+        }
+        return sketches;
+    }
+
+    /**
+     * Returns the sketches in the file if it exists and was made with the
+     * same window sizes and sketch size, otherwise an empty set of sketches.
+     */
+    public static MinHashSketches load(File file, int begin, int end, int sketchSize)
+            throws IOException {
+        if (file.isFile()) {
+            MinHashSketches sketches;
+            InputStream in = new FileInputStream(file);
+            try {
+                sketches = read(in);
+            } catch (EOFException eof) {
+                throw new IOException("Truncated sketch file " + file.getPath());
+            } finally {
+                in.close();
+            }
+            if (sketches.begin == begin && sketches.end == end
+                    && sketches.sketchSize == sketchSize) {
+                LOG.debug(String.format("Read %d sketches from %s", sketches.size(), file.getPath()));
+                return sketches;
+            }
+            LOG.warn(String.format("Ignoring sketch file %s: made for windows %d-%d and sketch size %d",
+                    file.getPath(), sketches.begin, sketches.end, sketches.sketchSize));
+        }
+        return new MinHashSketches(begin, end, sketchSize);
+    }
+
+    /**
+     * Writes the sketches to the file.
+     */
+    public void save(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            this.write(out);
+        } finally {
+            out.close();
+        }
+    }
+}
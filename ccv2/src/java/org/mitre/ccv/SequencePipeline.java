@@ -0,0 +1,122 @@
+/**
+ * SequencePipeline.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.mitre.bio.Sequence;
+import org.mitre.bio.io.SequenceIterator;
+import org.mitre.ccv.index.IndexedCompleteCompositionVectorSet;
+
+/**
+ * Streams sequences from a {@link SequenceIterator} into a {@link VectorSet}.
+ * <P>
+ * A reader thread parses the sequences ahead into a bounded queue while the
+ * calling thread (the single committer) takes them off in order and adds them
+ * to the set. When the set has worker threads of its own (see
+ * {@link org.mitre.ccv.index.IndexedCompleteCompositionVectorSet}) the
+ * counting and pi-value calculations run on those, so parsing, counting and
+ * committing all overlap. Such a set is handed the residues as they were read
+ * (see {@link Sequence#getResidues()}), so no <code>String</code> copy is
+ * made. The queue blocks the reader when it is full and the set blocks the
+ * committer when too many sequences are being worked on, so only a bounded
+ * number of sequences are held in memory at any time.
+ *
+ * @author Marc Colosimo
+ */
+public class SequencePipeline {
+
+    private static final Log LOG = LogFactory.getLog(SequencePipeline.class);
+
+    /** Marks the end of the input in the queue */
+    private static final Sequence END = new Sequence(null, null, null);
+
+    private final SequenceIterator seqIter;
+    private final int queueSize;
+
+    /**
+     * Construct a new <tt>SequencePipeline</tt> object.
+     *
+     * @param seqIter the sequences to read.
+     * @param queueSize the number of parsed sequences to hold ahead of the set.
+     */
+    public SequencePipeline(SequenceIterator seqIter, int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be at least one");
+        }
+        this.seqIter = seqIter;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Adds all of the sequences to the set, in the order they are read.
+     *
+     * @param set the set to add the sequences to.
+     * @param seqNameParser what to use for the sequence name
+     * (see {@link CompleteCompositionVectorMain#parseSequenceName}).
+     * @return the number of sequences added.
+     * @throws NoSuchElementException if the sequence iterator fails.
+     */
+    public int run(VectorSet set, int seqNameParser) throws InterruptedException {
+        final BlockingQueue<Sequence> queue = new ArrayBlockingQueue<Sequence>(this.queueSize);
+        final RuntimeException[] readerError = new RuntimeException[1];
+
+        Thread reader = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    while (seqIter.hasNext()) {
+                        queue.put(seqIter.next());
+                    }
+                } catch (InterruptedException e) {
+                    LOG.debug("Sequence reader interrupted");
+                    return;
+                } catch (RuntimeException e) {
+                    synchronized (readerError) {
+                        readerError[0] = e;
+                    }
+                }
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    LOG.debug("Sequence reader interrupted");
+                }
+            }
+        }, "SequencePipeline-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        int count = 0;
+        try {
+            Sequence s;
+            while ((s = queue.take()) != END) {
+                String name = CompleteCompositionVectorMain.parseSequenceName(s, seqNameParser);
+                if (set instanceof IndexedCompleteCompositionVectorSet) {
+                    /** packed and mapped sequences are counted as they are */
+                    ((IndexedCompleteCompositionVectorSet) set).addSequence(name, s.getResidues());
+                } else {
+                    set.addSequence(name, s.seqString());
+                }
+                count++;
+            }
+        } finally {
+            reader.interrupt();
+        }
+        reader.join();
+        synchronized (readerError) {
+            if (readerError[0] != null) {
+                throw readerError[0];
+            }
+        }
+        LOG.debug(String.format("SequencePipeline: added %d sequences", count));
+        return count;
+    }
+}
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import org.mitre.bio.phylo.DistanceMatrix;
+import org.mitre.clustering.SimilarityGraph;
 
 
 /**
@@ -141,4 +142,28 @@ public interface VectorSet {
      * @return {@link DistanceMatrix} representing the distances
      */
     public DistanceMatrix createJaccardDistanceMatrix(ArrayList<String> nmerList);
+
+    /**
+     * Creates a Jaccard distance matrix estimated from bottom-k MinHash
+     * sketches of the samples' n-mer sets (see {@link MinHashSketches}).
+     *
+     * @param sketchSize the number of hashes in a sketch.
+     * @param sketchFileName an optional file of sketches to read the samples'
+     *       sketches from and to add any new ones to (<code>null</code> for none).
+     *
+     * @return {@link DistanceMatrix} representing the distances
+     */
+    public DistanceMatrix createMinHashDistanceMatrix(int sketchSize, String sketchFileName);
+
+    /**
+     * Creates a sparse graph of the pairs of samples with a Jaccard
+     * similarity of at least the threshold, found by banding MinHash
+     * signatures (see {@link MinHashNeighbors}) instead of comparing every
+     * pair. The points of the graph are the samples in the order of
+     * {@link #getSampleNames()}.
+     *
+     * @param threshold the smallest similarity of a pair.
+     * @param bins the number of bins in a signature.
+     */
+    public SimilarityGraph createMinHashSimilarityGraph(double threshold, int bins);
 }
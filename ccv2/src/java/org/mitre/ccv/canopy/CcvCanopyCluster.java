@@ -69,6 +69,16 @@ public class CcvCanopyCluster {
         //this.vectors = this.completeMatrix.getVectors();
     }
 
+    /**
+     * Construct with another cheap metric over the columns (samples) of the
+     * matrix, such as a {@link org.mitre.clustering.SimilarityGraph} of the
+     * samples' MinHash neighbors.
+     */
+    public CcvCanopyCluster(CompleteMatrix completeMatrix, CanopyDistanceMetric<Integer> cheapMetric) {
+        this(completeMatrix);
+        this.cheapMetric = cheapMetric;
+    }
+
     /**
      * Sets the thresholds 1 and 2 using MaxLike profile.
      *
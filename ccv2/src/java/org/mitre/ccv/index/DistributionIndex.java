@@ -7,10 +7,10 @@
  */
 package org.mitre.ccv.index;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,78 +18,239 @@ import org.apache.commons.logging.LogFactory;
 /**
  * Class that holds the complete composition (distribution of n-grams/k-mers)
  * for a set of sequences.
+ * <P>
+ * The (n-mer key, sequence) pairs are kept in open-addressed tables made of
+ * parallel primitive arrays (long key, int seqId, int count, double pi-value)
+ * and the per n-mer totals in a second one, so there are no boxed values or
+ * map entries per pair. This takes about 25 bytes per slot plus 8 bytes per
+ * pair (instead of 100 or more bytes per pair for nested HashMaps of
+ * SequenceNodes). The pi-value arrays of a segment are only allocated once a
+ * pi-value is stored in it, so an index whose pi-values are calculated lazily
+ * (see {@link PiValueCache}) only holds the counts. They can also be kept as
+ * <code>float</code>s (see {@link #setFloatPiValues(boolean)}), which is
+ * plenty for distances and trees and saves 4 bytes per pair.
+ * <P>
+ * Next to this inverted index is a forward one: for each sequence and window
+ * size the list of its n-mer keys, which is sorted the first time it is read
+ * after new n-mers were added. Listing the n-mers of a sequence only costs as
+ * much as that sequence has n-mers.
+ * <P>
+ * The tables are split into segments by n-mer key, each with its own lock,
+ * so that several threads can add counts (or merge whole indexes with
+ * {@link #addAll(DistributionIndex)}) at the same time.
  *
  * @author Marc Colosimo
  */
 public class DistributionIndex {
 
     private static final Log LOG = LogFactory.getLog(DistributionIndex.class);
-    
-    /** 
-     * Mapping of a string to a Map of SequenceNodes using their SeqId.
-     */
-    private Map<String, Map<Integer, SequenceNode>> nmerMap;
-    
+
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    /** Default number of segments (locks) */
+    public static final int DEFAULT_CONCURRENCY = 64;
+
+    /** Tables are grown when they are this full */
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /** Codec used to turn n-mers into keys and back. */
+    private final KmerCodec codec;
+
+    /** The segments, selected by n-mer key */
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /** The n-mer keys of each sequence, indexed by window size. */
+    private final ConcurrentHashMap<Integer, Postings> sequenceKeys;
+
+    /** Keep the pi-values as floats instead of doubles */
+    private volatile boolean floatPiValues = false;
+
     /**
      * Construct a new <tt>DistributionIndex</tt> object.
      */
     public DistributionIndex() {
-        this.nmerMap = new HashMap<String, Map<Integer, SequenceNode>>();
+        this(new KmerCodec(), DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Construct a new <tt>DistributionIndex</tt> object.
+     * <P>
+     * Indexes that are going to be merged with {@link #addAll(DistributionIndex)}
+     * have to share the same codec.
+     *
+     * @param codec the codec used to generate the n-mer keys.
+     * @param concurrency the expected number of threads writing at the same
+     * time (rounded up to a power of two).
+     */
+    public DistributionIndex(KmerCodec codec, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least one");
+        }
+        int n = Integer.highestOneBit(concurrency);
+        if (n < concurrency) {
+            n <<= 1;
+        }
+        this.codec = codec;
+        this.sequenceKeys = new ConcurrentHashMap<Integer, Postings>();
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        int capacity = Math.max(16, DEFAULT_CAPACITY / n);
+        for (int i = 0; i < n; i++) {
+            this.segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * Sets whether the pi-values are stored as <code>float</code>s (a
+     * relative error of at most 2<sup>-24</sup>) instead of
+     * <code>double</code>s. This has to be set before any pi-values are stored.
+     *
+     * @throws IllegalStateException if pi-values have already been stored.
+     */
+    public void setFloatPiValues(boolean floatPiValues) {
+        for (Segment seg : this.segments) {
+            synchronized (seg) {
+                if (seg.piSet != null) {
+                    throw new IllegalStateException(
+                            "Pi-value precision can not be changed after pi-values are stored");
+                }
+            }
+        }
+        this.floatPiValues = floatPiValues;
     }
-    
+
+    /**
+     * Returns <code>true</code> if the pi-values are stored as <code>float</code>s.
+     */
+    public boolean isFloatPiValues() {
+        return this.floatPiValues;
+    }
+
+    /**
+     * Returns the codec used to generate the n-mer keys for this index.
+     */
+    public KmerCodec getCodec() {
+        return this.codec;
+    }
+
     /**
      * Adds the str (tile) to the current index and returns the index.
-     * 
+     *
      * @param seqId the sequence to increase the str count
      * @param str the string (tile) to increase the count
      * @param the count to increase by
      * @return the new count for this seqId and str.
      */
     public Integer addCount(Integer seqId, String str, Integer count) {
-        Map<Integer, SequenceNode> sm = this.nmerMap.get(str);
-        if (sm == null) {
-            sm = new HashMap<Integer, SequenceNode>();
-            this.nmerMap.put(str, sm);
-            
-            /** Create a SequenceNode and store the count */
-            SequenceNode sn = new SequenceNode(seqId);
-            sn.count = count;
-            sm.put(seqId, sn);
-
-            return count;
-        } 
-        if (sm.containsKey(seqId)) {
-            SequenceNode sn = sm.get(seqId);
-            sn.count += count;
-            
-            return sn.count;
-        } else {
-            /** Create a SequenceNode and store the count */
-            SequenceNode sn = new SequenceNode(seqId);
-            sn.count = count;
-            sm.put(seqId, sn);
-
-            return count;
-        }
-    }
-    
+        return this.addCount(seqId, this.codec.encode(str), count);
+    }
+
+    /**
+     * Adds the n-mer key to the current index and returns the new count.
+     *
+     * @param seqId the sequence to increase the count for
+     * @param key the n-mer key (see {@link KmerCodec})
+     * @param count the count to increase by
+     * @return the new count for this seqId and n-mer.
+     */
+    public int addCount(int seqId, long key, int count) {
+        Segment seg = this.segmentFor(key);
+        synchronized (seg) {
+            int slot = seg.insert(seqId, key);
+            seg.counts[slot] += count;
+            seg.addTotal(key, count);
+            return seg.counts[slot];
+        }
+    }
+
+    /**
+     * Adds all of the counts and pi-values from the other index to this one.
+     * <P>
+     * The other index has to use the same {@link KmerCodec}. Each segment of
+     * this index is locked only once, so this is the cheap way to merge the
+     * work of several threads.
+     *
+     * @param other the index to merge into this one.
+     */
+    public void addAll(DistributionIndex other) {
+        if (other.codec != this.codec) {
+            throw new IllegalArgumentException("Indexes do not share the same codec");
+        }
+        /** Sort the pairs of the other index by our segments */
+        int[][] batches = new int[this.segments.length][];
+        for (Segment src : other.segments) {
+            synchronized (src) {
+                int[] sizes = new int[this.segments.length];
+                for (int slot = 0; slot < src.keys.length; slot++) {
+                    if (src.keys[slot] != KmerCodec.NO_KEY)
+                        sizes[this.segmentIndex(src.keys[slot])]++;
+                }
+                for (int s = 0; s < sizes.length; s++) {
+                    batches[s] = new int[sizes[s]];
+                    sizes[s] = 0;
+                }
+                for (int slot = 0; slot < src.keys.length; slot++) {
+                    if (src.keys[slot] != KmerCodec.NO_KEY) {
+                        int s = this.segmentIndex(src.keys[slot]);
+                        batches[s][sizes[s]++] = slot;
+                    }
+                }
+                for (int s = 0; s < batches.length; s++) {
+                    if (batches[s].length == 0)
+                        continue;
+                    Segment dst = this.segments[s];
+                    synchronized (dst) {
+                        for (int slot : batches[s]) {
+                            long key = src.keys[slot];
+                            int id = src.seqIds[slot];
+                            int i = dst.insert(id, key);
+                            dst.counts[i] += src.counts[slot];
+                            dst.addTotal(key, src.counts[slot]);
+                            if (src.hasPiValue(slot))
+                                dst.setPiValue(i, src.getPiValue(slot));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Return the count for the given string and sequence.
-     * 
+     *
      * @param str the tile (sub-string)
      */
     public Integer getCount(Integer seqId, String str) {
-        Map<Integer, SequenceNode> sm = this.nmerMap.get(str);
-        if ( sm == null )
+        return this.getCount(seqId, this.codec.lookup(str));
+    }
+
+    /**
+     * Return the count for the given n-mer key and sequence.
+     *
+     * @param key the n-mer key (see {@link KmerCodec})
+     */
+    public int getCount(int seqId, long key) {
+        if (key == KmerCodec.NO_KEY) {
             return 0;
-        else {
-            SequenceNode sn = sm.get(seqId);
-            if ( sn == null ) {
-                return 0;
-            } else {
-                return sn.count;
-            }
         }
+        Segment seg = this.segmentFor(key);
+        synchronized (seg) {
+            return seg.counts[seg.find(seqId, key)];
+        }
+    }
+
+    /**
+     * Returns the counts for the n-mer keys of a sequence.
+     *
+     * @return the counts, in the same order as the keys.
+     */
+    public int[] getCounts(int seqId, long[] keys) {
+        int[] counts = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            counts[i] = this.getCount(seqId, keys[i]);
+        }
+        return counts;
     }
 
     /**
@@ -99,23 +260,76 @@ public class DistributionIndex {
      * @return the sum, returns zero if none found.
      */
     public Integer sumCounts(String str) {
-        Map<Integer, SequenceNode> sm = this.nmerMap.get(str);
-        if ( sm == null )
+        return this.sumCounts(this.codec.lookup(str));
+    }
+
+    /**
+     * Sums the counts for the given n-mer key across all sequences.
+     *
+     * @param key the n-mer key (see {@link KmerCodec})
+     * @return the sum, returns zero if none found.
+     */
+    public int sumCounts(long key) {
+        if (key == KmerCodec.NO_KEY) {
             return 0;
-        else {
-            Integer count = 0;
-            for(Integer seqId : sm.keySet()) {
-                count += sm.get(seqId).count;
-            }
-            return count;
+        }
+        Segment seg = this.segmentFor(key);
+        synchronized (seg) {
+            return seg.totals[seg.findTotal(key)];
         }
     }
-    
+
     public void setPiValueForNmer(Integer seqId, String nmer, Double pi) {
-        SequenceNode sn = this.nmerMap.get(nmer).get(seqId);
-        sn.piValue = pi;
+        this.setPiValueForNmer(seqId, this.codec.lookup(nmer), pi);
+    }
+
+    /**
+     * Sets the pi-value for the given n-mer key and sequence.
+     *
+     * @throws IllegalArgumentException if the n-mer has not been counted for
+     * this sequence.
+     */
+    public void setPiValueForNmer(int seqId, long key, Double pi) {
+        if (key != KmerCodec.NO_KEY) {
+            Segment seg = this.segmentFor(key);
+            synchronized (seg) {
+                int slot = seg.find(seqId, key);
+                if (seg.keys[slot] != KmerCodec.NO_KEY) {
+                    if (pi == null) {
+                        seg.clearPiValue(slot);
+                    } else {
+                        seg.setPiValue(slot, pi);
+                    }
+                    return;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No count for n-mer key "
+                + key + " in sequence " + seqId);
     }
-    
+
+    /**
+     * Sets the pi-values for the n-mer keys of a sequence.
+     *
+     * @param piValues the pi-values, in the same order as the keys.
+     * @throws IllegalArgumentException if an n-mer has not been counted for
+     * this sequence.
+     */
+    public void setPiValues(int seqId, long[] keys, double[] piValues) {
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            Segment seg = this.segmentFor(key);
+            synchronized (seg) {
+                int slot = seg.find(seqId, key);
+                if (key == KmerCodec.NO_KEY || seg.keys[slot] == KmerCodec.NO_KEY) {
+                    throw new IllegalArgumentException("No count for n-mer key "
+                            + key + " in sequence " + seqId);
+                }
+                seg.setPiValue(slot, piValues[i]);
+            }
+        }
+    }
+
     /**
      * Gets the pi-value for the given n-mer and sequence.
      *
@@ -124,29 +338,78 @@ public class DistributionIndex {
      * @return The pi-value for the given n-mer (this can return <code>null</code>)
      */
     public Double getPiValueForNmer(Integer seqId, String nmer) {
-        Map<Integer, SequenceNode> sm = this.nmerMap.get(nmer);
-        if ( sm != null ) {
-            SequenceNode sn = sm.get(seqId);
-            if ( sn != null )
-                return sn.piValue;
+        return this.getPiValueForNmer(seqId, this.codec.lookup(nmer));
+    }
+
+    /**
+     * Gets the pi-value for the given n-mer key and sequence.
+     *
+     * @return The pi-value for the given n-mer (this can return <code>null</code>)
+     */
+    public Double getPiValueForNmer(int seqId, long key) {
+        if (key == KmerCodec.NO_KEY) {
+            return null;
+        }
+        Segment seg = this.segmentFor(key);
+        synchronized (seg) {
+            int slot = seg.find(seqId, key);
+            if (!seg.hasPiValue(slot)) {
+                return null;
+            }
+            return seg.getPiValue(slot);
         }
-        return null;
     }
-    
+
     /**
      * Return the number of strings stored
      */
     public Integer size() {
-        return this.nmerMap.size();
+        int n = 0;
+        for (Segment seg : this.segments) {
+            synchronized (seg) {
+                n += seg.nmers;
+            }
+        }
+        return n;
     }
-    
+
+    /**
+     * Return the number of (n-mer, sequence) pairs stored
+     */
+    public int pairs() {
+        int n = 0;
+        for (Segment seg : this.segments) {
+            synchronized (seg) {
+                n += seg.size;
+            }
+        }
+        return n;
+    }
+
     /**
      * Return the set of <B>ALL</B> strings stored
      */
     public Set<String> getStrings() {
-        return this.nmerMap.keySet();
+        return this.decode(this.getKeys());
+    }
+
+    /**
+     * Return the set of <B>ALL</B> n-mer keys stored
+     */
+    public Set<Long> getKeys() {
+        HashSet<Long> set = new HashSet<Long>();
+        for (Segment seg : this.segments) {
+            synchronized (seg) {
+                for (long key : seg.totalKeys) {
+                    if (key != KmerCodec.NO_KEY) {
+                        set.add(key);
+                    }
+                }
+            }
+        }
+        return set;
     }
-    
+
     /**
      * Gets the complete set of n-mers for the given sequence.
      *
@@ -154,15 +417,9 @@ public class DistributionIndex {
      * @return the <code>Set</code> of n-mers.
      */
     public Set<String> getSequenceNmers(Integer seqId) {
-        HashSet<String> set = new HashSet<String>();
-        for(String key : this.nmerMap.keySet() ) {
-            Map<Integer, SequenceNode> sm = this.nmerMap.get(key);
-            if(sm.containsKey(seqId))
-                set.add(key);
-        }
-        return set;
+        return this.decode(this.getSequenceKeys(seqId, null));
     }
-    
+
     /**
      * Gets the set of n-mers for the given sequence and window size.
      *
@@ -171,31 +428,333 @@ public class DistributionIndex {
      * @return <code>Set</code> of n-mers.
      */
     public Set<String> getSequenceNmers(Integer seqId, Integer windowSize) {
+        return this.decode(this.getSequenceKeys(seqId, windowSize));
+    }
+
+    /**
+     * Gets the set of n-mer keys for the given sequence and window size.
+     *
+     * @param seqId the sequence id.
+     * @param windowSize the window size (<code>null</code> for all window sizes).
+     * @return <code>Set</code> of n-mer keys.
+     */
+    public Set<Long> getSequenceKeys(Integer seqId, Integer windowSize) {
+        HashSet<Long> set = new HashSet<Long>();
+        Postings postings = this.sequenceKeys.get(seqId);
+        if (postings == null)
+            return set;
+        synchronized (postings) {
+            KeyList[] lists = postings.windows;
+            for (int ws = 0; ws < lists.length; ws++) {
+                if (lists[ws] == null || (windowSize != null && ws != windowSize))
+                    continue;
+                long[] keys = lists[ws].keys;
+                for (int i = 0; i < lists[ws].size; i++) {
+                    set.add(keys[i]);
+                }
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Gets the n-mer keys for the given sequence and window size in sorted
+     * order. Fallback (negative) keys come first, followed by the packed
+     * keys in the same order as their n-mers.
+     *
+     * @param seqId the sequence id.
+     * @param windowSize the window size.
+     * @return a new array of the n-mer keys (can be empty).
+     */
+    public long[] getSortedSequenceKeys(int seqId, int windowSize) {
+        Postings postings = this.sequenceKeys.get(seqId);
+        if (postings == null)
+            return new long[0];
+        synchronized (postings) {
+            KeyList list = postings.get(windowSize, false);
+            if (list == null)
+                return new long[0];
+            return Arrays.copyOf(list.sorted(), list.size);
+        }
+    }
+
+    /**
+     * Returns the number of distinct n-mers the sequence has for the window size.
+     */
+    public int getSequenceSize(int seqId, int windowSize) {
+        Postings postings = this.sequenceKeys.get(seqId);
+        if (postings == null)
+            return 0;
+        synchronized (postings) {
+            KeyList list = postings.get(windowSize, false);
+            return (list == null) ? 0 : list.size;
+        }
+    }
+
+    /**
+     * Adds a new (sequence, n-mer) pair to the forward index.
+     */
+    private void addPosting(int seqId, long key) {
+        Postings postings = this.sequenceKeys.get(seqId);
+        if (postings == null) {
+            postings = new Postings();
+            Postings present = this.sequenceKeys.putIfAbsent(seqId, postings);
+            if (present != null)
+                postings = present;
+        }
+        int windowSize = this.codec.length(key);
+        synchronized (postings) {
+            postings.get(windowSize, true).add(key);
+        }
+    }
+
+    /**
+     * Decodes the keys into n-mers.
+     */
+    private Set<String> decode(Set<Long> keys) {
         HashSet<String> set = new HashSet<String>();
-        for(String key : this.nmerMap.keySet() ) {
-            if (key.length() != windowSize)
-                continue;
-            Map<Integer, SequenceNode> sm = this.nmerMap.get(key);
-            if(sm.containsKey(seqId))
-                set.add(key);
+        for (Long key : keys) {
+            set.add(this.codec.decode(key));
         }
         return set;
     }
-    
-    /**
-     * Class for holding information about a nmer for a sequence, such as
-     * the sequence identifier (@see IndexedCompleteCompositionVectorSet),
-     * count, and Pi-value.
-     */
-    private class SequenceNode {
-        public Integer seqId;
-        public Integer count;
-        public Double piValue;
-        
-        public SequenceNode(Integer seqId) {
-            this.seqId = seqId;
-            this.count = 0;
-            this.piValue = null;                   
+
+    private int segmentIndex(long key) {
+        return (int) ((key * 0xFF51AFD7ED558CCDL) >>> 40) & this.segmentMask;
+    }
+
+    private Segment segmentFor(long key) {
+        return this.segments[this.segmentIndex(key)];
+    }
+
+    /**
+     * Mixes the n-mer key and sequence id into a hash.
+     */
+    private static int hash(long key, int seqId) {
+        long h = key * 0x9E3779B97F4A7C15L + seqId * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * A part of the (n-mer key, seqId) table and of the n-mer totals table.
+     * A key of {@link KmerCodec#NO_KEY} marks an empty slot. All access has
+     * to be synchronized on the segment.
+     */
+    private class Segment {
+        long[] keys;
+        int[] seqIds;
+        int[] counts;
+        /**
+         * Pi-values (as doubles or floats) and the bit set of the slots with
+         * one (null until the first is set)
+         */
+        double[] piValues;
+        float[] piFloats;
+        long[] piSet;
+        int size;
+
+        /** The n-mer key table holding the counts summed across all sequences. */
+        long[] totalKeys;
+        int[] totals;
+        int nmers;
+
+        Segment(int capacity) {
+            this.allocate(capacity);
+            this.allocateTotals(capacity);
+        }
+
+        /**
+         * Returns the slot holding the pair or the empty slot where it would go.
+         */
+        int find(int seqId, long key) {
+            final int mask = this.keys.length - 1;
+            int slot = hash(key, seqId) & mask;
+            long k;
+            while ((k = this.keys[slot]) != KmerCodec.NO_KEY) {
+                if (k == key && this.seqIds[slot] == seqId) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Returns the slot holding the pair, adding it if it is new.
+         */
+        int insert(int seqId, long key) {
+            int slot = this.find(seqId, key);
+            if (this.keys[slot] == KmerCodec.NO_KEY) {
+                this.keys[slot] = key;
+                this.seqIds[slot] = seqId;
+                addPosting(seqId, key);
+                if (++this.size > this.keys.length * LOAD_FACTOR) {
+                    this.rehash(this.keys.length << 1);
+                    slot = this.find(seqId, key);
+                }
+            }
+            return slot;
+        }
+
+        boolean hasPiValue(int slot) {
+            return this.piSet != null && (this.piSet[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        double getPiValue(int slot) {
+            return (this.piValues != null) ? this.piValues[slot] : this.piFloats[slot];
+        }
+
+        void setPiValue(int slot, double pi) {
+            if (this.piSet == null) {
+                if (floatPiValues) {
+                    this.piFloats = new float[this.keys.length];
+                } else {
+                    this.piValues = new double[this.keys.length];
+                }
+                this.piSet = new long[(this.keys.length + 63) >>> 6];
+            }
+            this.piSet[slot >>> 6] |= 1L << slot;
+            if (this.piValues != null) {
+                this.piValues[slot] = pi;
+            } else {
+                this.piFloats[slot] = (float) pi;
+            }
+        }
+
+        void clearPiValue(int slot) {
+            if (this.piSet != null) {
+                this.piSet[slot >>> 6] &= ~(1L << slot);
+                if (this.piValues != null) {
+                    this.piValues[slot] = 0.0;
+                } else {
+                    this.piFloats[slot] = 0.0f;
+                }
+            }
+        }
+
+        void allocate(int capacity) {
+            this.keys = new long[capacity];
+            this.seqIds = new int[capacity];
+            this.counts = new int[capacity];
+            this.piValues = null;
+            this.piFloats = null;
+            this.piSet = null;
+        }
+
+        void rehash(int capacity) {
+            final long[] oldKeys = this.keys;
+            final int[] oldSeqIds = this.seqIds;
+            final int[] oldCounts = this.counts;
+            final double[] oldPiValues = this.piValues;
+            final float[] oldPiFloats = this.piFloats;
+            final long[] oldPiSet = this.piSet;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("DistributionIndex: growing pair table to %d slots", capacity));
+            }
+            this.allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == KmerCodec.NO_KEY) {
+                    continue;
+                }
+                int slot = this.find(oldSeqIds[i], oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.seqIds[slot] = oldSeqIds[i];
+                this.counts[slot] = oldCounts[i];
+                if (oldPiSet != null && (oldPiSet[i >>> 6] & (1L << i)) != 0) {
+                    this.setPiValue(slot, (oldPiValues != null) ? oldPiValues[i] : oldPiFloats[i]);
+                }
+            }
+        }
+
+        void addTotal(long key, int count) {
+            int slot = this.findTotal(key);
+            if (this.totalKeys[slot] == KmerCodec.NO_KEY) {
+                this.totalKeys[slot] = key;
+                if (++this.nmers > this.totalKeys.length * LOAD_FACTOR) {
+                    this.rehashTotals(this.totalKeys.length << 1);
+                    slot = this.findTotal(key);
+                }
+            }
+            this.totals[slot] += count;
+        }
+
+        int findTotal(long key) {
+            final int mask = this.totalKeys.length - 1;
+            int slot = hash(key, 0) & mask;
+            long k;
+            while ((k = this.totalKeys[slot]) != KmerCodec.NO_KEY && k != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void allocateTotals(int capacity) {
+            this.totalKeys = new long[capacity];
+            this.totals = new int[capacity];
+        }
+
+        void rehashTotals(int capacity) {
+            final long[] oldKeys = this.totalKeys;
+            final int[] oldTotals = this.totals;
+            this.allocateTotals(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != KmerCodec.NO_KEY) {
+                    int slot = this.findTotal(oldKeys[i]);
+                    this.totalKeys[slot] = oldKeys[i];
+                    this.totals[slot] = oldTotals[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The forward index of a sequence: its n-mer keys by window size. All
+     * access has to be synchronized on the postings.
+     */
+    private static class Postings {
+        KeyList[] windows = new KeyList[KmerCodec.MAX_PACKED_LENGTH + 1];
+
+        /**
+         * Returns the list for the window size.
+         *
+         * @param create if <code>true</code> create the list if it is missing.
+         */
+        KeyList get(int windowSize, boolean create) {
+            if (windowSize >= this.windows.length) {
+                if (!create)
+                    return null;
+                this.windows = Arrays.copyOf(this.windows, windowSize + 1);
+            }
+            if (this.windows[windowSize] == null && create)
+                this.windows[windowSize] = new KeyList();
+            return this.windows[windowSize];
+        }
+    }
+
+    /**
+     * Growable list of n-mer keys for a sequence and window size that is
+     * sorted when it is read.
+     */
+    private static class KeyList {
+        long[] keys = new long[16];
+        int size;
+        boolean sorted = true;
+
+        void add(long key) {
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size << 1);
+            }
+            this.keys[this.size++] = key;
+            this.sorted = false;
+        }
+
+        long[] sorted() {
+            if (!this.sorted) {
+                Arrays.sort(this.keys, 0, this.size);
+                this.sorted = true;
+            }
+            return this.keys;
         }
     }
 }
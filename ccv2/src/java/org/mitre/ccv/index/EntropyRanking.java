@@ -0,0 +1,415 @@
+/**
+ * EntropyRanking.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Ranks n-mer keys (see {@link KmerCodec}) by their revised relative entropy
+ * without making an object per n-mer.
+ * <P>
+ * The order is the same as {@link org.mitre.ccv.AbstractVectorSet.EntropyPair}:
+ * highest entropy first, then by the n-mer. The n-mers are added one at a
+ * time to a {@link Collector}: the top n are kept in a bounded heap of
+ * primitives, and the entropy file is written by sorting runs of at most
+ * <code>runSize</code> n-mers, spilling them to temporary files and merging
+ * them, so neither needs memory for all of the n-mers.
+ *
+ * @author Marc Colosimo
+ */
+public class EntropyRanking {
+
+    private static final Log LOG = LogFactory.getLog("EntropyRanking");
+
+    /** Default number of n-mers sorted in memory at once */
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    private static final String TEMP_FILE_PREFIX = "entropies";
+
+    private final KmerCodec codec;
+    private final int runSize;
+
+    /**
+     * Construct a new <tt>EntropyRanking</tt> object sorting
+     * {@link #DEFAULT_RUN_SIZE} n-mers at a time.
+     */
+    public EntropyRanking(KmerCodec codec) {
+        this(codec, DEFAULT_RUN_SIZE);
+    }
+
+    public EntropyRanking(KmerCodec codec, int runSize) {
+        if (runSize < 1) {
+            throw new IllegalArgumentException("Run size must be at least one");
+        }
+        this.codec = codec;
+        this.runSize = runSize;
+    }
+
+    /**
+     * A heap of keys and their entropies, with the entry that ranks first
+     * (or last) on top.
+     */
+    private class Heap {
+
+        long[] keys;
+        double[] values;
+        int[] tags;
+        /** 1 to have the first ranked on top, -1 for the last */
+        final int sign;
+        int size = 0;
+
+        Heap(int capacity, boolean firstOnTop) {
+            this.keys = new long[capacity];
+            this.values = new double[capacity];
+            this.tags = new int[capacity];
+            this.sign = firstOnTop ? 1 : -1;
+        }
+
+        /**
+         * Returns <code>true</code> if entry i belongs above entry j.
+         */
+        boolean above(int i, int j) {
+            return this.sign * compare(this.keys[i], this.values[i],
+                    this.keys[j], this.values[j]) < 0;
+        }
+
+        void push(long key, double value, int tag) {
+            if (this.size == this.keys.length) {
+                int capacity = Math.max(16, 2 * this.size);
+                this.keys = Arrays.copyOf(this.keys, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.tags = Arrays.copyOf(this.tags, capacity);
+            }
+            int i = this.size++;
+            this.set(i, key, value, tag);
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!this.above(i, parent)) {
+                    break;
+                }
+                this.swap(i, parent);
+                i = parent;
+            }
+        }
+
+        /**
+         * Replaces the top entry and sifts it down.
+         */
+        void replaceTop(long key, double value, int tag) {
+            this.set(0, key, value, tag);
+            this.siftDown();
+        }
+
+        void pop() {
+            this.size--;
+            if (this.size > 0) {
+                this.set(0, this.keys[this.size], this.values[this.size], this.tags[this.size]);
+                this.siftDown();
+            }
+        }
+
+        private void siftDown() {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.above(child + 1, child)) {
+                    child++;
+                }
+                if (!this.above(child, i)) {
+                    break;
+                }
+                this.swap(i, child);
+                i = child;
+            }
+        }
+
+        private void set(int i, long key, double value, int tag) {
+            this.keys[i] = key;
+            this.values[i] = value;
+            this.tags[i] = tag;
+        }
+
+        private void swap(int i, int j) {
+            long k = this.keys[i];
+            double v = this.values[i];
+            int t = this.tags[i];
+            this.set(i, this.keys[j], this.values[j], this.tags[j]);
+            this.set(j, k, v, t);
+        }
+    }
+
+    /**
+     * Compares two n-mers by rank: negative if the first ranks before the
+     * second (has the higher entropy or, if they are the same, the lower
+     * n-mer).
+     */
+    public int compare(long keyA, double entropyA, long keyB, double entropyB) {
+        int cmp = Double.compare(entropyB, entropyA);
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (keyA == keyB) {
+            return 0;
+        }
+        /** Packed keys of the same length sort as their strings do */
+        if (KmerCodec.isPacked(keyA) && KmerCodec.isPacked(keyB)
+                && KmerCodec.packedLength(keyA) == KmerCodec.packedLength(keyB)) {
+            return (keyA < keyB) ? -1 : 1;
+        }
+        return this.codec.decode(keyA).compareTo(this.codec.decode(keyB));
+    }
+
+    /**
+     * Returns a new collector keeping the n highest ranked n-mers.
+     *
+     * @param n the number of n-mers for {@link Collector#top()}.
+     * @param sorted if <code>true</code> all of the n-mers are kept in sorted
+     *        runs for {@link Collector#write(String, int)}.
+     */
+    public Collector collector(int n, boolean sorted) {
+        return new Collector(n, sorted);
+    }
+
+    /**
+     * Takes the n-mers and their entropies one at a time, in any order.
+     */
+    public class Collector {
+
+        /** The lowest ranked of the top n is on top to be replaced */
+        private final Heap top;
+        private final int n;
+        /** The current run, first ranked on top, or <code>null</code> */
+        private Heap run;
+        private final List<File> runs = new ArrayList<File>();
+        private long count = 0;
+
+        private Collector(int n, boolean sorted) {
+            this.n = Math.max(0, n);
+            this.top = new Heap(Math.min(this.n, 1024), false);
+            this.run = sorted ? new Heap(Math.min(runSize, 1024), true) : null;
+        }
+
+        /**
+         * Adds an n-mer, spilling the current run to a temporary file when
+         * it is full.
+         */
+        public void add(long key, double entropy) throws IOException {
+            this.count++;
+            if (this.top.size < this.n) {
+                this.top.push(key, entropy, 0);
+            } else if (this.n > 0 && compare(key, entropy, this.top.keys[0], this.top.values[0]) < 0) {
+                this.top.replaceTop(key, entropy, 0);
+            }
+            if (this.run != null) {
+                if (this.run.size == runSize) {
+                    this.spill();
+                }
+                this.run.push(key, entropy, 0);
+            }
+        }
+
+        /**
+         * Returns the number of n-mers added.
+         */
+        public long size() {
+            return this.count;
+        }
+
+        /**
+         * Returns the keys of the (at most) n highest ranked n-mers, highest
+         * first.
+         */
+        public long[] top() {
+            long[] keys = new long[this.top.size];
+            for (int i = keys.length - 1; i >= 0; i--) {
+                keys[i] = this.top.keys[0];
+                this.top.pop();
+            }
+            return keys;
+        }
+
+        /**
+         * Writes all of the n-mers and their entropies to the file in rank
+         * order, one <code>n-mer TAB entropy</code> per line, and returns
+         * the keys of the first m of them.
+         *
+         * @param fileName the file to write (<code>null</code> to only
+         *        return the keys).
+         * @param m the number of keys to return.
+         * @throws IOException if the file cannot be opened (the n-mers are
+         *         kept, so this can be called again) or written
+         */
+        public long[] write(String fileName, int m) throws IOException {
+            if (this.run == null) {
+                throw new IllegalStateException("The n-mers were not kept in sorted runs");
+            }
+            long[] keys = new long[(int) Math.max(0, Math.min(m, this.count))];
+            Writer writer = (fileName == null) ? null : new BufferedWriter(new FileWriter(fileName));
+            try {
+                if (this.runs.isEmpty()) {
+                    Heap heap = this.run;
+                    for (int i = 0; heap.size > 0; i++) {
+                        if (i < keys.length) {
+                            keys[i] = heap.keys[0];
+                        } else if (writer == null) {
+                            break;
+                        }
+                        if (writer != null) {
+                            writeLine(writer, heap.keys[0], heap.values[0]);
+                        }
+                        heap.pop();
+                    }
+                } else {
+                    this.spill();
+                    LOG.debug(String.format("Sorted %d n-mers into %d runs", this.count, this.runs.size()));
+                    merge(this.runs, writer, keys);
+                }
+            } finally {
+                this.run = null;
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * Writes the current run to a temporary file.
+         */
+        private void spill() throws IOException {
+            if (this.run.size == 0) {
+                return;
+            }
+            try {
+                File file = File.createTempFile(TEMP_FILE_PREFIX, null);
+                file.deleteOnExit();
+                this.runs.add(file);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    while (this.run.size > 0) {
+                        out.writeLong(this.run.keys[0]);
+                        out.writeDouble(this.run.values[0]);
+                        this.run.pop();
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException ioe) {
+                delete(this.runs);
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the n highest ranked n-mers, highest first.
+     *
+     * @param keys the n-mer keys.
+     * @param entropies their entropies.
+     * @param n the number of n-mers to return.
+     */
+    public long[] top(long[] keys, double[] entropies, int n) {
+        Collector collector = new Collector(n, false);
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                collector.add(keys[i], entropies[i]);
+            } catch (IOException ioe) {
+                /** Nothing is written without runs */
+                throw new IllegalStateException(ioe);
+            }
+        }
+        return collector.top();
+    }
+
+    /**
+     * Writes the n-mers and their entropies to the file in rank order, one
+     * <code>n-mer TAB entropy</code> per line.
+     */
+    public void write(long[] keys, double[] entropies, String fileName) throws IOException {
+        if (keys.length != entropies.length) {
+            throw new IllegalArgumentException("Keys and entropies differ in length");
+        }
+        Collector collector = new Collector(0, true);
+        for (int i = 0; i < keys.length; i++) {
+            collector.add(keys[i], entropies[i]);
+        }
+        collector.write(fileName, 0);
+    }
+
+    /**
+     * Merges the sorted runs into the writer (if any), keeping the first
+     * keys, and deletes them.
+     */
+    private void merge(List<File> runs, Writer writer, long[] first) throws IOException {
+        DataInputStream[] ins = new DataInputStream[runs.size()];
+        try {
+            Heap heap = new Heap(runs.size(), true);
+            for (int r = 0; r < ins.length; r++) {
+                ins[r] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(r))));
+                heap.push(ins[r].readLong(), ins[r].readDouble(), r);
+            }
+            for (int i = 0; heap.size > 0; i++) {
+                if (i < first.length) {
+                    first[i] = heap.keys[0];
+                } else if (writer == null) {
+                    break;
+                }
+                if (writer != null) {
+                    this.writeLine(writer, heap.keys[0], heap.values[0]);
+                }
+                int r = heap.tags[0];
+                long key;
+                try {
+                    key = ins[r].readLong();
+                } catch (EOFException eof) {
+                    heap.pop();
+                    continue;
+                }
+                heap.replaceTop(key, ins[r].readDouble(), r);
+            }
+        } finally {
+            for (DataInputStream in : ins) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+            delete(runs);
+        }
+    }
+
+    private void writeLine(Writer writer, long key, double entropy) throws IOException {
+        writer.write(this.codec.decode(key) + "\t" + entropy + "\n");
+    }
+
+    private static void delete(List<File> files) {
+        for (File file : files) {
+            if (!file.delete()) {
+                LOG.debug(String.format("Unable to delete '%s'", file.getAbsolutePath()));
+            }
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class IndexedCompleteCompositionVector
     
     /** Backing CompositionDistribution */
     private IndexedCompositionDistribution compDist;
+    /** <code>true</code> if the pi-values are calculated as they are needed */
+    private final boolean lazy;
+    /** The vector as sorted arrays, made when first asked for (not kept when lazy) */
+    private volatile SparseCompositionVector sparse = null;
 
     /**
      * Construct a new <tt>IndexedCompleteCompositionVector</tt> object
@@ -61,14 +65,41 @@ public class IndexedCompleteCompositionVector
         this.name = seqName;
         this.seqId = seqId;
         this.compDist = cd;
+        this.lazy = false;
 
         this.cvs = new LinkedList<IndexedCompositionVector>();
         LOG.debug(String.format( "Calculating CompositionVectors for %s", seqName) );
+        PiValueKernel.store(cd, this.start, this.stop);
         for (int i = this.start; i <= this.stop; i++) {
-            this.cvs.add(new IndexedCompositionVector(i, cd));
+            this.cvs.add(new IndexedCompositionVector(i, cd, false));
         }
     }
     
+    /**
+     * Construct a new <tt>IndexedCompleteCompositionVector</tt> object
+     * whose pi-values are calculated a window size at a time when they are
+     * first asked for and kept in the given cache (nothing is stored in the
+     * index).
+     *
+     * @param seqName Name of sequence
+     * @param cache where the pi-values are kept.
+     */
+    public IndexedCompleteCompositionVector(String seqName, Integer seqId,
+            int start, int stop,
+            IndexedCompositionDistribution cd, PiValueCache cache) {
+        this.start = start;
+        this.stop = stop;
+        this.name = seqName;
+        this.seqId = seqId;
+        this.compDist = cd;
+        this.lazy = true;
+
+        this.cvs = new LinkedList<IndexedCompositionVector>();
+        for (int i = this.start; i <= this.stop; i++) {
+            this.cvs.add(new IndexedCompositionVector(i, cd, cache));
+        }
+    }
+
     /**
      * Construct a new <tt>IndexedCompleteCompositionVector</tt> object
      * using the calculated compositions stored in the
@@ -84,13 +115,35 @@ public class IndexedCompleteCompositionVector
         this.name = seqName;
         this.seqId = seqId;
         this.compDist = cd;
+        this.lazy = false;
         
         this.cvs = new LinkedList<IndexedCompositionVector>();
+        PiValueKernel.store(cd, this.start, this.stop);
         for (int i = this.start; i <= this.stop; i++) {
-            cvs.add(new IndexedCompositionVector(i, cd));
+            cvs.add(new IndexedCompositionVector(i, cd, false));
         }   
     }
 
+    /**
+     * Construct a copy of the vector that is backed by the given distribution
+     * (which has to hold the same counts and pi-values in its index). Nothing
+     * is recalculated.
+     */
+    IndexedCompleteCompositionVector(IndexedCompleteCompositionVector ccv,
+            IndexedCompositionDistribution cd) {
+        this.start = ccv.start;
+        this.stop = ccv.stop;
+        this.name = ccv.name;
+        this.seqId = ccv.seqId;
+        this.compDist = cd;
+        this.lazy = ccv.lazy;
+
+        this.cvs = new LinkedList<IndexedCompositionVector>();
+        for (IndexedCompositionVector cv : ccv.cvs) {
+            this.cvs.add(new IndexedCompositionVector(cv, cd));
+        }
+    }
+
     /**
      * Adds this sequence to the given composition distributions.
      * 
@@ -110,6 +163,10 @@ public class IndexedCompleteCompositionVector
      * @return TreeSet of all of the nmers.
      */
     public TreeSet<String> getNmerSet() {
+        SparseCompositionVector sv = this.sparse;
+        if (sv != null) {
+            return sv.getNmers();
+        }
         TreeSet<String> nmers = new TreeSet<String>();
         Iterator<IndexedCompositionVector> cvIter = cvs.iterator();
         while (cvIter.hasNext()) {
@@ -129,9 +186,11 @@ public class IndexedCompleteCompositionVector
         ArrayList<String> nmers = new ArrayList<String>(n);
         int count = nmers.size();
         Matrix ccv = new Matrix(count, 1);
+        SparseCompositionVector sv = this.lazy ? null : this.getSparseVector();
 
         for (int i = 0; i < count; i++) {
-            Double value = this.getPiValueforNmer(nmers.get(i));
+            Double value = (sv == null) ? this.getPiValueforNmer(nmers.get(i))
+                    : sv.getPiValue(nmers.get(i));
             if (value == null) {
                 value = 0.0;
             }
@@ -149,6 +208,31 @@ public class IndexedCompleteCompositionVector
         return cvs.get(length - start).getPiValueForNmer(nmer);
     }
 
+    /**
+     * Returns the vector as sorted arrays of n-mer keys and pi-values.
+     * <P>
+     * This is made the first time it is asked for and kept, unless the
+     * pi-values are calculated lazily (then it is made each time).
+     */
+    public SparseCompositionVector getSparseVector() {
+        SparseCompositionVector sv = this.sparse;
+        if (sv == null) {
+            sv = SparseCompositionVector.create(this, this.compDist.getDistributionIndex());
+            if (!this.lazy) {
+                this.sparse = sv;
+            }
+        }
+        return sv;
+    }
+
+    /**
+     * Returns the pi-values for n-mer keys of the given window size, with 0.0
+     * for those not seen.
+     */
+    double[] getPiValues(int windowSize, long[] keys) {
+        return this.cvs.get(windowSize - this.start).getPiValues(keys);
+    }
+
     /**
      * Returns the name of the underlining sequence.
      */
@@ -7,33 +7,55 @@
  */
 package org.mitre.ccv.index;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.commons.math.linear.RealMatrix;
 
+import org.mitre.bio.phylo.DistanceMatrix;
 import org.mitre.ccv.AbstractCompositionVector;
 import org.mitre.ccv.AbstractVectorSet;
 import org.mitre.ccv.CompleteCompositionVector;
 import org.mitre.ccv.CompleteMatrix;
+import org.mitre.ccv.MinHashSketches;
+import org.mitre.math.linear.QuantizedRealMatrix;
 import org.mitre.math.linear.RealMatrixUtils;
 
-// because of IndexCompelteCompositionVector (and CompositionVector Interface)
-import weka.core.matrix.Matrix;
-
 /**
  * Class that that is a collection (list) of <code>CompleteCompositionVectors</code>
  * calculated over a given range of window sizes. The composition is backed by
  * <code>DistributionIndex</code>. This keeps track of the sequences, but
  * does <b>NOT</b> store the original sequence.
+ * <P>
+ * When constructed with more than one thread, the sequences are counted and
+ * their pi-values calculated on a pool of worker threads, each into its own
+ * <code>DistributionIndex</code> which is then merged into the shared one.
+ * Sequence ids are given out in the order the sequences are added and the
+ * vectors are kept in that order, so the results are the same as the serial
+ * ones.
+ * <P>
+ * When constructed with a {@link PiValueCache}, the pi-values are not
+ * calculated when the sequences are added; each sequence's pi-values for a
+ * window size are calculated when they are first needed and kept in the
+ * (bounded) cache, so runs that only use some of the window sizes or n-mers
+ * skip most of that work and memory.
  * 
  * @warm This class does not store the sequence.
  * @author Marc Colosimo
@@ -47,6 +69,23 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
     private final Integer stop;
     private final List<String> sequences;
     private final DistributionIndex distIndex;
+    /** Cache for lazily calculated pi-values (<code>null</code> to calculate them up front) */
+    private final PiValueCache piCache;
+    /** Precision of the pi-values in the index and matrices, see {@link RealMatrixUtils} */
+    private int precision = RealMatrixUtils.PRECISION_DOUBLE;
+
+    /** Receives the entries of a full matrix as they are looked up */
+    private interface EntrySink {
+
+        void setEntry(int row, int column, double value);
+    }
+
+    /** Worker pool (<code>null</code> when adding serially) */
+    private final ExecutorService executor;
+    /** Limits the number of sequences being worked on */
+    private final Semaphore inFlight;
+    /** Vectors still being worked on, in the order they were added */
+    private final LinkedList<Future<CompleteCompositionVector>> pending;
     
     /**
      * Construct a new <tt>IndexedCompleteCompositionVectorSet</tt> object.
@@ -55,36 +94,196 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
      * @param stop ending nmer size
      */
     public IndexedCompleteCompositionVectorSet(Integer start, Integer stop) {
+        this(start, stop, 1);
+    }
+
+    /**
+     * Construct a new <tt>IndexedCompleteCompositionVectorSet</tt> object
+     * that adds sequences using the given number of threads.
+     *
+     * @param start starting nmer size
+     * @param stop ending nmer size
+     * @param threads number of worker threads (1 adds the sequences serially)
+     */
+    public IndexedCompleteCompositionVectorSet(Integer start, Integer stop, int threads) {
+        this(start, stop, threads, null);
+    }
+
+    /**
+     * Construct a new <tt>IndexedCompleteCompositionVectorSet</tt> object
+     * that adds sequences using the given number of threads.
+     *
+     * @param start starting nmer size
+     * @param stop ending nmer size
+     * @param threads number of worker threads (1 adds the sequences serially)
+     * @param piCache where to keep the pi-values calculated as they are
+     * needed (<code>null</code> calculates them as the sequences are added)
+     */
+    public IndexedCompleteCompositionVectorSet(Integer start, Integer stop, int threads,
+            PiValueCache piCache) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least one");
+        }
         this.vectors = new ArrayList<CompleteCompositionVector>();
         this.start = start;
         this.stop = stop;
-        this.sequences = new LinkedList<String>();
-        this.distIndex = new DistributionIndex();
+        this.sequences = new ArrayList<String>();
+        this.pending = new LinkedList<Future<CompleteCompositionVector>>();
+        this.piCache = piCache;
+        if (threads == 1) {
+            this.distIndex = new DistributionIndex();
+            this.executor = null;
+            this.inFlight = null;
+        } else {
+            this.distIndex = new DistributionIndex(new KmerCodec(),
+                    Math.max(DistributionIndex.DEFAULT_CONCURRENCY, threads * 4));
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "IndexedCompleteCompositionVectorSet-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.inFlight = new Semaphore(threads * 2);
+        }
     }
 
     /**
      * Add a new sequence and calculate the complete composition.
+     * <P>
+     * With worker threads this returns as soon as the sequence is queued
+     * (blocking if too many are already queued).
      *
      * @param seqName
      * @param seq
      */
     public void addSequence(String seqName, String seq) {
+        this.addSequence(seqName, (CharSequence) seq);
+    }
+
+    /**
+     * Add a new sequence given as any {@link CharSequence} (such as a
+     * {@link org.mitre.bio.PackedSequence}), which is counted without making
+     * a <code>String</code> of it.
+     *
+     * @param seqName
+     * @param seq
+     */
+    public void addSequence(final String seqName, final CharSequence seq) {
+        final Integer seqId = this.sequences.size();
         this.sequences.add(seqName);
-        Integer seqId = this.sequences.indexOf(seqName);
-        IndexedCompositionDistribution cd = 
-                new IndexedCompositionDistribution(this.distIndex, seqId, seq,
+        if (this.executor == null) {
+            IndexedCompositionDistribution cd =
+                    new IndexedCompositionDistribution(this.distIndex, seqId, seq,
+                        this.start, this.stop);
+
+            this.vectors.add(this.createVector(seqName, seqId, cd));
+            return;
+        }
+
+        this.inFlight.acquireUninterruptibly();
+        try {
+            this.pending.add(this.executor.submit(new Callable<CompleteCompositionVector>() {
+
+                public CompleteCompositionVector call() {
+                    try {
+                        return calculateVector(seqName, seqId, seq);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            this.inFlight.release();
+            throw e;
+        }
+        this.commit(false);
+    }
+
+    /**
+     * Waits for all of the queued sequences to be finished.
+     */
+    public void flush() {
+        this.commit(true);
+    }
+
+    /**
+     * Stops the worker threads after finishing all of the queued sequences.
+     * Sequences can not be added after this.
+     */
+    public void shutdown() {
+        this.flush();
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * Counts the sequence and calculates its pi-values into a private index,
+     * merges that into the shared index and returns the vector backed by
+     * the shared index.
+     */
+    private CompleteCompositionVector calculateVector(String seqName, Integer seqId, CharSequence seq) {
+        DistributionIndex index = new DistributionIndex(this.distIndex.getCodec(), 1);
+        IndexedCompositionDistribution cd =
+                new IndexedCompositionDistribution(index, seqId, seq,
                     this.start, this.stop);
-        
-        CompleteCompositionVector ccv =
-                new IndexedCompleteCompositionVector(seqName, seqId,
-                this.start, this.stop, cd);
-        this.vectors.add(ccv);
+        IndexedCompleteCompositionVector ccv = this.createVector(seqName, seqId, cd);
+        this.distIndex.addAll(index);
+        return new IndexedCompleteCompositionVector(ccv,
+                new IndexedCompositionDistribution(cd, this.distIndex));
+    }
+
+    /**
+     * Returns a new vector for the counted sequence, calculating its
+     * pi-values now unless they are calculated lazily.
+     */
+    private IndexedCompleteCompositionVector createVector(String seqName, Integer seqId,
+            IndexedCompositionDistribution cd) {
+        if (this.piCache == null) {
+            return new IndexedCompleteCompositionVector(seqName, seqId,
+                    this.start, this.stop, cd);
+        }
+        return new IndexedCompleteCompositionVector(seqName, seqId,
+                this.start, this.stop, cd, this.piCache);
+    }
+
+    /**
+     * Moves the finished vectors (in order) from the pending queue to the
+     * list of vectors.
+     *
+     * @param wait if <code>true</code> wait for all of them to finish.
+     */
+    private void commit(boolean wait) {
+        while (!this.pending.isEmpty()) {
+            Future<CompleteCompositionVector> f = this.pending.getFirst();
+            if (!wait && !f.isDone()) {
+                break;
+            }
+            this.pending.removeFirst();
+            try {
+                this.vectors.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while adding sequences", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
     }
 
     /**
      * Returns the {@link java.util.List} of {@link CompleteCompositionVectors}
      */
     public List<CompleteCompositionVector> getVectors() {
+        this.flush();
         return this.vectors;
     }
 
@@ -101,6 +300,30 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
     public Integer getStop() {
         return this.stop;
     }
+
+    /**
+     * Sets the precision that pi-values are stored in, trading accuracy for
+     * memory. This has to be set before any sequences are added.
+     * <P>
+     * With {@link RealMatrixUtils#PRECISION_FLOAT} or
+     * {@link RealMatrixUtils#PRECISION_16BIT} the index keeps its pi-values
+     * as floats (lazily calculated ones are kept as doubles) and the full
+     * matrices are a {@link org.mitre.math.linear.FloatRealMatrix} or a
+     * {@link org.mitre.math.linear.QuantizedRealMatrix} with a scale for each
+     * window size.
+     *
+     * @param precision one of the <code>PRECISION_</code> values of {@link RealMatrixUtils}
+     * @throws IllegalStateException if pi-values have already been stored.
+     */
+    public void setPrecision(int precision) {
+        RealMatrixUtils.checkPrecision(precision);
+        this.distIndex.setFloatPiValues(precision != RealMatrixUtils.PRECISION_DOUBLE);
+        this.precision = precision;
+    }
+
+    public int getPrecision() {
+        return this.precision;
+    }
     
     /**
      * Returns the <code>TreeSet</code> of non-zero n-mers.
@@ -108,6 +331,7 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
      * @return java.util.TreeSet of n-mers found in at least one sequence
      */
     public TreeSet<String> getNmers() {
+        this.flush();
         /** Faster adding to HashSet and converting to TreeSet */
         HashSet<String> nmers = new HashSet<String>();
         Iterator<CompleteCompositionVector> ccvIter = vectors.iterator();
@@ -139,29 +363,395 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
      * @param nmers the set of nmers to build the matrix from.
      */
     public CompleteMatrix getFullMatrix(TreeSet<String> nmers) {
+        this.flush();
         if(nmers == null || nmers.isEmpty() ) 
             nmers = this.getNmers();
         LOG.debug(String.format("getFullMatrix getting matrix for %d nmers", nmers.size()));
 
-        RealMatrix matrix = RealMatrixUtils.getNewRealMatrix(nmers.size(), this.vectors.size());
+        final RealMatrix matrix;
+        if (this.precision == RealMatrixUtils.PRECISION_16BIT) {
+            /** Find the scale of each window size before storing anything */
+            final int[] windows = CompleteMatrix.getWindowIndexes(nmers, this.start, this.stop);
+            final double[] maxAbs = new double[this.stop - this.start + 1];
+            this.setEntries(new EntrySink() {
 
-        /*int[] rowInds = new int[nmers.size()];
-        for (int i = 0; i < nmers.size(); ++i) {
-            rowInds[i] = i;
-        }*/
-
-        for (int i = 0; i < vectors.size(); i++) {
-            // @TODO: fix IndexCompleteCompositionVector to keep the matrix
-            Matrix vm = this.vectors.get(i).getMatrix(nmers);
-            for (int j = 0; j < nmers.size(); j++) {
-                matrix.setEntry(j, i, vm.get(j, 0));
+                public void setEntry(int row, int column, double value) {
+                    maxAbs[windows[row]] = Math.max(maxAbs[windows[row]], Math.abs(value));
+                }
+            }, nmers);
+            double[] scales = new double[maxAbs.length];
+            for (int w = 0; w < scales.length; w++) {
+                scales[w] = QuantizedRealMatrix.scaleFor(maxAbs[w]);
             }
+            matrix = new QuantizedRealMatrix(nmers.size(), this.vectors.size(), windows, scales);
+        } else {
+            matrix = RealMatrixUtils.createRealMatrix(nmers.size(), this.vectors.size(),
+                    this.precision);
         }
+        this.setEntries(new EntrySink() {
+
+            public void setEntry(int row, int column, double value) {
+                matrix.setEntry(row, column, value);
+            }
+        }, nmers);
         return new CompleteMatrix(this.start, this.stop,
                 new ArrayList<String>(nmers), 
                 this.getSampleNames(), matrix);
     }
+
+    /**
+     * Looks up the entries of the full matrix for the n-mers, giving them to
+     * the sink a vector (column) at a time.
+     */
+    private void setEntries(EntrySink sink, TreeSet<String> nmers) {
+        if (this.piCache != null) {
+            this.setLazyEntries(sink, nmers);
+            return;
+        }
+        /** Project each vector onto the sorted n-mer keys (a linear merge) */
+        final KmerCodec codec = this.distIndex.getCodec();
+        final long[] keys = SparseCompositionVector.sortedKeys(codec, nmers);
+        final int[] positions = new int[nmers.size()];
+        int j = 0;
+        for (String nmer : nmers) {
+            long key = codec.lookup(nmer);
+            positions[j++] = (key == KmerCodec.NO_KEY) ? -1 : Arrays.binarySearch(keys, key);
+        }
+        for (int i = 0; i < vectors.size(); i++) {
+            double[] values = ((IndexedCompleteCompositionVector) this.vectors.get(i))
+                    .getSparseVector().project(keys);
+            for (j = 0; j < positions.length; j++) {
+                if (positions[j] >= 0) {
+                    sink.setEntry(j, i, values[positions[j]]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the entries from lazy vectors, a window size at a time (so
+     * each window is calculated at most once per pass).
+     */
+    private void setLazyEntries(EntrySink sink, TreeSet<String> nmers) {
+        /** Encode the n-mers once, grouped by window size */
+        final KmerCodec codec = this.distIndex.getCodec();
+        final int windows = this.stop - this.start + 1;
+        final int[] sizes = new int[windows];
+        for (String nmer : nmers) {
+            int w = nmer.length() - this.start;
+            if (w >= 0 && w < windows) {
+                sizes[w]++;
+            }
+        }
+        final long[][] keys = new long[windows][];
+        final int[][] rows = new int[windows][];
+        for (int w = 0; w < windows; w++) {
+            keys[w] = new long[sizes[w]];
+            rows[w] = new int[sizes[w]];
+            sizes[w] = 0;
+        }
+        int j = 0;
+        for (String nmer : nmers) {
+            int w = nmer.length() - this.start;
+            if (w >= 0 && w < windows) {
+                keys[w][sizes[w]] = codec.lookup(nmer);
+                rows[w][sizes[w]++] = j;
+            }
+            j++;
+        }
+
+        for (int i = 0; i < vectors.size(); i++) {
+            final IndexedCompleteCompositionVector ccv =
+                    (IndexedCompleteCompositionVector) this.vectors.get(i);
+            for (int w = 0; w < windows; w++) {
+                if (keys[w].length == 0) {
+                    continue;
+                }
+                double[] values = ccv.getPiValues(this.start + w, keys[w]);
+                for (int t = 0; t < values.length; t++) {
+                    sink.setEntry(rows[w][t], i, values[t]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a Jaccard distance matrix, comparing the vectors' sorted n-mer
+     * keys with merges instead of building sets of strings. Lazy vectors use
+     * {@link AbstractVectorSet#createJaccardDistanceMatrix}, which does not
+     * need their pi-values.
+     *
+     * @param an optional list (set) of nmers to calculate from (intersection).
+     *       If <code>null</code> or empty then it will use all nmers it finds.
+     */
+    @Override
+    public DistanceMatrix createJaccardDistanceMatrix(ArrayList<String> nmerList) {
+        if (this.piCache != null) {
+            return super.createJaccardDistanceMatrix(nmerList);
+        }
+        List<CompleteCompositionVector> vectors = this.getVectors();
+        int size = vectors.size();
+        List<String> names = new ArrayList<String>(size);
+        for (CompleteCompositionVector ccv : vectors) {
+            names.add(ccv.getName());
+        }
+        DistanceMatrix distMatrix = this.getDistanceEngine().createDistanceMatrix(names);
+
+        long[] base = null;
+        if (nmerList != null && !nmerList.isEmpty()) {
+            base = SparseCompositionVector.sortedKeys(this.distIndex.getCodec(), nmerList);
+        }
+        SparseCompositionVector[] sparse = new SparseCompositionVector[size];
+        for (int i = 0; i < size; i++) {
+            sparse[i] = ((IndexedCompleteCompositionVector) vectors.get(i)).getSparseVector();
+            if (base != null) {
+                sparse[i] = sparse[i].retain(base);
+            }
+        }
+
+        // Cui intersect Cuj count over Cui union Cuj
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                int intersection = sparse[i].intersectionSize(sparse[j]);
+                int union = sparse[i].size() + sparse[j].size() - intersection;
+                Double sim = (double) intersection / union;
+                distMatrix.setDistance(i, j, 1 - sim);
+            }
+        }
+        return distMatrix;
+    }
     
+    /**
+     * Returns the hashes of the vector's n-mers from their keys in the index,
+     * so neither the pi-values nor the n-mer strings are needed.
+     */
+    @Override
+    protected long[] getNmerHashes(CompleteCompositionVector ccv) {
+        IndexedCompleteCompositionVector iccv = (IndexedCompleteCompositionVector) ccv;
+        final KmerCodec codec = this.distIndex.getCodec();
+        long[][] windowKeys = new long[iccv.getStop() - iccv.getStart() + 1][];
+        int size = 0;
+        for (int w = 0; w < windowKeys.length; w++) {
+            windowKeys[w] = this.distIndex.getSortedSequenceKeys(iccv.getSequenceId(), iccv.getStart() + w);
+            size += windowKeys[w].length;
+        }
+        long[] hashes = new long[size];
+        int n = 0;
+        for (long[] keys : windowKeys) {
+            for (long key : keys) {
+                hashes[n++] = KmerCodec.isPacked(key) ? MinHashSketches.hash(key)
+                        : MinHashSketches.hash(codec.decode(key));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds the m top n-mers with the highest entropy, like
+     * {@link AbstractVectorSet#getNmers(Integer, String)}, but calculates
+     * the entropies one window size at a time and adds them to an
+     * {@link EntropyRanking.Collector}: the top m come from a bounded heap
+     * and the entropy file is sorted in runs on disk, so only the n-mers of
+     * one window size are held at once. The likelihood method
+     * (<code>m &lt; 0</code>) also keeps every entropy (but not the n-mers).
+     */
+    @Override
+    public TreeSet<String> getNmers(Integer m, String entFileName) {
+        if (m == null) {
+            return super.getNmers(m, entFileName);
+        }
+        this.flush();
+        final KmerCodec codec = this.distIndex.getCodec();
+        final EntropyRanking ranking = new EntropyRanking(codec);
+        /** All of the n-mers (m == 0) are kept by the heap, which grows */
+        final EntropyRanking.Collector collector = ranking.collector(
+                (m < 0) ? 0 : (m == 0) ? Integer.MAX_VALUE : m, m < 0 || entFileName != null);
+        double[] values = new double[0];
+        int count = 0;
+        try {
+            for (int windowSize = this.start; windowSize <= this.stop; windowSize++) {
+                final long[] keys = this.getSortedKeys(windowSize);
+                final double[] entropies = this.calculateEntropies(windowSize, keys);
+                for (int k = 0; k < keys.length; k++) {
+                    collector.add(keys[k], entropies[k]);
+                }
+                if (m < 0) {
+                    if (values.length < count + entropies.length) {
+                        values = Arrays.copyOf(values, Math.max(2 * values.length, count + entropies.length));
+                    }
+                    System.arraycopy(entropies, 0, values, count, entropies.length);
+                }
+                count += keys.length;
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to sort the entropies", ioe);
+        }
+
+        long[] top = null;
+        if (m < 0) {
+            /** Use the Likelihood method to find the best number of top nmers */
+            values = Arrays.copyOf(values, count);
+            Arrays.sort(values);
+            for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+                double v = values[i];
+                values[i] = values[j];
+                values[j] = v;
+            }
+            int n = this.getNmersByLikelihood(values, -1 * m);
+            values = null;
+            try {
+                try {
+                    top = collector.write(entFileName, n);
+                } catch (IOException ioe) {
+                    /** The runs are kept if the file could not be opened */
+                    LOG.error("Unable to write the entropies to " + entFileName, ioe);
+                    top = collector.write(null, n);
+                }
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Unable to sort the entropies", ioe);
+            }
+        } else {
+            if (m > count) {
+                LOG.debug(String.format(
+                        "getNmers(int, string): Asked for %d topNmers, but only have %d\n", m, count));
+            }
+            top = collector.top();
+            if (entFileName != null) {
+                try {
+                    collector.write(entFileName, 0);
+                } catch (IOException ioe) {
+                    LOG.error("Unable to write the entropies to " + entFileName, ioe);
+                }
+            }
+        }
+
+        TreeSet<String> nmers = new TreeSet<String>();
+        for (long key : top) {
+            nmers.add(codec.decode(key));
+        }
+        LOG.debug(String.format("IndexedCompleteCompositionVectorSet.getNmers(int): have %d topNmers\n",
+                nmers.size()));
+        return nmers;
+    }
+
+    /**
+     * Calculates the revised relative entropies, keeping them in the
+     * pairs that {@link AbstractVectorSet#getNmersByLikelihood} takes.
+     *
+     * @see #calculateEntropies(int, long[])
+     */
+    @Override
+    protected TreeSet<EntropyPair> calculateEntropies(TreeSet<String> nmers) {
+        this.flush();
+        final KmerCodec codec = this.distIndex.getCodec();
+        TreeSet<EntropyPair> entSet = new TreeSet<EntropyPair>();
+        for (int windowSize = this.start; windowSize <= this.stop; windowSize++) {
+            List<String> window = new ArrayList<String>();
+            for (String nmer : nmers) {
+                if (nmer.length() == windowSize) {
+                    window.add(nmer);
+                }
+            }
+            final long[] keys = SparseCompositionVector.sortedKeys(codec, window);
+            final double[] entropies = this.calculateEntropies(windowSize, keys);
+            for (String nmer : window) {
+                long key = codec.lookup(nmer);
+                int k = (key == KmerCodec.NO_KEY) ? -1 : Arrays.binarySearch(keys, key);
+                entSet.add(new EntropyPair(nmer, (k < 0) ? 0.0 : entropies[k]));
+            }
+        }
+        for (String nmer : nmers) {
+            if (nmer.length() < this.start || nmer.length() > this.stop) {
+                entSet.add(new EntropyPair(nmer, 0.0));
+            }
+        }
+        return entSet;
+    }
+
+    /**
+     * Calculates the revised relative entropies of n-mers of one window
+     * size by walking each vector's sorted n-mers of that size once,
+     * keeping one sum per n-mer instead of building the full matrix. The
+     * sums are added in the same order as
+     * {@link AbstractVectorSet#calculateEntropies}, so the entropies are the
+     * same.
+     *
+     * @param windowSize the length of the n-mers.
+     * @param keys the sorted n-mer keys.
+     * @return the entropies, in the same order as the keys.
+     */
+    private double[] calculateEntropies(int windowSize, long[] keys) {
+        final KmerCodec codec = this.distIndex.getCodec();
+        LOG.debug(String.format("Calculating revised relative entropies of %d-mers (%d by %d)",
+                windowSize, keys.length, this.vectors.size()));
+        if (keys.length == 0) {
+            return new double[0];
+        }
+
+        /** The pi-value of each n-mer over all of the sequences */
+        final int totalSubStrs = this.getTotalSubStrings()[windowSize - this.start];
+        final double[] full = new double[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            Double value = this.calculateFullPiValue(codec.decode(keys[k]), totalSubStrs);
+            full[k] = (value == null) ? 0.0 : value;
+        }
+
+        final double[] ent = new double[keys.length];
+        for (CompleteCompositionVector v : this.vectors) {
+            IndexedCompleteCompositionVector iv = (IndexedCompleteCompositionVector) v;
+            final long[] seqKeys = this.distIndex.getSortedSequenceKeys(iv.getSequenceId(), windowSize);
+            final double[] values = iv.getPiValues(windowSize, seqKeys);
+            int k = 0;
+            for (int t = 0; t < seqKeys.length; t++) {
+                final long key = seqKeys[t];
+                while (k < keys.length && keys[k] < key) {
+                    k++;
+                }
+                if (k == keys.length) {
+                    break;
+                }
+                final double value = values[t];
+                if (keys[k] == key && value != 0) {
+                    ent[k] += Math.abs(value) * Math.log(Math.abs(value / full[k]));
+                }
+            }
+        }
+        for (int k = 0; k < ent.length; k++) {
+            ent[k] = Math.abs(ent[k]);
+        }
+        return ent;
+    }
+
+    /**
+     * Returns the sorted keys of the n-mers of the window size found in at
+     * least one sequence (the keys of {@link #getNmers()} of that length).
+     */
+    private long[] getSortedKeys(int windowSize) {
+        int size = 0;
+        long[][] seqKeys = new long[this.vectors.size()][];
+        for (int i = 0; i < seqKeys.length; i++) {
+            seqKeys[i] = this.distIndex.getSortedSequenceKeys(
+                    ((IndexedCompleteCompositionVector) this.vectors.get(i)).getSequenceId(),
+                    windowSize);
+            size += seqKeys[i].length;
+        }
+        long[] window = new long[size];
+        size = 0;
+        for (long[] sk : seqKeys) {
+            System.arraycopy(sk, 0, window, size, sk.length);
+            size += sk.length;
+        }
+        seqKeys = null;
+        Arrays.sort(window);
+        int n = 0;
+        for (int i = 0; i < window.length; i++) {
+            if (i == 0 || window[i] != window[n - 1]) {
+                window[n++] = window[i];
+            }
+        }
+        return Arrays.copyOf(window, n);
+    }
+
     /**
      * Returns a CompleteMatrix of the non-zero n-mers by sequence
      * (<code>null</code> or zero is allowed and this 
@@ -199,6 +789,7 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
         LOG.debug(String.format("IndexedCompleteCompositionVectorSet." +
                 "getCompleteMatrix(Set<String>): Building matrix " +
                 "from %d nmers.\n", nmers.size()) );
+        this.flush();
         ArrayList<String> nmersAL = new ArrayList<String>(nmers);
         int count = nmersAL.size();
         RealMatrix matrix = RealMatrixUtils.getNewRealMatrix(count, 1);
@@ -206,19 +797,12 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
         /** 
          * Need to calculate all the totalSubStrs for each window size.
          */
-        ArrayList<Integer> totalSubStrs = new ArrayList<Integer>();
-        for(int windowSize = this.start; windowSize <= this.stop; windowSize++) {
-            Integer cv = 0;
-            for(CompleteCompositionVector v: this.vectors) {
-               cv += v.getCompositionDistribution().getTotalSubStrings(windowSize);
-            }
-            totalSubStrs.add(cv);
-        }
+        int[] totalSubStrs = this.getTotalSubStrings();
         
         for (int i = 0; i < count; i++) {
             String nmer = nmersAL.get(i);
             Double value = this.calculateFullPiValue(nmer, 
-                    totalSubStrs.get(nmer.length() - this.start));
+                    totalSubStrs[nmer.length() - this.start]);
             if (value == null) {
                 value = 0.0;
             }
@@ -226,15 +810,26 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
             matrix.setEntry(i, 0, value);
         }
 
-        /** clean-up */
-        totalSubStrs.clear();
-        totalSubStrs = null;
-        
         return new CompleteMatrix(this.start, this.stop, 
                 new ArrayList<String>(nmers),
                 this.getSampleNames(), matrix); //wekaMatrix);
     }
     
+    /**
+     * Returns the total number of sub-strings of each window size over all
+     * of the sequences.
+     */
+    private int[] getTotalSubStrings() {
+        int[] totalSubStrs = new int[this.stop - this.start + 1];
+        for (int windowSize = this.start; windowSize <= this.stop; windowSize++) {
+            for (CompleteCompositionVector v : this.vectors) {
+                totalSubStrs[windowSize - this.start] +=
+                        v.getCompositionDistribution().getTotalSubStrings(windowSize);
+            }
+        }
+        return totalSubStrs;
+    }
+
     /**
      * Calculates the pi-value for a given n-mer across all sequences
      * 
@@ -244,16 +839,22 @@ public class IndexedCompleteCompositionVectorSet extends AbstractVectorSet {
     private Double calculateFullPiValue(String nmer, Integer totalSubStr) {
         
         /** check AbstractCompositionVector for errors */
-        Integer windowSize = nmer.length();
-        String s1 = nmer.substring(0, windowSize - 1);
-        String s2 = nmer.substring(1, windowSize);
-        String s3 = nmer.substring(1, windowSize - 1);
-        
-        /** One of these might throw a NULL error */
-        Integer countsM0 = this.distIndex.sumCounts(nmer);
-        Integer countsM1 = this.distIndex.sumCounts(s1);
-        Integer countsM2 = this.distIndex.sumCounts(s2);
-        Integer countsM3 = this.distIndex.sumCounts(s3);
+        final KmerCodec codec = this.distIndex.getCodec();
+        final long key = codec.lookup(nmer);
+        if (key == KmerCodec.NO_KEY) {
+            /** Not in our index (so countsM0 is zero), use the sub-strings */
+            int windowSize = nmer.length();
+            return AbstractCompositionVector.calculatePiValue(0,
+                    this.distIndex.sumCounts(nmer.substring(0, windowSize - 1)),
+                    this.distIndex.sumCounts(nmer.substring(1, windowSize)),
+                    this.distIndex.sumCounts(nmer.substring(1, windowSize - 1)),
+                    totalSubStr);
+        }
+
+        int countsM0 = this.distIndex.sumCounts(key);
+        int countsM1 = this.distIndex.sumCounts(codec.prefix(key));
+        int countsM2 = this.distIndex.sumCounts(codec.suffix(key));
+        int countsM3 = this.distIndex.sumCounts(codec.infix(key));
         
         return AbstractCompositionVector.calculatePiValue(
                         countsM0, countsM1,
@@ -51,7 +51,7 @@ public class IndexedCompositionDistribution implements CompositionDistribution {
      * @throws java.lang.IllegalArgumentException
      */
     public IndexedCompositionDistribution(DistributionIndex index, 
-            Integer seqId, String inSequence, 
+            Integer seqId, CharSequence inSequence, 
             int begin, int end) 
     throws IllegalArgumentException {
         if( begin <= 2 ) 
@@ -72,10 +72,28 @@ public class IndexedCompositionDistribution implements CompositionDistribution {
         
         this.countMap = new ArrayList<IndexedCompositionDistributionMap>();
         
-        // probably slowest way to build this.
         this.beginOffset = this.begin - 2;
         for(int i=this.beginOffset; i <= this.end; i++) {
-            this.countMap.add(getDistribution(inSequence, null, i));
+            this.countMap.add(new IndexedCompositionDistributionMap(i, this.distIndex, this.seqId));
+        }
+        this.countSequence(inSequence);
+    }
+
+    /**
+     * Construct a copy of the distribution that is backed by the given index
+     * (which has to hold the same counts, see {@link DistributionIndex#addAll}).
+     */
+    IndexedCompositionDistribution(IndexedCompositionDistribution cd,
+            DistributionIndex index) {
+        this.distIndex = index;
+        this.begin = cd.begin;
+        this.end = cd.end;
+        this.seqId = cd.seqId;
+        this.seqLength = cd.seqLength;
+        this.beginOffset = cd.beginOffset;
+        this.countMap = new ArrayList<IndexedCompositionDistributionMap>();
+        for (IndexedCompositionDistributionMap map : cd.countMap) {
+            this.countMap.add(new IndexedCompositionDistributionMap(map, index));
         }
     }
 
@@ -106,9 +124,7 @@ public class IndexedCompositionDistribution implements CompositionDistribution {
      * @param inSequence sequence string to add
      */
     public void addSequence(String inSequence) {
-        for (Integer cv=0; cv < this.countMap.size(); cv++ ) {
-            getDistribution(inSequence, this.countMap.get(cv), cv + this.begin);
-        }
+        this.countSequence(inSequence);
         this.seqLength += inSequence.length();
         //this.totalSubStr += insequence.length() - length + 1;
     }
@@ -170,25 +186,19 @@ public class IndexedCompositionDistribution implements CompositionDistribution {
     }
     
     /**
-     * Populate a distribution map with the counts for each substring
-     * 
+     * Count all of the n-mers (all window sizes) in one pass over the sequence.
+     *
      * @param sequence the sequence
-     * @param length the of the nmer to generate counts for
+     * @see RollingKmerCounter
      */
-    private IndexedCompositionDistributionMap 
-            getDistribution(String sequence, 
-                IndexedCompositionDistributionMap cdMap,
-                int windowSize) 
-                throws IllegalArgumentException {
-        
-        if( cdMap == null ) {
-            cdMap = new 
-               IndexedCompositionDistributionMap(windowSize, 
-                        this.distIndex, this.seqId, sequence);
-        } else {
-            cdMap.addSequence(sequence);
-        }
+    private void countSequence(CharSequence sequence) {
+        RollingKmerCounter counter = new RollingKmerCounter(
+                this.distIndex.getCodec(), this.beginOffset, this.end);
+        counter.count(sequence, new RollingKmerCounter.KmerSink() {
 
-        return cdMap;
+            public void add(int windowSize, long key) {
+                countMap.get(windowSize - beginOffset).put(key);
+            }
+        });
     }
 }
@@ -8,6 +8,7 @@
 package org.mitre.ccv.index;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import org.mitre.ccv.CompositionDistributionMap;
 
 /**
@@ -40,6 +41,18 @@ public class IndexedCompositionDistributionMap implements CompositionDistributio
         this.addSequence(sequence);
     }
     
+    /**
+     * Construct a copy of the map that is backed by the given index (which
+     * has to hold the same counts).
+     */
+    IndexedCompositionDistributionMap(IndexedCompositionDistributionMap map,
+            DistributionIndex index) {
+        this.windowSize = map.windowSize;
+        this.distIndex = index;
+        this.size = map.size;
+        this.seqId = map.seqId;
+    }
+
     public Integer getWindowSize() {
         return this.windowSize;
     }
@@ -55,11 +68,19 @@ public class IndexedCompositionDistributionMap implements CompositionDistributio
      * @return
      */
     public boolean put(String str) {
-        Integer count = this.distIndex.addCount(this.seqId, str, 1);
+        return this.put(this.distIndex.getCodec().encode(str));
+    }
+
+    /**
+     * Add the n-mer key, increasing its count.
+     *
+     * @param key the n-mer key (see {@link KmerCodec})
+     * @return
+     */
+    public boolean put(long key) {
+        int count = this.distIndex.addCount(this.seqId, key, 1);
         if (count == 1) {
             this.size++;
-        } else {
-          //  System.out.printf("windowSize=%d, %s, count=%d\n", windowSize, str, count);
         }
         return true;
     }
@@ -70,16 +91,29 @@ public class IndexedCompositionDistributionMap implements CompositionDistributio
     public Integer get(String str) {
         return this.distIndex.getCount(this.seqId, str);
     }
+
+    /**
+     * Return the count of the n-mer key.
+     */
+    public int get(long key) {
+        return this.distIndex.getCount(this.seqId, key);
+    }
     
    
     /**
      * Add the sequence to this distribution map.
+     *
+     * @see RollingKmerCounter
      */
     public void addSequence(String inSequence) {
-        for (int i = 0; i < inSequence.length() - this.windowSize + 1; ++i) {
-            String subst = new String(inSequence.substring(i, i + this.windowSize)); 
-            this.put(subst);
-        }
+        RollingKmerCounter counter = new RollingKmerCounter(
+                this.distIndex.getCodec(), this.windowSize, this.windowSize);
+        counter.count(inSequence, new RollingKmerCounter.KmerSink() {
+
+            public void add(int windowSize, long key) {
+                put(key);
+            }
+        });
     }
 
     /**
@@ -95,10 +129,50 @@ public class IndexedCompositionDistributionMap implements CompositionDistributio
     }
 
     /**
-     * Return an iterator for all strings indexed/counted.
+     * Return an iterator for all strings indexed/counted (in sorted n-mer key order).
      */
     public Iterator<String> iterator() {
-       return this.distIndex.getSequenceNmers(this.seqId, this.windowSize).iterator();
+        final KmerCodec codec = this.distIndex.getCodec();
+        final Iterator<Long> keys = this.keyIterator();
+        return new Iterator<String>() {
+
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public String next() {
+                return codec.decode(keys.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Return an iterator for all n-mer keys indexed/counted (in sorted order).
+     */
+    public Iterator<Long> keyIterator() {
+        final long[] keys = this.distIndex.getSortedSequenceKeys(this.seqId, this.windowSize);
+        return new Iterator<Long>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < keys.length;
+            }
+
+            public Long next() {
+                if (this.next >= keys.length) {
+                    throw new NoSuchElementException();
+                }
+                return keys[this.next++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
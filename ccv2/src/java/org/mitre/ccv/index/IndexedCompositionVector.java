@@ -10,7 +10,6 @@ package org.mitre.ccv.index;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import org.mitre.ccv.AbstractCompositionVector;
 import org.mitre.ccv.CompositionDistribution;
@@ -23,16 +22,57 @@ import org.mitre.ccv.CompositionDistributionMap;
  * @author Marc Colosimo
  */
 public class IndexedCompositionVector extends AbstractCompositionVector {
+    /** Only look up n-mers one at a time if there are fewer than 1/8 of the window's */
+    private static final int SPARSE_LOOKUPS = 8;
+
     private final IndexedCompositionDistribution cd;
     private final int windowSize;
+    /** Where lazily calculated pi-values are kept (null if they are in the index) */
+    private final PiValueCache cache;
     
     public IndexedCompositionVector(int windowSize, IndexedCompositionDistribution distribution) {
+        this(windowSize, distribution, true);
+    }
+
+    /**
+     * Construct a vector that calculates its pi-values when they are first
+     * asked for, keeping them in the given cache instead of the index.
+     */
+    public IndexedCompositionVector(int windowSize, IndexedCompositionDistribution distribution,
+            PiValueCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("A PiValueCache is required");
+        }
         this.cd = distribution;
         this.windowSize = windowSize;
-        Map <String, Double> cv = this.createCompositionVector();
-        this.storePiValues(cv);
+        this.cache = cache;
+    }
+
+    /**
+     * Construct a vector, calculating its pi-values only if asked to (they can
+     * be calculated for a range of window sizes at once, see
+     * {@link PiValueKernel#store}).
+     */
+    IndexedCompositionVector(int windowSize, IndexedCompositionDistribution distribution,
+            boolean calculate) {
+        this.cd = distribution;
+        this.windowSize = windowSize;
+        this.cache = null;
+        if (calculate) {
+            this.storePiValues();
+        }
     }
     
+    /**
+     * Construct a vector whose pi-values are already in the distribution's index
+     * (or are calculated lazily if the given vector's are).
+     */
+    IndexedCompositionVector(IndexedCompositionVector cv, IndexedCompositionDistribution distribution) {
+        this.cd = distribution;
+        this.windowSize = cv.windowSize;
+        this.cache = cv.cache;
+    }
+
     public int getWindowSize() {
         return this.windowSize;
     }
@@ -41,7 +81,52 @@ public class IndexedCompositionVector extends AbstractCompositionVector {
      * Returns the pi-value for the nmer (tile).  
      */
     public Double getPiValueForNmer(String nmer) {
-        return this.cd.getDistributionIndex().getPiValueForNmer(this.cd.getSeqId(), nmer);
+        if (this.cache == null) {
+            return this.cd.getDistributionIndex().getPiValueForNmer(this.cd.getSeqId(), nmer);
+        }
+        PiValueCache.Window window = this.getWindow();
+        int i = window.indexOf(this.cd.getDistributionIndex().getCodec().lookup(nmer));
+        return (i < 0) ? null : window.piValues[i];
+    }
+
+    /**
+     * Returns the pi-values for n-mer keys of this window size, with 0.0 for
+     * those not seen.
+     * <P>
+     * If the pi-values are calculated lazily and only a few keys are asked
+     * for, they are calculated one at a time from the counts rather than for
+     * the whole window.
+     */
+    double[] getPiValues(long[] keys) {
+        final DistributionIndex index = this.cd.getDistributionIndex();
+        final int seqId = this.cd.getSeqId();
+        double[] piValues = new double[keys.length];
+        PiValueCache.Window window = null;
+        if (this.cache != null) {
+            window = this.cache.get(seqId, this.windowSize);
+            if (window == null && (long) keys.length * SPARSE_LOOKUPS
+                    >= index.getSequenceSize(seqId, this.windowSize)) {
+                window = this.getWindow();
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            Double value;
+            if (keys[i] == KmerCodec.NO_KEY) {
+                value = null;
+            } else if (this.cache == null) {
+                value = index.getPiValueForNmer(seqId, keys[i]);
+            } else if (window == null) {
+                value = PiValueKernel.piValue(index, seqId, keys[i],
+                        this.cd.getTotalSubStrings(this.windowSize));
+            } else {
+                int j = window.indexOf(keys[i]);
+                value = (j < 0) ? null : window.piValues[j];
+            }
+            if (value != null) {
+                piValues[i] = value;
+            }
+        }
+        return piValues;
     }
 
     /**
@@ -69,12 +154,25 @@ public class IndexedCompositionVector extends AbstractCompositionVector {
     }
 
     /**
-     * Store the piValues in the DistributionIndex
+     * Calculates and stores the piValues in the DistributionIndex.
+     * <P>
+     * This is {@link AbstractCompositionVector#createCompositionVector()} done
+     * on sorted columns of n-mer keys, see {@link PiValueKernel}.
+     */
+    private void storePiValues() {
+        PiValueKernel.store(this.cd, this.windowSize, this.windowSize);
+    }
+
+    /**
+     * Returns the lazily calculated pi-values of the window, calculating them
+     * if they are not in the cache.
      */
-    private void storePiValues(Map <String, Double> cv) {
-        for(Entry<String, Double> entry : cv.entrySet()) {
-           this.cd.getDistributionIndex().setPiValueForNmer(
-                   this.cd.getSeqId(), entry.getKey(), entry.getValue());
+    private PiValueCache.Window getWindow() {
+        PiValueCache.Window window = this.cache.get(this.cd.getSeqId(), this.windowSize);
+        if (window == null) {
+            window = PiValueKernel.window(this.cd, this.windowSize);
+            this.cache.put(this.cd.getSeqId(), this.windowSize, window);
         }
+        return window;
     }
 }
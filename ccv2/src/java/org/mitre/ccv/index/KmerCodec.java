@@ -0,0 +1,233 @@
+/**
+ * KmerCodec.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes n-mers (k-mers) as <code>long</code> keys.
+ * <P>
+ * N-mers made up of only <code>A</code>, <code>C</code>, <code>G</code> and
+ * <code>T</code> that are at most {@link #MAX_PACKED_LENGTH} long are packed
+ * two bits per base (A=0, C=1, G=2, T=3) with a single sentinel bit set
+ * above the highest base. The sentinel makes the length part of the key, so
+ * n-mers of different window sizes never collide, and packed keys of the same
+ * length sort in the same order as their strings.
+ * <P>
+ * Everything else (ambiguous bases, lower case, proteins, or n-mers longer than
+ * {@link #MAX_PACKED_LENGTH}) falls back to a dictionary owned by this codec and
+ * gets a negative key. Packed keys are always positive and zero
+ * ({@link #NO_KEY}) is never a valid key.
+ *
+ * @author Marc Colosimo
+ */
+public class KmerCodec {
+
+    /** The longest n-mer that can be packed into a long (2 bits/base + sentinel). */
+    public static final int MAX_PACKED_LENGTH = 31;
+
+    /** Returned by {@link #lookup(CharSequence)} for n-mers we have never seen. */
+    public static final long NO_KEY = 0L;
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    /** Fallback n-mers to their (negative) keys */
+    private final Map<String, Long> fallbackKeys;
+
+    /** Fallback n-mers, key -1 is at index 0 */
+    private final ArrayList<String> fallbackNmers;
+
+    /**
+     * Construct a new <tt>KmerCodec</tt> object.
+     */
+    public KmerCodec() {
+        this.fallbackKeys = new HashMap<String, Long>();
+        this.fallbackNmers = new ArrayList<String>();
+    }
+
+    /**
+     * Returns the 2-bit code for the base or -1 if it cannot be packed.
+     */
+    public static int baseCode(char c) {
+        switch (c) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the sentinel bit for the given window size.
+     */
+    public static long sentinel(int windowSize) {
+        return 1L << (windowSize << 1);
+    }
+
+    /**
+     * Returns <code>true</code> if the key is a 2-bit packed key.
+     */
+    public static boolean isPacked(long key) {
+        return key > 0;
+    }
+
+    /**
+     * Packs the n-mer starting at <code>offset</code>.
+     *
+     * @return the packed key or {@link #NO_KEY} if the n-mer cannot be packed.
+     */
+    public static long pack(CharSequence seq, int offset, int windowSize) {
+        if (windowSize > MAX_PACKED_LENGTH) {
+            return NO_KEY;
+        }
+        long key = 1L;
+        for (int i = offset; i < offset + windowSize; i++) {
+            int code = baseCode(seq.charAt(i));
+            if (code < 0) {
+                return NO_KEY;
+            }
+            key = (key << 2) | code;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the length of a packed key.
+     */
+    public static int packedLength(long key) {
+        return (63 - Long.numberOfLeadingZeros(key)) >>> 1;
+    }
+
+    /**
+     * Returns the key for the n-mer starting at <code>offset</code>, adding it
+     * to the fallback dictionary if it cannot be packed.
+     */
+    public long encode(CharSequence seq, int offset, int windowSize) {
+        long key = pack(seq, offset, windowSize);
+        if (key != NO_KEY) {
+            return key;
+        }
+        return this.fallbackKey(seq.subSequence(offset, offset + windowSize).toString(), true);
+    }
+
+    /**
+     * Returns the key for the given n-mer, adding it to the fallback
+     * dictionary if it cannot be packed.
+     */
+    public long encode(String nmer) {
+        return this.encode(nmer, 0, nmer.length());
+    }
+
+    /**
+     * Returns the key for the given n-mer without adding it to the dictionary.
+     *
+     * @return the key or {@link #NO_KEY} if this is an unknown fallback n-mer.
+     */
+    public long lookup(CharSequence nmer) {
+        long key = pack(nmer, 0, nmer.length());
+        if (key != NO_KEY) {
+            return key;
+        }
+        return this.fallbackKey(nmer.toString(), false);
+    }
+
+    /**
+     * Returns the n-mer for the given key.
+     */
+    public String decode(long key) {
+        if (isPacked(key)) {
+            int length = packedLength(key);
+            char[] chars = new char[length];
+            for (int i = length - 1; i >= 0; i--) {
+                chars[i] = BASES[(int) (key & 3L)];
+                key >>>= 2;
+            }
+            return new String(chars);
+        }
+        synchronized (this) {
+            return this.fallbackNmers.get((int) (-key - 1));
+        }
+    }
+
+    /**
+     * Returns the length (window size) of the n-mer for the given key.
+     */
+    public int length(long key) {
+        if (isPacked(key)) {
+            return packedLength(key);
+        }
+        return this.decode(key).length();
+    }
+
+    /**
+     * Returns the key for the n-mer minus its last base.
+     *
+     * @return the key or {@link #NO_KEY} if this is an unknown fallback n-mer.
+     */
+    public long prefix(long key) {
+        if (isPacked(key)) {
+            return key >>> 2;
+        }
+        String nmer = this.decode(key);
+        return this.lookup(nmer.substring(0, nmer.length() - 1));
+    }
+
+    /**
+     * Returns the key for the n-mer minus its first base.
+     *
+     * @return the key or {@link #NO_KEY} if this is an unknown fallback n-mer.
+     */
+    public long suffix(long key) {
+        if (isPacked(key)) {
+            long sentinel = Long.highestOneBit(key) >>> 2;
+            return (key & (sentinel - 1)) | sentinel;
+        }
+        String nmer = this.decode(key);
+        return this.lookup(nmer.substring(1));
+    }
+
+    /**
+     * Returns the key for the n-mer minus its first and last base.
+     *
+     * @return the key or {@link #NO_KEY} if this is an unknown fallback n-mer.
+     */
+    public long infix(long key) {
+        if (isPacked(key)) {
+            return this.suffix(key >>> 2);
+        }
+        String nmer = this.decode(key);
+        return this.lookup(nmer.substring(1, nmer.length() - 1));
+    }
+
+    /**
+     * Returns the number of fallback n-mers in the dictionary.
+     */
+    public synchronized int getFallbackSize() {
+        return this.fallbackNmers.size();
+    }
+
+    private synchronized long fallbackKey(String nmer, boolean add) {
+        Long key = this.fallbackKeys.get(nmer);
+        if (key != null) {
+            return key;
+        }
+        if (!add) {
+            return NO_KEY;
+        }
+        this.fallbackNmers.add(nmer);
+        key = (long) -this.fallbackNmers.size();
+        this.fallbackKeys.put(nmer, key);
+        return key;
+    }
+}
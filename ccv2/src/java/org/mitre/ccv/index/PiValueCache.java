@@ -0,0 +1,119 @@
+/**
+ * PiValueCache.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of pi-values for vectors that
+ * calculate them lazily.
+ * <P>
+ * An entry holds the pi-values of one sequence for one window size (in the
+ * order of its sorted n-mer keys, see {@link PiValueKernel}). The cache holds
+ * at most <code>capacity</code> pi-values; the least recently used windows are
+ * dropped (and recalculated from the counts if they are needed again). One
+ * cache is usually shared by all of the vectors of a set.
+ *
+ * @author Marc Colosimo
+ */
+public class PiValueCache {
+
+    /** Default number of pi-values to keep (about 64MB) */
+    public static final long DEFAULT_CAPACITY = 1L << 22;
+
+    /**
+     * The pi-values of a sequence for one window size.
+     */
+    static class Window {
+
+        final long[] keys;
+        final double[] piValues;
+
+        Window(long[] keys, double[] piValues) {
+            this.keys = keys;
+            this.piValues = piValues;
+        }
+
+        /**
+         * Returns the index of the key or a negative number if it is missing.
+         */
+        int indexOf(long key) {
+            return Arrays.binarySearch(this.keys, key);
+        }
+    }
+
+    private final long capacity;
+    private long size = 0;
+    private final LinkedHashMap<Long, Window> windows;
+
+    /**
+     * Construct a new <tt>PiValueCache</tt> object holding up to
+     * {@link #DEFAULT_CAPACITY} pi-values.
+     */
+    public PiValueCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a new <tt>PiValueCache</tt> object.
+     *
+     * @param capacity the most pi-values to keep (the most recent window is
+     * always kept, even if it is larger).
+     */
+    public PiValueCache(long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one");
+        }
+        this.capacity = capacity;
+        this.windows = new LinkedHashMap<Long, Window>(64, 0.75f, true);
+    }
+
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of pi-values held.
+     */
+    public synchronized long size() {
+        return this.size;
+    }
+
+    public synchronized void clear() {
+        this.windows.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Returns the window or <code>null</code> if it is not in the cache.
+     */
+    synchronized Window get(int seqId, int windowSize) {
+        return this.windows.get(key(seqId, windowSize));
+    }
+
+    /**
+     * Adds a window, dropping the least recently used ones to make room.
+     */
+    synchronized void put(int seqId, int windowSize, Window window) {
+        Window old = this.windows.put(key(seqId, windowSize), window);
+        if (old != null) {
+            this.size -= old.keys.length;
+        }
+        this.size += window.keys.length;
+        Iterator<Map.Entry<Long, Window>> iter = this.windows.entrySet().iterator();
+        while (this.size > this.capacity && this.windows.size() > 1) {
+            this.size -= iter.next().getValue().keys.length;
+            iter.remove();
+        }
+    }
+
+    private static Long key(int seqId, int windowSize) {
+        return (((long) seqId) << 32) | (windowSize & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * PiValueKernel.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the pi-values of all of the n-mers of a sequence for a window
+ * size at once.
+ * <P>
+ * The n-mers of window sizes k, k-1 and k-2 are taken as columns of sorted
+ * keys with their counts. Packed keys of the same length sort in the same order
+ * as their strings, so walking the k-mers in order:
+ * <UL>
+ * <LI>the prefixes (<code>key &gt;&gt;&gt; 2</code>) never go backwards, and</LI>
+ * <LI>the suffixes and infixes only go backwards when the first base changes
+ * (at most four runs),</LI>
+ * </UL>
+ * and each is found with a cursor that moves forward through the shorter
+ * column (falling back to a binary search when it has to go back). The
+ * pi-values are written into a <code>double[]</code> in the same order as the
+ * keys; nothing is allocated per n-mer. Fallback (negative) keys go through
+ * the codec and a binary search.
+ *
+ * @see org.mitre.ccv.AbstractCompositionVector#calculatePiValue
+ * @author Marc Colosimo
+ */
+public class PiValueKernel {
+
+    /**
+     * The sorted n-mer keys of a sequence for one window size and their counts.
+     */
+    public static class Column {
+
+        final long[] keys;
+        final int[] counts;
+
+        public Column(long[] keys, int[] counts) {
+            if (keys.length != counts.length) {
+                throw new IllegalArgumentException("Keys and counts differ in length");
+            }
+            this.keys = keys;
+            this.counts = counts;
+        }
+
+        /**
+         * Reads the column for the sequence and window size from the index.
+         */
+        public static Column read(DistributionIndex index, int seqId, int windowSize) {
+            long[] keys = index.getSortedSequenceKeys(seqId, windowSize);
+            return new Column(keys, index.getCounts(seqId, keys));
+        }
+
+        public long[] getKeys() {
+            return this.keys;
+        }
+
+        public int[] getCounts() {
+            return this.counts;
+        }
+
+        /**
+         * Returns the count for a key anywhere in the column (zero if missing).
+         */
+        int count(long key) {
+            int i = Arrays.binarySearch(this.keys, key);
+            return (i < 0) ? 0 : this.counts[i];
+        }
+    }
+
+    /**
+     * A position in a column that moves forward with the keys looked up.
+     */
+    private static class Cursor {
+
+        private final Column column;
+        private int pos;
+
+        Cursor(Column column, int pos) {
+            this.column = column;
+            this.pos = pos;
+        }
+
+        /**
+         * Returns the count for the key (zero if missing).
+         *
+         * @param from where the packed keys start in the column.
+         */
+        int count(long key, int from) {
+            final long[] keys = this.column.keys;
+            if (this.pos > from && keys[this.pos - 1] >= key) {
+                /** gone backwards, start again from where the key would be */
+                int i = Arrays.binarySearch(keys, from, this.pos, key);
+                this.pos = (i < 0) ? -i - 1 : i;
+            } else {
+                while (this.pos < keys.length && keys[this.pos] < key) {
+                    this.pos++;
+                }
+            }
+            if (this.pos < keys.length && keys[this.pos] == key) {
+                return this.column.counts[this.pos];
+            }
+            return 0;
+        }
+    }
+
+    private PiValueKernel() {
+    }
+
+    /**
+     * Calculates the pi-values for the n-mers of window size k.
+     *
+     * @param codec the codec the keys were made with.
+     * @param m0 the n-mers of window size k.
+     * @param m1 the n-mers of window size k - 1.
+     * @param m2 the n-mers of window size k - 2.
+     * @param totalSubStr the total number of n-mers of window size k.
+     * @return the pi-values in the same order as the keys of <code>m0</code>.
+     */
+    public static double[] calculate(KmerCodec codec, Column m0, Column m1, Column m2,
+            int totalSubStr) {
+        final long[] keys = m0.keys;
+        final int[] counts = m0.counts;
+        final double[] piValues = new double[keys.length];
+
+        /** Fallback keys are negative and sort first */
+        final int from0 = firstPacked(m0.keys);
+        final int from1 = firstPacked(m1.keys);
+        final int from2 = firstPacked(m2.keys);
+        for (int i = 0; i < from0; i++) {
+            long key = keys[i];
+            piValues[i] = piValue(counts[i],
+                    m1.count(codec.prefix(key)),
+                    m1.count(codec.suffix(key)),
+                    m2.count(codec.infix(key)),
+                    totalSubStr);
+        }
+
+        final Cursor prefixes = new Cursor(m1, from1);
+        final Cursor suffixes = new Cursor(m1, from1);
+        final Cursor infixes = new Cursor(m2, from2);
+        for (int i = from0; i < keys.length; i++) {
+            final long key = keys[i];
+            final long prefix = key >>> 2;
+            final long sentinel = Long.highestOneBit(key) >>> 2;
+            final long suffix = (key & (sentinel - 1)) | sentinel;
+            final long infix = (prefix & ((sentinel >>> 2) - 1)) | (sentinel >>> 2);
+            piValues[i] = piValue(counts[i],
+                    prefixes.count(prefix, from1),
+                    suffixes.count(suffix, from1),
+                    infixes.count(infix, from2),
+                    totalSubStr);
+        }
+        return piValues;
+    }
+
+    /**
+     * Calculates and stores the pi-values of a sequence for the window sizes
+     * from start to stop, reading each window size's column from the index
+     * once.
+     */
+    public static void store(IndexedCompositionDistribution cd, int start, int stop) {
+        final DistributionIndex index = cd.getDistributionIndex();
+        final int seqId = cd.getSeqId();
+        Column m2 = Column.read(index, seqId, start - 2);
+        Column m1 = Column.read(index, seqId, start - 1);
+        for (int ws = start; ws <= stop; ws++) {
+            Column m0 = Column.read(index, seqId, ws);
+            index.setPiValues(seqId, m0.keys, calculate(index.getCodec(), m0, m1, m2,
+                    cd.getTotalSubStrings(ws)));
+            m2 = m1;
+            m1 = m0;
+        }
+    }
+
+    /**
+     * Calculates the pi-values of a sequence for one window size without
+     * storing them in the index.
+     */
+    static PiValueCache.Window window(IndexedCompositionDistribution cd, int windowSize) {
+        final DistributionIndex index = cd.getDistributionIndex();
+        final int seqId = cd.getSeqId();
+        Column m0 = Column.read(index, seqId, windowSize);
+        double[] piValues = calculate(index.getCodec(), m0,
+                Column.read(index, seqId, windowSize - 1),
+                Column.read(index, seqId, windowSize - 2),
+                cd.getTotalSubStrings(windowSize));
+        return new PiValueCache.Window(m0.keys, piValues);
+    }
+
+    /**
+     * Calculates the pi-value of a single n-mer from the counts in the index.
+     *
+     * @return the pi-value or <code>null</code> if the n-mer was not counted.
+     */
+    static Double piValue(DistributionIndex index, int seqId, long key, int totalSubStr) {
+        int cnt = index.getCount(seqId, key);
+        if (cnt == 0) {
+            return null;
+        }
+        KmerCodec codec = index.getCodec();
+        return piValue(cnt,
+                index.getCount(seqId, codec.prefix(key)),
+                index.getCount(seqId, codec.suffix(key)),
+                index.getCount(seqId, codec.infix(key)),
+                totalSubStr);
+    }
+
+    /**
+     * The pi-value, calculated exactly as
+     * {@link org.mitre.ccv.AbstractCompositionVector#calculatePiValue} does
+     * but without boxing.
+     */
+    static double piValue(int cnt, int cnt1, int cnt2, int cnt3, int totalSubStr) {
+        double p = ((double) cnt) / totalSubStr;
+        double p1 = ((double) cnt1) / (totalSubStr + 1);
+        double p2 = ((double) cnt2) / (totalSubStr + 1);
+        double p3 = ((double) cnt3) / (totalSubStr + 2);
+
+        double pe = (p1 * p2) / p3;
+        return (p - pe) / pe;
+    }
+
+    /**
+     * Returns the index of the first packed (positive) key.
+     */
+    private static int firstPacked(long[] keys) {
+        int i = Arrays.binarySearch(keys, 0L);
+        return (i < 0) ? -i - 1 : i + 1;
+    }
+}
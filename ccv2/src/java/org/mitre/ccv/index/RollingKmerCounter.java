@@ -0,0 +1,161 @@
+/**
+ * RollingKmerCounter.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import org.mitre.bio.PackedSequence;
+
+/**
+ * Generates the n-mer keys for a range of window sizes in a single pass over
+ * a sequence.
+ * <P>
+ * A 2-bit packed window of the last {@link KmerCodec#MAX_PACKED_LENGTH} bases
+ * is rolled along the sequence and at each position the keys for every window
+ * size ending there are cut out of it with a mask. Only windows covering a base
+ * that cannot be packed (or longer than {@link KmerCodec#MAX_PACKED_LENGTH})
+ * go through the codec's fallback dictionary.
+ * <P>
+ * For a {@link PackedSequence} the bases are shifted straight out of its
+ * packed words and only its (non-ACGT) runs are looked at as characters.
+ *
+ * @author Marc Colosimo
+ */
+public class RollingKmerCounter {
+
+    /**
+     * Receives the n-mer keys generated by a {@link RollingKmerCounter}.
+     */
+    public interface KmerSink {
+
+        /**
+         * Called once for every occurrence of an n-mer.
+         *
+         * @param windowSize the length of the n-mer
+         * @param key the n-mer key (see {@link KmerCodec})
+         */
+        public void add(int windowSize, long key);
+    }
+
+    private final KmerCodec codec;
+    private final int begin;
+    private final int end;
+
+    /** Masks and sentinels for the packable window sizes */
+    private final long[] masks;
+    private final long[] sentinels;
+
+    /**
+     * Construct a new <tt>RollingKmerCounter</tt> object.
+     *
+     * @param codec the codec to use for n-mers that cannot be packed
+     * @param begin the smallest window size (inclusive)
+     * @param end the largest window size (inclusive)
+     */
+    public RollingKmerCounter(KmerCodec codec, int begin, int end) {
+        if (begin < 1 || end < begin) {
+            throw new IllegalArgumentException("Invalid window sizes " + begin + " to " + end);
+        }
+        this.codec = codec;
+        this.begin = begin;
+        this.end = end;
+        int packedEnd = Math.min(end, KmerCodec.MAX_PACKED_LENGTH);
+        this.masks = new long[packedEnd + 1];
+        this.sentinels = new long[packedEnd + 1];
+        for (int ws = begin; ws <= packedEnd; ws++) {
+            this.sentinels[ws] = KmerCodec.sentinel(ws);
+            this.masks[ws] = this.sentinels[ws] - 1;
+        }
+    }
+
+    public int getBegin() {
+        return this.begin;
+    }
+
+    public int getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Generates all of the n-mers from <code>begin</code> to <code>end</code>
+     * of the sequence.
+     *
+     * @param seq the sequence
+     * @param sink where to send the n-mer keys
+     */
+    public void count(CharSequence seq, KmerSink sink) {
+        if (seq instanceof PackedSequence) {
+            this.count((PackedSequence) seq, sink);
+            return;
+        }
+        final int length = seq.length();
+        long bases = 0;
+        int packed = 0;     // number of packable bases ending at i
+        for (int i = 0; i < length; i++) {
+            int code = KmerCodec.baseCode(seq.charAt(i));
+            if (code < 0) {
+                packed = 0;
+            } else {
+                bases = (bases << 2) | code;
+                packed++;
+            }
+            this.emit(seq, i, bases, packed, sink);
+        }
+    }
+
+    /**
+     * Generates all of the n-mers of a packed sequence, reading the bases
+     * from its packed words.
+     *
+     * @param seq the sequence
+     * @param sink where to send the n-mer keys
+     */
+    public void count(PackedSequence seq, KmerSink sink) {
+        final int length = seq.length();
+        final int runs = seq.getRunCount();
+        int run = 0;
+        int runStart = (runs > 0) ? seq.getRunStart(0) : length;
+        int runEnd = (runs > 0) ? seq.getRunEnd(0) : length;
+        long word = 0;
+        long bases = 0;
+        int packed = 0;     // number of packable bases ending at i
+        for (int i = 0; i < length; i++) {
+            if ((i & 31) == 0) {
+                word = seq.getWord(i >>> 5);
+            }
+            int code = (int) (word >>> 62);
+            word <<= 2;
+            if (i >= runStart) {
+                packed = 0;
+                if (i + 1 == runEnd) {
+                    run++;
+                    runStart = (run < runs) ? seq.getRunStart(run) : length;
+                    runEnd = (run < runs) ? seq.getRunEnd(run) : length;
+                }
+            } else {
+                bases = (bases << 2) | code;
+                packed++;
+            }
+            this.emit(seq, i, bases, packed, sink);
+        }
+    }
+
+    /**
+     * Sends the keys for every window size ending at position i.
+     *
+     * @param bases the packed bases ending at i
+     * @param packed the number of packable bases ending at i
+     */
+    private void emit(CharSequence seq, int i, long bases, int packed, KmerSink sink) {
+        final int packedEnd = this.masks.length - 1;
+        final int last = Math.min(this.end, i + 1);
+        for (int ws = this.begin; ws <= last; ws++) {
+            if (ws <= packedEnd && packed >= ws) {
+                sink.add(ws, (bases & this.masks[ws]) | this.sentinels[ws]);
+            } else {
+                sink.add(ws, this.codec.encode(seq, i - ws + 1, ws));
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * SparseCompositionVector.java
+ *
+ * $Id$
+ */
+package org.mitre.ccv.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * An immutable complete composition vector of one sequence held as a sorted
+ * array of n-mer keys (see {@link KmerCodec}) and a parallel array of their
+ * pi-values.
+ * <P>
+ * The keys are the n-mers the sequence has over all of its window sizes, so
+ * the key array is the n-mer set. Projecting onto a sorted list of keys and
+ * comparing two vectors are linear merges; looking up a single n-mer is a
+ * binary search.
+ *
+ * @author Marc Colosimo
+ */
+public final class SparseCompositionVector {
+
+    private final KmerCodec codec;
+    private final long[] keys;
+    private final double[] values;
+
+    /**
+     * Construct a vector from sorted keys and their values (the arrays are
+     * kept, not copied).
+     */
+    SparseCompositionVector(KmerCodec codec, long[] keys, double[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Keys and values differ in length");
+        }
+        this.codec = codec;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Builds the vector from a sequence's windows in the index (the values
+     * come from the vector, so lazy vectors calculate their pi-values).
+     */
+    static SparseCompositionVector create(IndexedCompleteCompositionVector ccv,
+            DistributionIndex index) {
+        final int seqId = ccv.getSequenceId();
+        final int windows = ccv.getStop() - ccv.getStart() + 1;
+        long[][] windowKeys = new long[windows][];
+        int size = 0;
+        for (int w = 0; w < windows; w++) {
+            windowKeys[w] = index.getSortedSequenceKeys(seqId, ccv.getStart() + w);
+            size += windowKeys[w].length;
+        }
+        long[] keys = new long[size];
+        double[] values = new double[size];
+        int n = 0;
+        boolean sorted = true;
+        for (int w = 0; w < windows; w++) {
+            long[] wk = windowKeys[w];
+            if (wk.length == 0) {
+                continue;
+            }
+            if (n > 0 && keys[n - 1] >= wk[0]) {
+                sorted = false;
+            }
+            System.arraycopy(wk, 0, keys, n, wk.length);
+            System.arraycopy(ccv.getPiValues(ccv.getStart() + w, wk), 0, values, n, wk.length);
+            n += wk.length;
+        }
+        if (!sorted) {
+            /** Fallback keys of each window sort before the packed ones */
+            sortByKey(keys, values);
+        }
+        return new SparseCompositionVector(index.getCodec(), keys, values);
+    }
+
+    /**
+     * Returns the number of n-mers.
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    public long getKey(int i) {
+        return this.keys[i];
+    }
+
+    public double getValue(int i) {
+        return this.values[i];
+    }
+
+    /**
+     * Returns a copy of the sorted keys.
+     */
+    public long[] getKeys() {
+        return this.keys.clone();
+    }
+
+    /**
+     * Returns the index of the key or a negative number if it is missing.
+     */
+    public int indexOf(long key) {
+        return Arrays.binarySearch(this.keys, key);
+    }
+
+    /**
+     * Returns the index of the n-mer or a negative number if it is missing.
+     */
+    public int indexOf(String nmer) {
+        long key = this.codec.lookup(nmer);
+        return (key == KmerCodec.NO_KEY) ? -1 : this.indexOf(key);
+    }
+
+    /**
+     * Returns the pi-value for the n-mer or <code>null</code> if it is missing.
+     */
+    public Double getPiValue(String nmer) {
+        int i = this.indexOf(nmer);
+        return (i < 0) ? null : this.values[i];
+    }
+
+    /**
+     * Returns the n-mers as strings.
+     */
+    public TreeSet<String> getNmers() {
+        TreeSet<String> nmers = new TreeSet<String>();
+        for (int i = 0; i < this.keys.length; i++) {
+            nmers.add(this.codec.decode(this.keys[i]));
+        }
+        return nmers;
+    }
+
+    /**
+     * Returns the values for the given sorted keys (0.0 where missing).
+     */
+    public double[] project(long[] sortedKeys) {
+        double[] projected = new double[sortedKeys.length];
+        int i = 0;
+        for (int j = 0; j < sortedKeys.length && i < this.keys.length; j++) {
+            while (i < this.keys.length && this.keys[i] < sortedKeys[j]) {
+                i++;
+            }
+            if (i < this.keys.length && this.keys[i] == sortedKeys[j]) {
+                projected[j] = this.values[i];
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Returns the vector with only the n-mers that are in the given sorted
+     * keys.
+     */
+    public SparseCompositionVector retain(long[] sortedKeys) {
+        long[] k = new long[Math.min(this.keys.length, sortedKeys.length)];
+        double[] v = new double[k.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length && j < sortedKeys.length) {
+            if (this.keys[i] < sortedKeys[j]) {
+                i++;
+            } else if (this.keys[i] > sortedKeys[j]) {
+                j++;
+            } else {
+                k[n] = this.keys[i];
+                v[n++] = this.values[i++];
+                j++;
+            }
+        }
+        return new SparseCompositionVector(this.codec, Arrays.copyOf(k, n), Arrays.copyOf(v, n));
+    }
+
+    /**
+     * Returns the number of n-mers this vector shares with the other.
+     */
+    public int intersectionSize(SparseCompositionVector other) {
+        final long[] a = this.keys;
+        final long[] b = other.keys;
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the keys of the n-mers, sorted and without duplicates or unknown
+     * n-mers.
+     */
+    public static long[] sortedKeys(KmerCodec codec, Iterable<String> nmers) {
+        long[] keys = new long[16];
+        int n = 0;
+        for (String nmer : nmers) {
+            long key = codec.lookup(nmer);
+            if (key == KmerCodec.NO_KEY) {
+                continue;
+            }
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, n * 2);
+            }
+            keys[n++] = key;
+        }
+        Arrays.sort(keys, 0, n);
+        int u = 0;
+        for (int i = 0; i < n; i++) {
+            if (u == 0 || keys[u - 1] != keys[i]) {
+                keys[u++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, u);
+    }
+
+    /**
+     * Sorts the keys, keeping the values with them.
+     */
+    private static void sortByKey(long[] keys, double[] values) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] k = keys.clone();
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return (k[a] < k[b]) ? -1 : ((k[a] == k[b]) ? 0 : 1);
+            }
+        });
+        final double[] v = values.clone();
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = k[order[i]];
+            values[i] = v[order[i]];
+        }
+    }
+}
@@ -32,6 +32,8 @@ import java.util.zip.GZIPOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mitre.ccv.CompleteCompositionVector;
+import org.mitre.ccv.index.IndexedCompleteCompositionVector;
+import org.mitre.ccv.index.SparseCompositionVector;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
@@ -276,14 +278,32 @@ public abstract class AbstractWekaCompleteCompositionVector {
         double[] m_ValueBuffer = new double[m_Data.numAttributes()];
         int[] m_IndicesBuffer = new int[m_Data.numAttributes()];
         int valIndex, numValues = 0, maxIndex = -1;
-        TreeSet<String> nmerSet = ccv.getNmerSet();
+        /** Indexed vectors are looked up in their sorted arrays */
+        SparseCompositionVector sparse = null;
+        TreeSet<String> nmerSet = null;
+        if (ccv instanceof IndexedCompleteCompositionVector) {
+            sparse = ((IndexedCompleteCompositionVector) ccv).getSparseVector();
+        } else {
+            nmerSet = ccv.getNmerSet();
+        }
         
+        int ikey = -1;
         for( String key : nmers ) {
-            if ( !nmerSet.contains(key) ) {
-                continue;
+            ikey++;
+            Double value;
+            if (sparse != null) {
+                int i = sparse.indexOf(key);
+                if (i < 0) {
+                    continue;
+                }
+                value = sparse.getValue(i);
+            } else {
+                if ( !nmerSet.contains(key) ) {
+                    continue;
+                }
+                value = ccv.getPiValueforNmer(key);
             }
             
-            Integer ikey = nmers.indexOf(key);
             m_IndicesBuffer[numValues] = ikey;
             
             if (m_IndicesBuffer[numValues] <= maxIndex) {
@@ -298,9 +318,6 @@ public abstract class AbstractWekaCompleteCompositionVector {
             }
             maxIndex = m_IndicesBuffer[numValues];
 
-            /** Now get the value. */
-            Double value = ccv.getPiValueforNmer(key);
-
             /** We don't check the type since we expect only one type - NUMERIC */
             m_ValueBuffer[numValues] = value;
 
@@ -311,7 +328,8 @@ public abstract class AbstractWekaCompleteCompositionVector {
         //        "getInstanceSparse: found %d nmers/features!\n", numValues);
         if (LOG.isDebugEnabled()) {
             LOG.debug(String.format("CompleteCompositionVector '%s' has %d features that matched %d attributes out of %d",
-                    ccv.getName(), nmerSet.size(), numValues, nmers.size()));
+                    ccv.getName(), (sparse != null) ? sparse.size() : nmerSet.size(),
+                    numValues, nmers.size()));
         }
         
         /** some magic copying to create this instance. */
@@ -0,0 +1,380 @@
+/**
+ * $Id$
+ *
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ */
+package org.mitre.clustering;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.core.matrix.Matrix;
+
+/**
+ * Affinity propagation (see {@link AffinityPropagation}) over a full
+ * similarity matrix, with the similarities, responsibilities and
+ * availabilities each kept in one row-major <code>double[]</code> and
+ * updated in place, so an iteration makes no copies of them.
+ * <P>
+ * The responsibilities are updated a row at a time and the availabilities
+ * a block of columns at a time (reading the rows of the block), in
+ * parallel on a fork-join pool. Each column is summed in row order, so the
+ * clusters do not depend on the number of threads.
+ * <P>
+ * The updates, damping and convergence test are the same as the original
+ * version: the exemplars have to stay the same for <code>convits</code>
+ * iterations, which are kept as a ring of bit sets.
+ *
+ * @author Marc Colosimo
+ */
+public class ParallelAffinityPropagation {
+
+    /** Seed of the noise added to the similarities to break ties */
+    private static final long NOISE_SEED = 0L;
+    /** Scale of the noise, as in {@link AffinityPropagation} */
+    private static final double NOISE_SCALE = .0000001;
+
+    /** Rows (or columns) below which a pass is not split any further */
+    private static final int MIN_ROWS = 16;
+
+    public final int count;
+
+    public int maxits;
+    public int convits;
+    public double lam;
+
+    public Boolean unconverged = true;
+
+    public double K;
+
+    /** Number of iterations run */
+    public int iterations = 0;
+
+    private final int threads;
+    private final double[] s;
+    private final double[] a;
+    private final double[] r;
+
+    public Vector<Integer> exemplars = null;
+
+    /**
+     * Constructor
+     * @param sims, the similarity matrix
+     * @param p, the preference of every point
+     */
+    public ParallelAffinityPropagation(Matrix sims, double p) {
+        this(sims, 5000, 200, 0.90, p);
+    }
+
+    public ParallelAffinityPropagation(Matrix sims, int max, int cons,
+            double lambda, double p) {
+        this(toRowMajor(sims), sims.getColumnDimension(), max, cons, lambda, p, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param sims the row-major similarity matrix, which is used (and
+     *        changed) in place
+     * @param count the number of points
+     * @param threads the number of threads to run the passes with
+     */
+    public ParallelAffinityPropagation(double[] sims, int count, int max, int cons,
+            double lambda, double p, int threads) {
+        if ((long) count * count != sims.length) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected %d similarities for %d points, found %d",
+                    (long) count * count, count, sims.length));
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.count = count;
+        this.maxits = max;
+        this.convits = cons;
+        this.lam = lambda;
+        this.threads = threads;
+        this.s = sims;
+        this.a = new double[sims.length];
+        this.r = new double[sims.length];
+
+        /*
+         * Add noise to get rid of degeneracies, as the original version does:
+         * there the noise is the similarities times Double.MIN_VALUE plus
+         * 1e-7, times a uniform random matrix. The first term vanishes next
+         * to 1e-7, so every entry of column j gets the same offset, 1e-7
+         * times the sum of column j of the random matrix. The random matrix
+         * is drawn a row at a time from a seeded generator and only the
+         * column sums (added in the same order) are kept.
+         */
+        final double[] noise = new double[count];
+        Random random = new Random(NOISE_SEED);
+        for (int k = 0; k < count; k++) {
+            for (int j = 0; j < count; j++) {
+                noise[j] += NOISE_SCALE * random.nextDouble();
+            }
+        }
+
+        /*
+         * Put preferences on diagonal of S
+         */
+        for (int i = 0; i < count; i++) {
+            final int row = i * count;
+            for (int k = 0; k < count; k++) {
+                this.s[row + k] += noise[k];
+            }
+            this.s[row + i] = p;
+        }
+
+        this.run();
+    }
+
+    /**
+     * Returns the entries of the matrix in row-major order.
+     */
+    private static double[] toRowMajor(Matrix m) {
+        final int rows = m.getRowDimension();
+        final int columns = m.getColumnDimension();
+        if ((long) rows * columns > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many points for a full similarity matrix");
+        }
+        double[] values = new double[rows * columns];
+        for (int i = 0; i < rows; i++) {
+            for (int k = 0; k < columns; k++) {
+                values[i * columns + k] = m.get(i, k);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Updates the responsibilities of the rows.
+     */
+    private class RowPass extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        RowPass(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > MIN_ROWS) {
+                final int mid = (this.from + this.to) >>> 1;
+                invokeAll(new RowPass(this.from, mid), new RowPass(mid, this.to));
+                return;
+            }
+            for (int i = this.from; i < this.to; i++) {
+                updateResponsibilities(i);
+            }
+        }
+    }
+
+    /**
+     * Updates the availabilities of the columns.
+     */
+    private class ColumnPass extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        ColumnPass(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > MIN_ROWS) {
+                final int mid = (this.from + this.to) >>> 1;
+                invokeAll(new ColumnPass(this.from, mid), new ColumnPass(mid, this.to));
+                return;
+            }
+            updateAvailabilities(this.from, this.to);
+        }
+    }
+
+    /**
+     * Sets the responsibilities of point i for each candidate exemplar k:
+     * s(i,k) less the largest a(i,k') + s(i,k') of the other candidates.
+     */
+    private void updateResponsibilities(int i) {
+        final int n = this.count;
+        final int row = i * n;
+        double max1 = -Double.MAX_VALUE;
+        double max2 = -Double.MAX_VALUE;
+        int arg = -1;
+        for (int k = 0; k < n; k++) {
+            double as = this.a[row + k] + this.s[row + k];
+            if (as > max1) {
+                max2 = max1;
+                max1 = as;
+                arg = k;
+            } else if (as > max2) {
+                max2 = as;
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            double value = this.s[row + k] - ((k == arg) ? max2 : max1);
+            this.r[row + k] = (1 - this.lam) * value + this.lam * this.r[row + k];
+        }
+    }
+
+    /**
+     * Sets the availabilities of the candidate exemplars k0 to k1 for each
+     * point, reading the rows of the block of columns twice: once to sum
+     * the positive responsibilities of each column and once to update it.
+     */
+    private void updateAvailabilities(int k0, int k1) {
+        final int n = this.count;
+        final int width = k1 - k0;
+        final double[] sums = new double[width];
+        for (int i = 0; i < n; i++) {
+            final int row = i * n;
+            for (int k = k0; k < k1; k++) {
+                double rik = this.r[row + k];
+                sums[k - k0] += (i == k) ? rik : Math.max(0.0, rik);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            final int row = i * n;
+            for (int k = k0; k < k1; k++) {
+                double rik = this.r[row + k];
+                double value;
+                if (i == k) {
+                    value = sums[k - k0] - rik;
+                } else {
+                    value = Math.min(0.0, sums[k - k0] - Math.max(0.0, rik));
+                }
+                this.a[row + k] = (1 - this.lam) * value + this.lam * this.a[row + k];
+            }
+        }
+    }
+
+    public void run() {
+        final int n = this.count;
+        final int words = (n + 63) >>> 6;
+        /** The exemplars of the last convits iterations, and how often each was one */
+        final long[][] ring = new long[this.convits][words];
+        final int[] counts = new int[n];
+        ForkJoinPool pool = (this.threads > 1) ? new ForkJoinPool(this.threads) : null;
+        try {
+            boolean dn = false;
+            int i = -1; // adjusted due to difference in MATLAB indexing
+            while (!dn) {
+                i = i + 1;
+                this.iterations++;
+
+                /*
+                 * Compute responsibilities, then availabilities
+                 */
+                if (pool != null) {
+                    pool.invoke(new RowPass(0, n));
+                    pool.invoke(new ColumnPass(0, n));
+                } else {
+                    for (int ii = 0; ii < n; ii++) {
+                        this.updateResponsibilities(ii);
+                    }
+                    for (int k0 = 0; k0 < n; k0 += MIN_ROWS) {
+                        this.updateAvailabilities(k0, Math.min(n, k0 + MIN_ROWS));
+                    }
+                }
+
+                /*
+                 * Check for convergence
+                 */
+                final long[] e = ring[i % this.convits];
+                int exemplarCount = 0;
+                for (int c = 0; c < n; c++) {
+                    final long bit = 1L << (c & 63);
+                    final boolean was = (e[c >>> 6] & bit) != 0;
+                    final boolean is = this.a[c * n + c] + this.r[c * n + c] > 0;
+                    if (was != is) {
+                        e[c >>> 6] ^= bit;
+                        counts[c] += is ? 1 : -1;
+                    }
+                    if (is) {
+                        exemplarCount++;
+                    }
+                }
+                this.K = exemplarCount;
+
+                if (i >= this.convits || i >= this.maxits) {
+                    this.unconverged = false;
+                    for (int c = 0; c < n; c++) {
+                        if (counts[c] != 0 && counts[c] != this.convits) {
+                            this.unconverged = true;
+                            break;
+                        }
+                    }
+                    if ((!this.unconverged && this.K > 0) || i == this.maxits) {
+                        dn = true;
+                    }
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        /*
+         * Identify exemplars
+         */
+        this.exemplars = new Vector<Integer>();
+        for (int c = 0; c < n; c++) {
+            if (this.a[c * n + c] + this.r[c * n + c] > 0) {
+                this.exemplars.add(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the cluster of each point: the index of the exemplar (in
+     * {@link #exemplars}) it is most similar to.
+     */
+    public int[] getClusters() {
+        final int n = this.count;
+        int[] clusters = new int[n];
+        final int excount = this.exemplars.size();
+        for (int c = 0; c < n; c++) {
+            double best = -Double.MAX_VALUE;
+            for (int c2 = 0; c2 < excount; c2++) {
+                double value = this.s[c * n + this.exemplars.get(c2)];
+                if (value > best) {
+                    best = value;
+                    clusters[c] = c2;
+                }
+            }
+        }
+
+        /*
+         * Refine clusters
+         */
+        for (int c = 0; c < excount; c++) {
+            clusters[this.exemplars.get(c)] = c;
+        }
+        return clusters;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * $Id$
+ *
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ */
+package org.mitre.clustering;
+
+import java.util.Arrays;
+
+import org.mitre.clustering.canopy.CanopyDistanceMetric;
+
+/**
+ * A sparse, symmetric graph of the similarities (between 0 and 1) of the
+ * pairs of points that are close to each other, for clustering points when
+ * the full similarity matrix is too large.
+ * <P>
+ * The edges of each point are kept sorted by neighbor in one flat array
+ * (compressed sparse rows). As a {@link CanopyDistanceMetric} the distance
+ * of an edge is one minus its similarity, and points without an edge are
+ * the farthest apart (a distance of one).
+ *
+ * @see SparseAffinityPropagation
+ * @author Marc Colosimo
+ */
+public class SimilarityGraph implements CanopyDistanceMetric<Integer> {
+
+    private final int size;
+    /** Start of the edges of each point (and the end of the last) */
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final double[] similarities;
+
+    /**
+     * Construct a graph from a list of undirected edges: point
+     * <code>from[e]</code> and <code>to[e]</code> have the similarity
+     * <code>similarity[e]</code>. Each pair of points should only be given
+     * once and points are not their own neighbors.
+     *
+     * @param size the number of points
+     */
+    public SimilarityGraph(int size, int[] from, int[] to, double[] similarity) {
+        if (from.length != to.length || from.length != similarity.length) {
+            throw new IllegalArgumentException("Edge arrays differ in length");
+        }
+        this.size = size;
+        this.offsets = new int[size + 1];
+        for (int e = 0; e < from.length; e++) {
+            if (from[e] == to[e]) {
+                throw new IllegalArgumentException("Point " + from[e] + " has an edge to itself");
+            }
+            this.offsets[from[e] + 1]++;
+            this.offsets[to[e] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            this.offsets[i + 1] += this.offsets[i];
+        }
+        this.neighbors = new int[2 * from.length];
+        this.similarities = new double[2 * from.length];
+        int[] next = Arrays.copyOf(this.offsets, size);
+        for (int e = 0; e < from.length; e++) {
+            this.neighbors[next[from[e]]] = to[e];
+            this.similarities[next[from[e]]++] = similarity[e];
+            this.neighbors[next[to[e]]] = from[e];
+            this.similarities[next[to[e]]++] = similarity[e];
+        }
+        for (int i = 0; i < size; i++) {
+            this.sortEdges(this.offsets[i], this.offsets[i + 1]);
+        }
+    }
+
+    /**
+     * Returns the number of points.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of (undirected) edges.
+     */
+    public int getEdgeCount() {
+        return this.neighbors.length / 2;
+    }
+
+    public int getDegree(int point) {
+        return this.offsets[point + 1] - this.offsets[point];
+    }
+
+    /**
+     * Returns the neighbor of the point's k-th edge (by neighbor).
+     */
+    public int getNeighbor(int point, int k) {
+        return this.neighbors[this.offsets[point] + k];
+    }
+
+    /**
+     * Returns the similarity of the point's k-th edge.
+     */
+    public double getSimilarity(int point, int k) {
+        return this.similarities[this.offsets[point] + k];
+    }
+
+    /**
+     * Returns the index (k) of the edge between the points or a negative
+     * number if there is not one.
+     */
+    public int indexOf(int point, int neighbor) {
+        int k = Arrays.binarySearch(this.neighbors, this.offsets[point],
+                this.offsets[point + 1], neighbor);
+        return (k < 0) ? -1 : k - this.offsets[point];
+    }
+
+    /**
+     * Returns the similarities of all of the edges, once for each direction.
+     */
+    public double[] getSimilarities() {
+        return this.similarities.clone();
+    }
+
+    /**
+     * Returns one minus the similarity of the points, or one if they do not
+     * have an edge.
+     */
+    public double distance(Integer p1, Integer p2) {
+        if (p1.intValue() == p2.intValue()) {
+            return 0.0;
+        }
+        int k = this.indexOf(p1, p2);
+        return (k < 0) ? 1.0 : 1.0 - this.getSimilarity(p1, k);
+    }
+
+    /**
+     * Sorts the edges by neighbor, keeping their similarities with them.
+     */
+    private void sortEdges(int from, int to) {
+        final int n = to - from;
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) this.neighbors[from + i] << 32) | i;
+        }
+        Arrays.sort(order);
+        double[] s = Arrays.copyOfRange(this.similarities, from, to);
+        for (int i = 0; i < n; i++) {
+            this.neighbors[from + i] = (int) (order[i] >>> 32);
+            this.similarities[from + i] = s[(int) order[i]];
+        }
+    }
+}
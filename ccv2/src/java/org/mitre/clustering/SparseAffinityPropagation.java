@@ -0,0 +1,248 @@
+/**
+ * $Id$
+ *
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ */
+package org.mitre.clustering;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Affinity propagation (see {@link AffinityPropagation}) over a sparse
+ * {@link SimilarityGraph}: messages are only passed along the edges of the
+ * graph (and from each point to itself), so the memory and time of an
+ * iteration grow with the number of edges instead of the square of the
+ * number of points. Points without an edge to each other are taken to be
+ * too far apart to choose each other as exemplars.
+ * <P>
+ * The updates, damping and convergence test are the same as the dense
+ * version: the exemplars have to stay the same for <code>convits</code>
+ * iterations.
+ *
+ * @author Marc Colosimo
+ */
+public class SparseAffinityPropagation {
+
+    /** Seed of the noise added to the similarities to break ties */
+    private static final long NOISE_SEED = 0L;
+
+    private final SimilarityGraph graph;
+    public final int count;
+
+    public int maxits;
+    public int convits;
+    public double lam;
+
+    public Boolean unconverged = true;
+
+    /** Number of iterations run */
+    public int iterations = 0;
+
+    /** Start of the messages of each point (its edges and then itself) */
+    private final int[] offsets;
+    /** Point each message goes to */
+    private final int[] targets;
+    /** Index of the message going the other way */
+    private final int[] reverse;
+    private final double[] s;
+    private final double[] a;
+    private final double[] r;
+
+    public Vector<Integer> exemplars = null;
+
+    /**
+     * Constructor
+     * @param graph, the similarities
+     * @param p, the preference of every point
+     */
+    public SparseAffinityPropagation(SimilarityGraph graph, double p) {
+        this(graph, 5000, 200, 0.90, p);
+    }
+
+    public SparseAffinityPropagation(SimilarityGraph graph, int max, int cons,
+            double lambda, double p) {
+        this.graph = graph;
+        this.maxits = max;
+        this.convits = cons;
+        this.lam = lambda;
+        this.count = graph.getSize();
+
+        final int messages = 2 * graph.getEdgeCount() + this.count;
+        this.offsets = new int[this.count + 1];
+        this.targets = new int[messages];
+        this.reverse = new int[messages];
+        this.s = new double[messages];
+        this.a = new double[messages];
+        this.r = new double[messages];
+
+        /*
+         * Add noise to get rid of degeneracies and put the preference on
+         * the message from each point to itself (the last of its messages)
+         */
+        Random random = new Random(NOISE_SEED);
+        int m = 0;
+        for (int i = 0; i < this.count; i++) {
+            this.offsets[i] = m;
+            for (int k = 0; k < graph.getDegree(i); k++) {
+                double sim = graph.getSimilarity(i, k);
+                this.targets[m] = graph.getNeighbor(i, k);
+                this.s[m++] = sim + (1e-16 * Math.abs(sim) + 1e-300) * random.nextDouble();
+            }
+            this.targets[m] = i;
+            this.reverse[m] = m;
+            this.s[m++] = p;
+        }
+        this.offsets[this.count] = m;
+        for (int i = 0; i < this.count; i++) {
+            for (int k = 0; k < graph.getDegree(i); k++) {
+                int j = graph.getNeighbor(i, k);
+                this.reverse[this.offsets[i] + k] = this.offsets[j] + graph.indexOf(j, i);
+            }
+        }
+
+        this.run();
+    }
+
+    public void run() {
+        final int n = this.count;
+        boolean[] exemplar = new boolean[n];
+        int stable = 0;
+        boolean dn = false;
+        while (!dn) {
+            this.iterations++;
+
+            /*
+             * Compute responsibilities
+             */
+            for (int i = 0; i < n; i++) {
+                final int from = this.offsets[i];
+                final int to = this.offsets[i + 1];
+                double max1 = -Double.MAX_VALUE;
+                double max2 = -Double.MAX_VALUE;
+                int arg = -1;
+                for (int m = from; m < to; m++) {
+                    double as = this.a[m] + this.s[m];
+                    if (as > max1) {
+                        max2 = max1;
+                        max1 = as;
+                        arg = m;
+                    } else if (as > max2) {
+                        max2 = as;
+                    }
+                }
+                for (int m = from; m < to; m++) {
+                    double value = this.s[m] - ((m == arg) ? max2 : max1);
+                    this.r[m] = (1 - this.lam) * value + this.lam * this.r[m];
+                }
+            }
+
+            /*
+             * Compute availabilities: the messages to point k are the
+             * reverse of its own
+             */
+            for (int k = 0; k < n; k++) {
+                final int from = this.offsets[k];
+                final int self = this.offsets[k + 1] - 1;
+                final double rkk = this.r[self];
+                double sum = 0.0;
+                for (int m = from; m < self; m++) {
+                    sum += Math.max(0.0, this.r[this.reverse[m]]);
+                }
+                for (int m = from; m < self; m++) {
+                    final int in = this.reverse[m];
+                    double value = Math.min(0.0, rkk + sum - Math.max(0.0, this.r[in]));
+                    this.a[in] = (1 - this.lam) * value + this.lam * this.a[in];
+                }
+                this.a[self] = (1 - this.lam) * sum + this.lam * this.a[self];
+            }
+
+            /*
+             * Check for convergence
+             */
+            boolean changed = false;
+            int K = 0;
+            for (int k = 0; k < n; k++) {
+                final int self = this.offsets[k + 1] - 1;
+                boolean e = this.a[self] + this.r[self] > 0;
+                if (e != exemplar[k]) {
+                    exemplar[k] = e;
+                    changed = true;
+                }
+                if (e) {
+                    K++;
+                }
+            }
+            stable = changed ? 1 : stable + 1;
+            this.unconverged = stable < this.convits;
+            if ((!this.unconverged && K > 0) || this.iterations >= this.maxits) {
+                dn = true;
+            }
+        }
+
+        /*
+         * Identify exemplars
+         */
+        this.exemplars = new Vector<Integer>();
+        for (int k = 0; k < n; k++) {
+            if (exemplar[k]) {
+                this.exemplars.add(k);
+            }
+        }
+    }
+
+    /**
+     * Returns the cluster of each point: the index of its exemplar in
+     * {@link #exemplars}. A point is assigned to the exemplar it is most
+     * similar to among its neighbors; a point without an exemplar for a
+     * neighbor becomes the exemplar of a cluster of its own (and is added
+     * to the exemplars).
+     */
+    public int[] getClusters() {
+        int[] clusters = new int[this.count];
+        int[] index = new int[this.count];
+        Arrays.fill(index, -1);
+        final int found = this.exemplars.size();
+        for (int c = 0; c < found; c++) {
+            index[this.exemplars.get(c)] = c;
+        }
+        for (int i = 0; i < this.count; i++) {
+            if (index[i] >= 0) {
+                clusters[i] = index[i];
+                continue;
+            }
+            double best = -Double.MAX_VALUE;
+            clusters[i] = -1;
+            for (int m = this.offsets[i]; m < this.offsets[i + 1] - 1; m++) {
+                int c = index[this.targets[m]];
+                if (c >= 0 && c < found && this.s[m] > best) {
+                    best = this.s[m];
+                    clusters[i] = c;
+                }
+            }
+            if (clusters[i] < 0) {
+                index[i] = this.exemplars.size();
+                this.exemplars.add(i);
+                clusters[i] = index[i];
+            }
+        }
+        return clusters;
+    }
+
+    public SimilarityGraph getGraph() {
+        return this.graph;
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+package org.mitre.math.linear;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.commons.math.linear.AbstractRealMatrix;
+import org.apache.commons.math.linear.MatrixIndexException;
+import org.apache.commons.math.linear.MatrixUtils;
+import org.apache.commons.math.linear.RealMatrix;
+
+/**
+ * A square, symmetric {@link RealMatrix} with a zero diagonal, such as a
+ * distance matrix, that only stores the n(n-1)/2 entries above the diagonal.
+ * <P>
+ * The entries are kept row by row in condensed order (entry (i, j) with
+ * i &lt; j is at <code>i*n - i*(i+1)/2 + j - i - 1</code>) as
+ * <code>double</code>s or <code>float</code>s outside of the heap, either in
+ * direct buffers or mapped from a file, in segments of
+ * {@link #SEGMENT_ENTRIES} entries so the matrix can be larger than one
+ * buffer.
+ * <P>
+ * Entries (i, j) and (j, i) are the same entry: setting either sets both,
+ * and adding to both adds twice. Only zero can be set on the diagonal.
+ * Different entries can be set from different threads at the same time.
+ *
+ * @see FloatRealMatrix
+ * @author Marc Colosimo
+ */
+public class CondensedRealMatrix extends AbstractRealMatrix {
+
+    private static final Log LOG = LogFactory.getLog("CondensedRealMatrix");
+
+    public final static String TEMP_FILE_PREFIX = "condensed_real_matrix";
+
+    /** Number of entries in each buffer (a GB of doubles) */
+    public static final int SEGMENT_ENTRIES = 1 << 27;
+
+    private final int size;
+    private final int precision;
+    private final long entries;
+    /** One of these is used, depending on the precision */
+    private final DoubleBuffer[] doubles;
+    private final FloatBuffer[] floats;
+
+    /**
+     * Create a new matrix of zeros in direct buffers.
+     *
+     * @param size the number of rows and columns
+     * @param precision {@link RealMatrixUtils#PRECISION_DOUBLE} or
+     *        {@link RealMatrixUtils#PRECISION_FLOAT}
+     */
+    public CondensedRealMatrix(final int size, final int precision) throws IllegalArgumentException {
+        this(size, precision, allocateSegments(size, precision));
+    }
+
+    /**
+     * Create a new matrix of zeros mapped from a file.
+     *
+     * @param file the file to map the entries from (<code>null</code>
+     *        allowed and a temporary file is used, which is deleted on exit)
+     */
+    public CondensedRealMatrix(final int size, final int precision, File file)
+            throws IllegalArgumentException, IOException {
+        this(size, precision, mapTempFile(file, size, precision));
+    }
+
+    /**
+     * Create a matrix from the entries (big-endian, in condensed order) in a
+     * file channel, starting at the given position. The file is grown to
+     * hold the entries if it is mapped read-write, and the channel can be
+     * closed once the matrix is made.
+     */
+    public CondensedRealMatrix(final int size, final int precision, FileChannel channel,
+            long position, FileChannel.MapMode mode) throws IllegalArgumentException, IOException {
+        this(size, precision, mapSegments(channel, position, mode, size, precision));
+    }
+
+    private CondensedRealMatrix(final int size, final int precision, ByteBuffer[] segments) {
+        super(size, size);
+        this.size = size;
+        this.precision = precision;
+        this.entries = getEntryCount(size);
+        this.doubles = (precision == RealMatrixUtils.PRECISION_DOUBLE) ? new DoubleBuffer[segments.length] : null;
+        this.floats = (precision == RealMatrixUtils.PRECISION_FLOAT) ? new FloatBuffer[segments.length] : null;
+        for (int s = 0; s < segments.length; s++) {
+            if (this.doubles != null) {
+                this.doubles[s] = segments[s].asDoubleBuffer();
+            } else {
+                this.floats[s] = segments[s].asFloatBuffer();
+            }
+        }
+    }
+
+    private static ByteBuffer[] allocateSegments(int size, int precision) {
+        checkPrecision(precision);
+        final long entries = getEntryCount(size);
+        ByteBuffer[] segments = new ByteBuffer[getSegmentCount(entries)];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = ByteBuffer.allocateDirect(
+                    (int) (getSegmentLength(entries, s) * getEntryByteSize(precision)));
+            segments[s].order(ByteOrder.nativeOrder());
+        }
+        return segments;
+    }
+
+    private static ByteBuffer[] mapSegments(FileChannel channel, long position,
+            FileChannel.MapMode mode, int size, int precision) throws IOException {
+        checkPrecision(precision);
+        final long entries = getEntryCount(size);
+        final int bytes = getEntryByteSize(precision);
+        ByteBuffer[] segments = new ByteBuffer[getSegmentCount(entries)];
+        LOG.debug(String.format("Mapping %d entries in %d segments at %d", entries, segments.length, position));
+        for (int s = 0; s < segments.length; s++) {
+            long offset = position + (long) s * SEGMENT_ENTRIES * bytes;
+            segments[s] = channel.map(mode, offset, getSegmentLength(entries, s) * bytes);
+        }
+        return segments;
+    }
+
+    private static ByteBuffer[] mapTempFile(File file, int size, int precision) throws IOException {
+        if (file == null) {
+            file = File.createTempFile(TEMP_FILE_PREFIX, null);
+            file.deleteOnExit();
+            LOG.debug(String.format("Created tempFile '%s'", file.getAbsolutePath()));
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return mapSegments(raf.getChannel(), 0L, FileChannel.MapMode.READ_WRITE, size, precision);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void checkPrecision(int precision) {
+        if (precision != RealMatrixUtils.PRECISION_DOUBLE
+                && precision != RealMatrixUtils.PRECISION_FLOAT) {
+            throw new IllegalArgumentException("Unable to create a condensed matrix with precision " + precision);
+        }
+    }
+
+    /**
+     * Returns the number of entries above the diagonal of a matrix.
+     */
+    public static long getEntryCount(int size) {
+        return (long) size * (size - 1) / 2;
+    }
+
+    /**
+     * Returns the size in bytes of an entry stored in the given precision.
+     */
+    public static int getEntryByteSize(int precision) {
+        return (precision == RealMatrixUtils.PRECISION_FLOAT) ? Float.SIZE / Byte.SIZE
+                : Double.SIZE / Byte.SIZE;
+    }
+
+    private static int getSegmentCount(long entries) {
+        return (int) ((entries + SEGMENT_ENTRIES - 1) / SEGMENT_ENTRIES);
+    }
+
+    private static long getSegmentLength(long entries, int s) {
+        return Math.min(SEGMENT_ENTRIES, entries - (long) s * SEGMENT_ENTRIES);
+    }
+
+    /**
+     * Returns the condensed index of the entry (i, j) with i &lt; j.
+     */
+    public long getIndex(int i, int j) {
+        return (long) i * this.size - (long) i * (i + 1) / 2 + j - i - 1;
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public int getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * Returns the number of entries stored.
+     */
+    public long getEntryCount() {
+        return this.entries;
+    }
+
+    /**
+     * Returns the entry at the condensed index.
+     */
+    public double getEntry(long index) {
+        final int s = (int) (index / SEGMENT_ENTRIES);
+        final int offset = (int) (index % SEGMENT_ENTRIES);
+        return (this.doubles != null) ? this.doubles[s].get(offset) : this.floats[s].get(offset);
+    }
+
+    /**
+     * Sets the entry at the condensed index.
+     */
+    public void setEntry(long index, double value) {
+        final int s = (int) (index / SEGMENT_ENTRIES);
+        final int offset = (int) (index % SEGMENT_ENTRIES);
+        if (this.doubles != null) {
+            this.doubles[s].put(offset, value);
+        } else {
+            this.floats[s].put(offset, (float) value);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix createMatrix(final int rowDimension, final int columnDimension)
+            throws IllegalArgumentException {
+        /** The results of most operations are not symmetric */
+        return MatrixUtils.createRealMatrix(rowDimension, columnDimension);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix copy() {
+        CondensedRealMatrix m = new CondensedRealMatrix(this.size, this.precision);
+        for (int s = 0; s < getSegmentCount(this.entries); s++) {
+            if (this.doubles != null) {
+                DoubleBuffer src = this.doubles[s].duplicate();
+                src.clear();
+                m.doubles[s].put(src);
+            } else {
+                FloatBuffer src = this.floats[s].duplicate();
+                src.clear();
+                m.floats[s].put(src);
+            }
+        }
+        return m;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getEntry(final int row, final int column) throws MatrixIndexException {
+        MatrixUtils.checkRowIndex(this, row);
+        MatrixUtils.checkColumnIndex(this, column);
+        if (row == column) {
+            return 0.0;
+        }
+        return (row < column) ? this.getEntry(this.getIndex(row, column))
+                : this.getEntry(this.getIndex(column, row));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setEntry(final int row, final int column, final double value)
+            throws MatrixIndexException {
+        MatrixUtils.checkRowIndex(this, row);
+        MatrixUtils.checkColumnIndex(this, column);
+        if (row == column) {
+            if (value != 0.0) {
+                throw new IllegalArgumentException(String.format(
+                        "Unable to set diagonal entry (%d, %d) of a condensed matrix to %g",
+                        row, column, value));
+            }
+            return;
+        }
+        if (row < column) {
+            this.setEntry(this.getIndex(row, column), value);
+        } else {
+            this.setEntry(this.getIndex(column, row), value);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addToEntry(final int row, final int column, final double increment)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) + increment);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void multiplyEntry(final int row, final int column, final double factor)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) * factor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getRowDimension() {
+        return this.size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getColumnDimension() {
+        return this.size;
+    }
+
+    /**
+     * Copies row i of the matrix into the array, reading down column i
+     * above the diagonal and along row i after it.
+     */
+    public void getRow(int i, double[] row) {
+        for (int k = 0; k < i; k++) {
+            row[k] = this.getEntry(this.getIndex(k, i));
+        }
+        row[i] = 0.0;
+        long index = this.getIndex(i, i + 1);
+        for (int j = i + 1; j < this.size; j++) {
+            row[j] = this.getEntry(index++);
+        }
+    }
+
+    /**
+     * Returns the largest absolute difference between an entry and the value
+     * that was set (zero for <code>double</code>s).
+     */
+    public double getErrorBound() {
+        if (this.precision == RealMatrixUtils.PRECISION_DOUBLE) {
+            return 0.0;
+        }
+        double maxAbs = 0.0;
+        for (long index = 0; index < this.entries; index++) {
+            maxAbs = Math.max(maxAbs, Math.abs(this.getEntry(index)));
+        }
+        return maxAbs * FloatRealMatrix.RELATIVE_ERROR;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+package org.mitre.math.linear;
+
+import java.io.Serializable;
+
+import org.apache.commons.math.linear.AbstractRealMatrix;
+import org.apache.commons.math.linear.MatrixIndexException;
+import org.apache.commons.math.linear.MatrixUtils;
+import org.apache.commons.math.linear.RealMatrix;
+
+/**
+ * A {@link RealMatrix} that stores its entries as <code>float</code>s, half
+ * the memory of a <code>double</code> matrix.
+ * <P>
+ * Each entry is rounded to the nearest float, a relative error of at most
+ * 2<sup>-24</sup>. The entries are kept column by column (a column is a
+ * sample in a {@link org.mitre.ccv.CompleteMatrix}).
+ *
+ * @author Marc Colosimo
+ */
+public class FloatRealMatrix extends AbstractRealMatrix implements Serializable {
+
+    private static final long serialVersionUID = 8136414387212343001L;
+
+    /** Largest relative error of rounding a double to a float */
+    public static final double RELATIVE_ERROR = Math.ulp(1.0f) / 2;
+
+    private final int rows;
+    private final int columns;
+    private final float[] data;
+    /** Largest absolute value set, used for the error bound */
+    private double maxAbs = 0.0;
+
+    /**
+     * Create a new matrix of zeros.
+     *
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @throws IllegalArgumentException if the matrix is empty or too large
+     */
+    public FloatRealMatrix(final int rows, final int columns) throws IllegalArgumentException {
+        super(rows, columns);
+        if ((long) rows * columns > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "A %dx%d matrix is too large", rows, columns));
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.data = new float[rows * columns];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix createMatrix(final int rowDimension, final int columnDimension)
+            throws IllegalArgumentException {
+        return new FloatRealMatrix(rowDimension, columnDimension);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix copy() {
+        FloatRealMatrix m = new FloatRealMatrix(this.rows, this.columns);
+        System.arraycopy(this.data, 0, m.data, 0, this.data.length);
+        m.maxAbs = this.maxAbs;
+        return m;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getEntry(final int row, final int column) throws MatrixIndexException {
+        return this.data[this.index(row, column)];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setEntry(final int row, final int column, final double value)
+            throws MatrixIndexException {
+        this.data[this.index(row, column)] = (float) value;
+        this.maxAbs = Math.max(this.maxAbs, Math.abs(value));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addToEntry(final int row, final int column, final double increment)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) + increment);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void multiplyEntry(final int row, final int column, final double factor)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) * factor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getRowDimension() {
+        return this.rows;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getColumnDimension() {
+        return this.columns;
+    }
+
+    /**
+     * Returns the largest absolute difference between an entry and the value
+     * that was set.
+     */
+    public double getErrorBound() {
+        return this.maxAbs * RELATIVE_ERROR;
+    }
+
+    private int index(final int row, final int column) {
+        MatrixUtils.checkRowIndex(this, row);
+        MatrixUtils.checkColumnIndex(this, column);
+        return column * this.rows + row;
+    }
+}
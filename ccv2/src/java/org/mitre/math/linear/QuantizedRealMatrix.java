@@ -0,0 +1,312 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+package org.mitre.math.linear;
+
+import java.io.Serializable;
+
+import org.apache.commons.math.linear.AbstractRealMatrix;
+import org.apache.commons.math.linear.MatrixIndexException;
+import org.apache.commons.math.linear.MatrixUtils;
+import org.apache.commons.math.linear.RealMatrix;
+
+/**
+ * A {@link RealMatrix} that stores its entries as 16-bit integers, a quarter
+ * of the memory of a <code>double</code> matrix.
+ * <P>
+ * The rows are split into groups (in a {@link org.mitre.ccv.CompleteMatrix}
+ * the n-mers of one window size) and each group has a scale: an entry is
+ * stored as <code>round(value / scale)</code>, which has to be within
+ * &plusmn;{@link #MAX_LEVEL}. The scales are given when the matrix is made,
+ * usually from the largest absolute value of each group (see
+ * {@link #scaleFor(double)}). A value that is not zero is stored as at
+ * least one level, so a row keeps its zero entries (a row of tiny values
+ * does not become a row of zeros), and the error of an entry is at most its
+ * row's scale (half of it for entries of at least half the scale). Setting
+ * a whole row with {@link #setRow(int, double[])} (as normalizing the
+ * matrix does) gives that row a new scale that fits its values. The
+ * entries are kept column by column.
+ * <P>
+ * Matrices created by operations on this one ({@link #createMatrix(int, int)})
+ * are ordinary <code>double</code> matrices, since their values are not
+ * bounded by the scales.
+ *
+ * @author Marc Colosimo
+ */
+public class QuantizedRealMatrix extends AbstractRealMatrix implements Serializable {
+
+    private static final long serialVersionUID = -2771604522871437780L;
+
+    /** Largest absolute quantized value */
+    public static final int MAX_LEVEL = Short.MAX_VALUE;
+
+    private final int rows;
+    private final int columns;
+    private final short[] data;
+    /** Scale of each row */
+    private final double[] scales;
+
+    /**
+     * Create a new matrix of zeros.
+     *
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param rowGroups the group of each row
+     * @param scales the scale of each group
+     * @throws IllegalArgumentException if the matrix is empty or too large,
+     * or a row is in a group without a scale
+     */
+    public QuantizedRealMatrix(final int rows, final int columns,
+            int[] rowGroups, double[] scales) throws IllegalArgumentException {
+        super(rows, columns);
+        if ((long) rows * columns > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "A %dx%d matrix is too large", rows, columns));
+        }
+        if (rowGroups.length != rows) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected a group for each of %d rows, found %d", rows, rowGroups.length));
+        }
+        for (int g : rowGroups) {
+            if (g < 0 || g >= scales.length) {
+                throw new IllegalArgumentException("No scale for row group " + g);
+            }
+        }
+        for (double s : scales) {
+            if (!(s >= 0.0) || Double.isInfinite(s)) {
+                throw new IllegalArgumentException("Invalid scale " + s);
+            }
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.data = new short[rows * columns];
+        this.scales = new double[rows];
+        for (int r = 0; r < rows; r++) {
+            this.scales[r] = scales[rowGroups[r]];
+        }
+    }
+
+    /**
+     * Create a copy of the matrix.
+     */
+    private QuantizedRealMatrix(QuantizedRealMatrix m) {
+        super(m.rows, m.columns);
+        this.rows = m.rows;
+        this.columns = m.columns;
+        this.data = m.data.clone();
+        this.scales = m.scales.clone();
+    }
+
+    /**
+     * Returns the scale that fits values within &plusmn;<code>maxAbs</code>.
+     */
+    public static double scaleFor(double maxAbs) {
+        return Math.abs(maxAbs) / MAX_LEVEL;
+    }
+
+    /**
+     * Returns the level a value is stored as with the scale: the nearest
+     * one, but at least one level for a value that is not zero. The level is
+     * not checked against {@link #MAX_LEVEL}.
+     */
+    public static long levelFor(double value, double scale) {
+        if (value == 0.0) {
+            return 0;
+        }
+        long q = (scale == 0.0) ? Long.MAX_VALUE : Math.round(value / scale);
+        if (q == 0) {
+            /** Keep the entry from becoming one of the zeros */
+            q = (value > 0.0) ? 1 : -1;
+        }
+        return q;
+    }
+
+    /**
+     * Returns a quantized copy of the matrix, using the largest absolute value
+     * of each group of rows for its scale.
+     *
+     * @param matrix the matrix to copy
+     * @param rowGroups the group of each row (numbered from zero)
+     */
+    public static QuantizedRealMatrix quantize(RealMatrix matrix, int[] rowGroups) {
+        int groups = 0;
+        for (int g : rowGroups) {
+            groups = Math.max(groups, g + 1);
+        }
+        double[] maxAbs = new double[groups];
+        for (int c = 0; c < matrix.getColumnDimension(); c++) {
+            for (int r = 0; r < matrix.getRowDimension(); r++) {
+                maxAbs[rowGroups[r]] = Math.max(maxAbs[rowGroups[r]],
+                        Math.abs(matrix.getEntry(r, c)));
+            }
+        }
+        double[] scales = new double[groups];
+        for (int g = 0; g < groups; g++) {
+            scales[g] = scaleFor(maxAbs[g]);
+        }
+        QuantizedRealMatrix q = new QuantizedRealMatrix(matrix.getRowDimension(),
+                matrix.getColumnDimension(), rowGroups, scales);
+        for (int c = 0; c < matrix.getColumnDimension(); c++) {
+            for (int r = 0; r < matrix.getRowDimension(); r++) {
+                q.setEntry(r, c, matrix.getEntry(r, c));
+            }
+        }
+        return q;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix createMatrix(final int rowDimension, final int columnDimension)
+            throws IllegalArgumentException {
+        return MatrixUtils.createRealMatrix(rowDimension, columnDimension);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RealMatrix copy() {
+        return new QuantizedRealMatrix(this);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getEntry(final int row, final int column) throws MatrixIndexException {
+        return this.data[this.index(row, column)] * this.scales[row];
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if the value is out of the range of
+     * the row's scale.
+     */
+    @Override
+    public void setEntry(final int row, final int column, final double value)
+            throws MatrixIndexException {
+        int i = this.index(row, column);
+        this.data[i] = (short) this.quantize(row, value);
+    }
+
+    /**
+     * Sets the entries of the row, giving it a new scale that fits the
+     * largest of them.
+     */
+    @Override
+    public void setRow(final int row, final double[] array) throws MatrixIndexException {
+        MatrixUtils.checkRowIndex(this, row);
+        if (array.length != this.columns) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected %d values for row %d, found %d", this.columns, row, array.length));
+        }
+        double maxAbs = 0.0;
+        for (double v : array) {
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+        if (Double.isInfinite(maxAbs)) {
+            throw new IllegalArgumentException("Infinite value in row " + row);
+        }
+        this.scales[row] = scaleFor(maxAbs);
+        for (int c = 0; c < this.columns; c++) {
+            this.data[c * this.rows + row] = (short) this.quantize(row, array[c]);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addToEntry(final int row, final int column, final double increment)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) + increment);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void multiplyEntry(final int row, final int column, final double factor)
+            throws MatrixIndexException {
+        this.setEntry(row, column, this.getEntry(row, column) * factor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getRowDimension() {
+        return this.rows;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getColumnDimension() {
+        return this.columns;
+    }
+
+    /**
+     * Returns the stored (quantized) value of the entry.
+     */
+    public short getQuantizedEntry(final int row, final int column) throws MatrixIndexException {
+        return this.data[this.index(row, column)];
+    }
+
+    /**
+     * Sets the stored (quantized) value of the entry.
+     */
+    public void setQuantizedEntry(final int row, final int column, final short value)
+            throws MatrixIndexException {
+        if (value < -MAX_LEVEL) {
+            throw new IllegalArgumentException("Quantized value out of range " + value);
+        }
+        this.data[this.index(row, column)] = value;
+    }
+
+    /**
+     * Returns the scale of the row.
+     */
+    public double getScale(final int row) {
+        MatrixUtils.checkRowIndex(this, row);
+        return this.scales[row];
+    }
+
+    /**
+     * Returns the largest absolute difference between an entry and the value
+     * that was set (the largest row scale).
+     */
+    public double getErrorBound() {
+        double max = 0.0;
+        for (double s : this.scales) {
+            max = Math.max(max, s);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the quantized value for the row.
+     *
+     * @throws IllegalArgumentException if it is out of range.
+     */
+    private int quantize(final int row, final double value) {
+        final double scale = this.scales[row];
+        long q = levelFor(value, scale);
+        if (Double.isNaN(value) || q > MAX_LEVEL || q < -MAX_LEVEL) {
+            throw new IllegalArgumentException(String.format(
+                    "Value %g of row %d is out of the range of its scale (+/-%g)",
+                    value, row, scale * MAX_LEVEL));
+        }
+        return (int) q;
+    }
+
+    private int index(final int row, final int column) {
+        MatrixUtils.checkRowIndex(this, row);
+        MatrixUtils.checkColumnIndex(this, column);
+        return column * this.rows + row;
+    }
+}
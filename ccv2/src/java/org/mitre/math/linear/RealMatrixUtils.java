@@ -40,6 +40,13 @@ public class RealMatrixUtils {
 
     private static final RealMatrixUtils singleton;
 
+    /** Store matrix entries as doubles */
+    public static final int PRECISION_DOUBLE = 0;
+    /** Store matrix entries as floats, see {@link FloatRealMatrix} */
+    public static final int PRECISION_FLOAT = 1;
+    /** Store matrix entries as 16-bit integers, see {@link QuantizedRealMatrix} */
+    public static final int PRECISION_16BIT = 2;
+
     static {
         singleton = new RealMatrixUtils();
     }
@@ -82,6 +89,47 @@ public class RealMatrixUtils {
         return matrix;
     }
 
+    /**
+     * Returns a new matrix that stores its entries in the given precision.
+     *
+     * @param precision {@link #PRECISION_DOUBLE} or {@link #PRECISION_FLOAT}
+     * (16-bit matrices need the scales of their rows, see {@link QuantizedRealMatrix}).
+     */
+    static public RealMatrix createRealMatrix(int rowDimension, int columnDimension, int precision) {
+        switch (precision) {
+            case PRECISION_DOUBLE:
+                return getNewRealMatrix(rowDimension, columnDimension);
+            case PRECISION_FLOAT:
+                return new FloatRealMatrix(rowDimension, columnDimension);
+            default:
+                throw new IllegalArgumentException("Unable to create a matrix with precision " + precision);
+        }
+    }
+
+    /**
+     * Checks that the precision is one of the <code>PRECISION_</code> values.
+     */
+    static public void checkPrecision(int precision) {
+        if (precision < PRECISION_DOUBLE || precision > PRECISION_16BIT) {
+            throw new IllegalArgumentException("Unknown precision " + precision);
+        }
+    }
+
+    /**
+     * Returns the largest absolute error in the entries of the matrix caused
+     * by its storage precision (zero for <code>double</code> matrices).
+     */
+    static public double getErrorBound(RealMatrix matrix) {
+        if (matrix instanceof FloatRealMatrix) {
+            return ((FloatRealMatrix) matrix).getErrorBound();
+        } else if (matrix instanceof QuantizedRealMatrix) {
+            return ((QuantizedRealMatrix) matrix).getErrorBound();
+        } else if (matrix instanceof CondensedRealMatrix) {
+            return ((CondensedRealMatrix) matrix).getErrorBound();
+        }
+        return 0.0;
+    }
+
     /**
      * Return a singlete instances of this class (no public constructor)
      */
@@ -170,6 +218,32 @@ public class RealMatrixUtils {
         return (new SingularValueDecompositionImpl(matrix).getNorm());
     }
 
+    /**
+     * Normalizes a row of a <code>double</code> matrix in place, with the
+     * same arithmetic as {@link #normalizeMatrix(RealMatrix)}.
+     */
+    public static void normalizeRow(double[] row) {
+        final int n = row.length;
+        /** norm1 of a single row is its largest absolute value */
+        double max = 0;
+        for (int j = 0; j < n; j++) {
+            max = Math.max(max, Math.abs(row[j]));
+        }
+        double sum = max / n;
+        for (int j = 0; j < n; j++) {
+            row[j] += -1.0 * sum;
+        }
+        max = 0;
+        for (int j = 0; j < n; j++) {
+            max = Math.max(max, Math.abs(row[j] * row[j]));
+        }
+        double std = max / n;
+        final double scale = 1.0 / std;
+        for (int j = 0; j < n; j++) {
+            row[j] *= scale;
+        }
+    }
+
     /**
      * Normalizes a matrix into its Z-scores.
      */
@@ -191,10 +265,8 @@ public class RealMatrixUtils {
             double std = norm1(arrayTimes(subMatrix, subMatrix)) / n;
             timesEquals(subMatrix, 1.0 / std);
             
-            //setSubMatrix(i,i, 0, samples -1, m)
-            for (int j = 0; j < n; j++) {
-                matrix.setEntry(i, j, subMatrix.getEntry(0, j));
-            }
+            // set the whole row so that a QuantizedRealMatrix can rescale it
+            matrix.setRow(i, subMatrix.getRow(0));
         }
 
         // Normalize each feature
@@ -19,6 +19,7 @@
  */
 package org.mitre.util;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -38,6 +39,9 @@ public class MinHash {
 
     private static MinHash singleton = new MinHash();
 
+    /** Value of a signature bin of an empty set */
+    public static final long EMPTY_BIN = Long.MAX_VALUE;
+
     public static MinHash getSingleton() {
         return singleton;
     }
@@ -68,4 +72,125 @@ public class MinHash {
         }
         return val;
     }
+
+    /**
+     * Returns the bottom-k sketch of a set of hashes: its k smallest distinct
+     * hashes, sorted. Sets with fewer than k distinct hashes are their own
+     * sketch.
+     *
+     * @param hashes the hashes of the set's items (not changed).
+     * @param k the size of the sketch.
+     * @return the sorted sketch.
+     */
+    public long[] sketch(long[] hashes, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Sketch size must be at least one");
+        }
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length && n < k; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    /**
+     * Estimates the Jaccard similarity of two sets from their bottom-k
+     * sketches: the fraction of the k smallest hashes of the union that are
+     * in both sketches. It is exact if both sets are smaller than k (and no
+     * items have the same hash).
+     *
+     * @param a the sorted sketch of one set.
+     * @param b the sorted sketch of the other.
+     * @param k the size the sketches were made with.
+     * @return the estimated similarity (not a number if both sets are empty).
+     */
+    public double jaccard(long[] a, long[] b, int k) {
+        int union = 0;
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (union < k && (i < a.length || j < b.length)) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                i++;
+            } else if (i == a.length || b[j] < a[i]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+            union++;
+        }
+        return (double) shared / union;
+    }
+
+    /**
+     * Returns the one permutation MinHash signature of a set of hashes: the
+     * hashes are split into bins (by their value modulo the number of bins)
+     * and each bin holds its smallest hash. An empty bin borrows the value
+     * of the next bin that is not empty (wrapping around) plus the distance
+     * to it, so the bins of two signatures are equal with a probability of
+     * the Jaccard similarity of their sets (see
+     * {@link #similarity(long[], long[])}).
+     *
+     * @param hashes the hashes of the set's items (not changed).
+     * @param bins the size of the signature.
+     * @return the signature ({@link #EMPTY_BIN} in every bin if the set is empty).
+     */
+    public long[] signature(long[] hashes, int bins) {
+        if (bins < 1) {
+            throw new IllegalArgumentException("Signature must have at least one bin");
+        }
+        long[] signature = new long[bins];
+        boolean[] filled = new boolean[bins];
+        for (long h : hashes) {
+            int bin = (int) ((h & Long.MAX_VALUE) % bins);
+            if (!filled[bin] || h < signature[bin]) {
+                signature[bin] = h;
+                filled[bin] = true;
+            }
+        }
+        int next = -1;
+        for (int b = 0; b < bins && next < 0; b++) {
+            if (filled[b]) {
+                next = b;
+            }
+        }
+        if (next < 0) {
+            Arrays.fill(signature, EMPTY_BIN);
+            return signature;
+        }
+        /** Walk backwards from a filled bin so each empty bin sees the next one */
+        for (int step = 0, b = next; step < bins; step++) {
+            b = (b == 0) ? bins - 1 : b - 1;
+            if (filled[b]) {
+                next = b;
+            } else {
+                int distance = (next > b) ? next - b : next + bins - b;
+                signature[b] = signature[next] + distance;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Estimates the Jaccard similarity of two sets from their signatures:
+     * the fraction of bins that are the same.
+     */
+    public double similarity(long[] a, long[] b) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Signatures differ in length");
+        }
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
 }
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2010- The MITRE Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you  may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions andlimitations under
+ * the License.
+ *
+ * $Id$
+ */
+package org.mitre.util;
+
+import java.util.Arrays;
+
+/**
+ * Locality Sensitive Hashing (LSH) of MinHash signatures (see
+ * {@link MinHash#signature(long[], int)}) by banding.
+ *
+ * <p>A signature is cut into <code>bands</code> bands of <code>rows</code>
+ * bins and two sets are candidates if all of the bins of any band are the
+ * same, which happens with a probability of
+ * <code>1 - (1 - J<sup>rows</sup>)<sup>bands</sup></code> for sets with a
+ * Jaccard similarity of J. This is an S-curve that rises around
+ * <code>(1/bands)<sup>1/rows</sup></code>, so only the pairs of sets close
+ * to each other are compared instead of all of them.<p>
+ *
+ * <p>Sets are numbered in the order they are added. A bucket of n sets with
+ * the same band gives n(n-1)/2 candidate pairs, so many identical sets still
+ * give many pairs.<p>
+ *
+ * @author Marc Colosimo
+ */
+public class MinHashLSH {
+
+    /** Default probability of finding a pair at the threshold */
+    public static final double DEFAULT_RECALL = 0.95;
+
+    private final int bands;
+    private final int rows;
+    /** Hash of each band (outer) of each set (inner) */
+    private long[][] bandKeys;
+    private int size = 0;
+
+    /**
+     * Construct an empty index for signatures of at least
+     * <code>bands * rows</code> bins.
+     */
+    public MinHashLSH(int bands, int rows) {
+        if (bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("Need at least one band of one row");
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.bandKeys = new long[bands][16];
+    }
+
+    /**
+     * Returns an index for signatures with the given number of bins that
+     * has the most rows per band (the fewest candidates) while still
+     * finding pairs with a similarity of the threshold with a probability of
+     * at least {@link #DEFAULT_RECALL}.
+     */
+    public static MinHashLSH forThreshold(double threshold, int bins) {
+        return forThreshold(threshold, bins, DEFAULT_RECALL);
+    }
+
+    public static MinHashLSH forThreshold(double threshold, int bins, double recall) {
+        if (!(threshold > 0.0 && threshold <= 1.0)) {
+            throw new IllegalArgumentException("Threshold must be above 0 and at most 1");
+        }
+        int best = 1;
+        for (int r = 1; r <= bins; r++) {
+            if (probability(threshold, bins / r, r) >= recall) {
+                best = r;
+            }
+        }
+        return new MinHashLSH(bins / best, best);
+    }
+
+    /**
+     * Returns the probability that two sets with the given similarity are
+     * candidates.
+     */
+    public static double probability(double similarity, int bands, int rows) {
+        return 1.0 - Math.pow(1.0 - Math.pow(similarity, rows), bands);
+    }
+
+    public int getBands() {
+        return this.bands;
+    }
+
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Returns the number of sets added.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Adds the signature of a set.
+     *
+     * @return the number of the set
+     */
+    public int add(long[] signature) {
+        if (signature.length < this.bands * this.rows) {
+            throw new IllegalArgumentException(String.format(
+                    "Signature has %d bins, need %d", signature.length, this.bands * this.rows));
+        }
+        if (this.size == this.bandKeys[0].length) {
+            for (int b = 0; b < this.bands; b++) {
+                this.bandKeys[b] = Arrays.copyOf(this.bandKeys[b], this.size * 2);
+            }
+        }
+        MurmurHash mhash = MurmurHash.getSingleton();
+        for (int b = 0; b < this.bands; b++) {
+            long key = b;
+            for (int r = b * this.rows; r < (b + 1) * this.rows; r++) {
+                key = mhash.hash64A(key ^ signature[r], b);
+            }
+            this.bandKeys[b][this.size] = key;
+        }
+        return this.size++;
+    }
+
+    /**
+     * Returns the distinct pairs of sets that share a band, sorted, each as
+     * <code>(first &lt;&lt; 32) | second</code> with first &lt; second (see
+     * {@link #first(long)} and {@link #second(long)}).
+     */
+    public long[] getCandidatePairs() {
+        long[] pairs = new long[16];
+        int n = 0;
+        final long[] order = new long[this.size];
+        for (int b = 0; b < this.bands; b++) {
+            final long[] keys = this.bandKeys[b];
+            /** Sort by the top half of the key, keeping the set in the bottom */
+            for (int i = 0; i < this.size; i++) {
+                order[i] = (keys[i] & 0xFFFFFFFF00000000L) | i;
+            }
+            Arrays.sort(order);
+            int start = 0;
+            for (int end = 1; end <= this.size; end++) {
+                if (end < this.size && (order[end] >>> 32) == (order[start] >>> 32)) {
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    final int a = (int) order[i];
+                    for (int j = i + 1; j < end; j++) {
+                        final int c = (int) order[j];
+                        if (keys[a] != keys[c]) {
+                            continue;
+                        }
+                        if (n == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, n * 2);
+                        }
+                        pairs[n++] = pair(Math.min(a, c), Math.max(a, c));
+                    }
+                }
+                start = end;
+            }
+        }
+        Arrays.sort(pairs, 0, n);
+        int u = 0;
+        for (int i = 0; i < n; i++) {
+            if (u == 0 || pairs[u - 1] != pairs[i]) {
+                pairs[u++] = pairs[i];
+            }
+        }
+        return Arrays.copyOf(pairs, u);
+    }
+
+    public static long pair(int first, int second) {
+        return ((long) first << 32) | second;
+    }
+
+    public static int first(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    public static int second(long pair) {
+        return (int) pair;
+    }
+}
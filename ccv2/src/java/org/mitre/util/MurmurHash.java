@@ -155,6 +155,38 @@ public class MurmurHash {
         return h;
     }
 
+    /**
+     * 64-bit hash (MurmurHash64A) of a single 64-bit value, without making
+     * an array of its bytes.
+     *
+     * <p>Unlike {@link #hash64A(byte[], int, int)} this uses unsigned shifts,
+     * as the C version does, so all 64 bits of the hash are mixed.</p>
+     *
+     * @param data
+     * @param seed
+     * @return a long hash of the value.
+     */
+    public long hash64A(long data, int seed) {
+        long m = 0xc6a4a7935bd1e995L;
+        int r = 47;
+
+        long h = seed ^ 8;
+
+        long k = data;
+        k *= m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
     /**
      * Convert the byte array containing 64-bits to a long starting from
      * the given offset.
@@ -164,7 +196,7 @@ public class MurmurHash {
      * @return The integer
      */
     public static long unsigned64ByteArrayToLong(byte[] b, int offset) {
-        int value = 0;
+        long value = 0;
         for (int i = 0; i < 8; i++) {
             int shift = (8 - 1 - i) * 8;
             value ^= ((long) b[i + offset] & 0xFF) << shift;
@@ -21,7 +21,17 @@
 package org.mitre.bio.mapred.io;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
@@ -31,28 +41,121 @@ import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
-import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.JobConfigurable;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 
+import org.mitre.bio.io.BgzfInputStream;
+import org.mitre.bio.io.FastaIndex;
+
 /**
  * An {@link InputFormat} for FASTA files.
  * 
  * <P>Files are broken into individual sequences. Keys are the position in the
  * file and values are one FASTA record (header plus sequence).</P>
  *
+ * <P>Compressed files (by codec, or gzip/BGZF by their magic number) are not
+ * split. BGZF files are inflated in parallel, see {@link FastaRecordReader}.</P>
+ *
+ * <P>If there is an up to date index (<tt>file.fai</tt>, see {@link FastaIndex})
+ * next to a file then its splits are moved to record boundaries, so no record
+ * is read across two splits. Index files in the input are skipped.</P>
+ *
  * @author Marc Colosimo
  */
-public class FastaInputFormat extends FileInputFormat<LongWritable, Text> {
+public class FastaInputFormat extends FileInputFormat<LongWritable, Text>
+        implements JobConfigurable {
+
+    private static final Log LOG = LogFactory.getLog(FastaInputFormat.class);
+    private CompressionCodecFactory compressionCodecs = null;
+
+    public void configure(JobConf conf) {
+        this.compressionCodecs = new CompressionCodecFactory(conf);
+    }
 
     @Override
     public RecordReader<LongWritable, Text> getRecordReader(InputSplit inputSplit, JobConf jobConf, Reporter reporter) throws IOException {
         return new FastaRecordReader((FileSplit) inputSplit, jobConf);
     }
 
-    protected boolean isSplitable(JobContext context, Path file) {
-        CompressionCodec codec = 
-            new CompressionCodecFactory(context.getJobConf()).getCodec(file);
-        return codec == null;
+    @Override
+    protected FileStatus[] listStatus(JobConf job) throws IOException {
+        FileStatus[] files = super.listStatus(job);
+        List<FileStatus> fasta = new ArrayList<FileStatus>(files.length);
+        for (FileStatus file : files) {
+            if (!file.getPath().getName().endsWith(FastaIndex.SUFFIX)) {
+                fasta.add(file);
+            }
+        }
+        return fasta.toArray(new FileStatus[fasta.size()]);
+    }
+
+    @Override
+    public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+        InputSplit[] splits = super.getSplits(job, numSplits);
+        Map<Path, FastaIndex> indexes = new HashMap<Path, FastaIndex>();
+        List<InputSplit> aligned = new ArrayList<InputSplit>(splits.length);
+        for (InputSplit inputSplit : splits) {
+            FileSplit split = (FileSplit) inputSplit;
+            Path file = split.getPath();
+            if (!indexes.containsKey(file)) {
+                indexes.put(file, this.readIndex(job, file));
+            }
+            FastaIndex index = indexes.get(file);
+            if (index == null) {
+                aligned.add(split);
+                continue;
+            }
+            long start = index.nextRecordStart(split.getStart());
+            long end = index.nextRecordStart(split.getStart() + split.getLength());
+            if (end > start) {
+                aligned.add(new FileSplit(file, start, end - start, split.getLocations()));
+            }
+        }
+        return aligned.toArray(new InputSplit[aligned.size()]);
+    }
+
+    /**
+     * Returns the index for the (splitable) file or <code>null</code> if there
+     * is no index or it is older than the file.
+     */
+    private FastaIndex readIndex(JobConf job, Path file) throws IOException {
+        FileSystem fs = file.getFileSystem(job);
+        Path fai = file.suffix(FastaIndex.SUFFIX);
+        if (!fs.exists(fai) || !this.isSplitable(fs, file)) {
+            return null;
+        }
+        FileStatus status = fs.getFileStatus(file);
+        if (fs.getFileStatus(fai).getModificationTime() < status.getModificationTime()) {
+            LOG.warn("Ignoring index '" + fai + "', it is older than the file");
+            return null;
+        }
+        InputStreamReader in = new InputStreamReader(fs.open(fai));
+        try {
+            return FastaIndex.read(in, null, status.getLen());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected boolean isSplitable(FileSystem fs, Path file) {
+        CompressionCodec codec = this.compressionCodecs.getCodec(file);
+        if (codec != null) {
+            return false;
+        }
+        /** gzip files without a .gz suffix */
+        try {
+            FSDataInputStream in = fs.open(file);
+            try {
+                byte[] header = new byte[2];
+                int n = in.read(0, header, 0, header.length);
+                return !BgzfInputStream.isGzip(header, n);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return true;
+        }
     }
 }
@@ -20,6 +20,8 @@
 package org.mitre.bio.mapred.io;
 
 import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -35,6 +37,8 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.util.LineReader;
 
+import org.mitre.bio.io.BgzfInputStream;
+
 /**
  * A FASTA file {@link RecordReader}.
  *
@@ -42,6 +46,10 @@ import org.apache.hadoop.util.LineReader;
  * containing the sequence. Keys are the position in the file and
  * values are one FASTA record (header plus sequence). </P>
  *
+ * <P>Block-gzip (BGZF) files are inflated on <code>fasta.bgzf.threads</code>
+ * threads (default is one per processor), other compressed files with their
+ * codec.</P>
+ *
  * <P>NOTE: in 0.19.0 there seems to be multiple RecordReader classes:
  * one is an interface the other is an abstract class.</P>
  *
@@ -79,9 +87,21 @@ public class FastaRecordReader implements RecordReader<LongWritable, Text> {
         FileSystem fs = file.getFileSystem(job);
         FSDataInputStream fileIn = fs.open(split.getPath());
         boolean skipFirstLine = false;
-        if (codec != null) {
+        byte[] header = new byte[64];
+        int headerLength = Math.max(0, fileIn.read(0, header, 0, header.length));
+        if (BgzfInputStream.isBgzf(header, headerLength)) {
+            /** Block-gzip, inflate the blocks in parallel */
+            int threads = job.getInt("fasta.bgzf.threads",
+                    Runtime.getRuntime().availableProcessors());
+            this.in = new LineReader(new BgzfInputStream(fileIn, threads), job);
+            this.end = Long.MAX_VALUE;
+        } else if (codec != null) {
             this.in = new LineReader(codec.createInputStream(fileIn), job);
             this.end = Long.MAX_VALUE;
+        } else if (BgzfInputStream.isGzip(header, headerLength)) {
+            /** gzip without a .gz suffix */
+            this.in = new LineReader(new GZIPInputStream(fileIn), job);
+            this.end = Long.MAX_VALUE;
         } else {
             /**
              * From LineRecordReader, what is this doing?